@@ -0,0 +1,91 @@
+package fi.nls.oskari.terrainprofile;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.nls.oskari.control.ActionException;
+import fi.nls.oskari.control.ActionHandler;
+import fi.nls.oskari.control.ActionParameters;
+import fi.nls.oskari.control.ActionParamsException;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.service.ServiceRuntimeException;
+import fi.nls.oskari.util.PropertyUtil;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Common parts of the action routes that work on the default coverage of
+ * TerrainProfile with its terrain.profile.* configuration
+ */
+public abstract class AbstractTerrainHandler extends ActionHandler {
+
+    protected final ObjectMapper om;
+    private final TerrainProfileService tps;
+    protected String serviceSrs;
+    protected int requestTimeoutMs = TerrainProfileHandler.DEFAULT_REQUEST_TIMEOUT_MS;
+    protected int maxBodyBytes = TerrainProfileHandler.DEFAULT_MAX_BODY_BYTES;
+
+    protected AbstractTerrainHandler(ObjectMapper om, TerrainProfileService tps) {
+        this.om = om;
+        this.tps = tps;
+    }
+
+    @Override
+    public void init() {
+        if (tps == null) {
+            try {
+                TerrainProfileHandler.getDefaultProvider();
+            } catch (NoSuchElementException propertyMissing) {
+                // fatal, throw an exception so this route is not added to available actions
+                throw new ServiceRuntimeException(
+                        "Failed to init TerrainProfileService: " + propertyMissing.getMessage());
+            }
+        }
+        serviceSrs = PropertyUtil.get(TerrainProfileHandler.PROPERTY_ENDPOINT_SRS,
+                TerrainProfileHandler.DEFAULT_SRS).toUpperCase();
+        requestTimeoutMs = PropertyUtil.getOptional(TerrainProfileHandler.PROPERTY_REQUEST_TIMEOUT_MS,
+                TerrainProfileHandler.DEFAULT_REQUEST_TIMEOUT_MS);
+        maxBodyBytes = PropertyUtil.getOptional(TerrainProfileHandler.PROPERTY_MAX_BODY_BYTES,
+                TerrainProfileHandler.DEFAULT_MAX_BODY_BYTES);
+    }
+
+    protected TerrainProfileService getService() throws ServiceException {
+        if (tps != null) {
+            return tps;
+        }
+        return TerrainProfileHandler.getDefaultProvider().get();
+    }
+
+    /**
+     * @return true if the input is to be read from the POST body, that is
+     *         when param is not given
+     */
+    protected static boolean isInBody(ActionParameters params, String param) {
+        String value = params.getHttpParam(param);
+        return (value == null || value.isEmpty())
+                && "POST".equalsIgnoreCase(params.getRequest().getMethod());
+    }
+
+    /**
+     * Reads JSON from the POST body, up to maxBodyBytes, or from param
+     */
+    protected JsonNode readJson(ActionParameters params, String param) throws ActionException {
+        try {
+            if (isInBody(params, param)) {
+                HttpServletRequest request = params.getRequest();
+                return om.readTree(TerrainProfileHandler.readBody(request, maxBodyBytes));
+            }
+            // reports the required parameter missing
+            return om.readTree(params.getRequiredParam(param));
+        } catch (JsonProcessingException e) {
+            throw new ActionParamsException("Expected JSON object for param " + param, e);
+        } catch (IOException e) {
+            throw new ActionException("Failed to read param " + param, e);
+        }
+    }
+
+}
@@ -1,12 +1,16 @@
 package fi.nls.oskari.terrainprofile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.time.Duration;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 import fi.nls.oskari.service.ServiceException;
 import fi.nls.oskari.service.ServiceRuntimeException;
@@ -19,6 +23,7 @@ import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.core.IntervalFunction;
 import io.github.resilience4j.decorators.Decorators;
 import io.github.resilience4j.retry.RetryConfig;
 import io.github.resilience4j.retry.RetryRegistry;
@@ -26,20 +31,58 @@ import io.github.resilience4j.retry.Retry;
 import io.github.resilience4j.timelimiter.TimeLimiter;
 import io.github.resilience4j.timelimiter.TimeLimiterConfig;
 import io.github.resilience4j.timelimiter.TimeLimiterRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedRetryMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedThreadPoolBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedTimeLimiterMetrics;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
+/**
+ * Runs GetCoverage requests with a circuit breaker, retries, a time limit and
+ * a bulkhead. These are shared by the loaders of the same name, usually the
+ * coverage id, and published as metrics (resilience4j_*, tagged with the name)
+ * along with the latency and response sizes of GetCoverage requests.
+ */
 public class CoverageLoader {
     private static final String GROUP_KEY = "terrainprofile";
     private static final String COMMAND_NAME = "getCoverage";
+    private static final String METRIC_PREFIX = "terrainprofile.getcoverage";
     private static final int MAX_RETRIES = 5;
-    private static final int SLEEP_BETWEEN_RETRY_MS = 100;
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final double BACKOFF_MULTIPLIER = 2.0;
+    private static final double BACKOFF_RANDOMIZATION = 0.5;
+
+    // shared by every CoverageLoader so that retries are capped process-wide
+    private static RetryBudget sharedRetryBudget;
+
+    // shared so that the state of a coverage survives reloading it, and so that the metrics can see them
+    private static CircuitBreakerRegistry circuitBreakers;
+    private static RetryRegistry retries;
+    private static TimeLimiterRegistry timeLimiters;
+    private static ThreadPoolBulkheadRegistry bulkheads;
 
     private final CircuitBreaker circuitBreaker;
     private final Retry retry;
     private final TimeLimiter timeLimiter;
     private final ThreadPoolBulkhead bulkhead;
     private final ScheduledExecutorService executor;
+    private final RetryBudget retryBudget;
+    private final Timer successTimer;
+    private final Timer failureTimer;
+    private final DistributionSummary responseSize;
 
-    public CoverageLoader() {
+    public CoverageLoader(ScheduledExecutorService scheduler) {
+        this(COMMAND_NAME, scheduler);
+    }
+
+    /**
+     * @param name of the circuit breaker etc. used, loaders of the same name share them
+     * @param scheduler times out and schedules the retries of the requests
+     */
+    public CoverageLoader(String name, ScheduledExecutorService scheduler) {
+        initRegistries();
         int failRequests = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".failrequests", 10);
         int rollingWindowMs = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".rollingwindow", 100000);
         int waitDuration = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".sleepwindow", 10000);
@@ -52,16 +95,21 @@ public class CoverageLoader {
                 .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.TIME_BASED)
                 .slidingWindowSize(slidingWindow)
                 .build();
-        circuitBreaker = CircuitBreakerRegistry.of(circuitBreakerConfig).circuitBreaker(COMMAND_NAME);
+        circuitBreaker = circuitBreakers.circuitBreaker(name, circuitBreakerConfig);
 
+        retryBudget = getSharedRetryBudget();
         RetryConfig retryConfig = RetryConfig.custom()
                 .maxAttempts(MAX_RETRIES)
-                .waitDuration(Duration.ofMillis(SLEEP_BETWEEN_RETRY_MS))
+                // exponential back-off with jitter so that retries from concurrent requests spread out
+                .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(
+                        INITIAL_BACKOFF_MS, BACKOFF_MULTIPLIER, BACKOFF_RANDOMIZATION))
                 // don't retry if runSupplier throws ignored
                 .ignoreExceptions(ServiceRuntimeException.class)
+                // check ignored first so that they don't spend the retry budget
+                .retryOnException(e -> !(e instanceof ServiceRuntimeException) && retryBudget.tryAcquire())
                 .failAfterMaxAttempts(true)
                 .build();
-        retry = RetryRegistry.of(retryConfig).retry(COMMAND_NAME);
+        retry = retries.retry(name, retryConfig);
 
         int poolSize = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".job.pool.size", 4);
         int poolLimit = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".job.pool.limit", 100);
@@ -71,46 +119,160 @@ public class CoverageLoader {
                 .coreThreadPoolSize(poolSize/2)
                 .queueCapacity(queueSize)
                 .build();
-        ThreadPoolBulkheadRegistry registry = ThreadPoolBulkheadRegistry.of(bulkheadConfig);
-        bulkhead = registry.bulkhead(GROUP_KEY);
+        bulkhead = bulkheads.bulkhead(name, bulkheadConfig);
 
-        executor = Executors.newScheduledThreadPool(3);
+        executor = scheduler;
 
         int timeout = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".job.timeoutms", 15000);
         TimeLimiterConfig timeLimiterConfig = TimeLimiterConfig.custom().timeoutDuration(Duration.ofMillis(timeout)).build();
-        timeLimiter = TimeLimiterRegistry.of(timeLimiterConfig).timeLimiter(GROUP_KEY);
+        timeLimiter = timeLimiters.timeLimiter(name, timeLimiterConfig);
+
+        MeterRegistry meterRegistry = TerrainProfileMetrics.getRegistry();
+        successTimer = getTimer(name, "success", meterRegistry);
+        failureTimer = getTimer(name, "failure", meterRegistry);
+        responseSize = DistributionSummary.builder(METRIC_PREFIX + ".size")
+                .description("Size of GetCoverage responses")
+                .tag("name", name)
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static Timer getTimer(String name, String outcome, MeterRegistry meterRegistry) {
+        return Timer.builder(METRIC_PREFIX)
+                .description("GetCoverage requests, retries and back-off included")
+                .tag("name", name)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static synchronized void initRegistries() {
+        if (circuitBreakers != null) {
+            return;
+        }
+        circuitBreakers = CircuitBreakerRegistry.ofDefaults();
+        retries = RetryRegistry.ofDefaults();
+        timeLimiters = TimeLimiterRegistry.ofDefaults();
+        bulkheads = ThreadPoolBulkheadRegistry.ofDefaults();
+        // binds the ones created later too
+        MeterRegistry meterRegistry = TerrainProfileMetrics.getRegistry();
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(circuitBreakers).bindTo(meterRegistry);
+        TaggedRetryMetrics.ofRetryRegistry(retries).bindTo(meterRegistry);
+        TaggedTimeLimiterMetrics.ofTimeLimiterRegistry(timeLimiters).bindTo(meterRegistry);
+        TaggedThreadPoolBulkheadMetrics.ofThreadPoolBulkheadRegistry(bulkheads).bindTo(meterRegistry);
     }
 
-    private byte[] runSupplier (Supplier<HttpURLConnection> connectionSupplier) {
+    private static synchronized RetryBudget getSharedRetryBudget() {
+        if (sharedRetryBudget == null) {
+            int percent = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".retry.budget.percent", 10);
+            int maxBalance = PropertyUtil.getOptional("oskari." + GROUP_KEY + ".retry.budget.max", 20);
+            sharedRetryBudget = new RetryBudget(percent, maxBalance);
+        }
+        return sharedRetryBudget;
+    }
+
+    private byte[] runSupplier (Supplier<HttpURLConnection> connectionSupplier, Deadline deadline) {
+        if (deadline.isExpired()) {
+            // ServiceRuntimeException is not retried
+            throw new DeadlineExceededException();
+        }
         try {
             HttpURLConnection conn = connectionSupplier.get();
             if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                return IOHelper.readBytes(conn);
+                try (InputStream in = getInputStream(conn)) {
+                    return IOHelper.readBytes(in);
+                }
             }
         } catch (IOException ignored) {}
         throw new ServiceRuntimeException("Unexpected response to GetCoverage");
     }
 
+    /**
+     * @return response body, decompressed if the server gzipped it
+     */
+    static InputStream getInputStream(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            return new GZIPInputStream(in);
+        }
+        return in;
+    }
+
     public byte[] getCoverage (Supplier<HttpURLConnection> supplier) throws ServiceException {
+        return getCoverage(supplier, Deadline.none());
+    }
+
+    /**
+     * @param deadline shared by every attempt and back-off, the call fails with
+     *        {@link DeadlineExceededException} once it has passed even if attempts are still left
+     */
+    public byte[] getCoverage (Supplier<HttpURLConnection> supplier, Deadline deadline) throws ServiceException {
         try {
-            return Decorators.ofSupplier(() -> runSupplier(supplier))
+            return getCoverageAsync(supplier, deadline).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceRuntimeException) {
+                throw (ServiceRuntimeException) cause;
+            }
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            }
+            throw new ServiceException("Failed to retrieve data from WCS", e);
+        }
+    }
+
+    /**
+     * Same as {@link #getCoverage(Supplier, Deadline)} without blocking the
+     * calling thread. The attempts run on the bulkhead of the loader, the
+     * returned future completes on the thread that finishes the last one.
+     *
+     * @return completes exceptionally with ServiceRuntimeException or
+     *         ServiceException wrapped in a CompletionException
+     */
+    public CompletableFuture<byte[]> getCoverageAsync(Supplier<HttpURLConnection> supplier, Deadline deadline) {
+        retryBudget.onRequest();
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> future;
+        try {
+            future = Decorators.ofSupplier(() -> runSupplier(supplier, deadline))
                     .withThreadPoolBulkhead(bulkhead)
                     .withTimeLimiter(timeLimiter, executor)
                     .withCircuitBreaker(circuitBreaker)
                     .withRetry(retry, executor)
-                    .get().toCompletableFuture().join();
-        } catch (Exception e) { // CompletionException
-            Throwable cause = e.getCause();
-            if (cause instanceof TimeoutException) {
-                throw new ServiceRuntimeException("Timeout");
+                    .get().toCompletableFuture();
+            if (deadline.isBounded()) {
+                future = future.orTimeout(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
             }
-            if (cause instanceof CallNotPermittedException) {
-                throw new ServiceRuntimeException("WCS service disabled temporarily");
-            }
-            if (cause instanceof ServiceRuntimeException) {
-                throw (ServiceRuntimeException) cause;
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        return future.handle((response, e) -> {
+            if (e == null) {
+                successTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                responseSize.record(response.length);
+                return response;
             }
-            throw new ServiceException("Failed to retrieve data from WCS", e);
+            failureTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw new CompletionException(getFailure(e, deadline));
+        });
+    }
+
+    /**
+     * @return what a failed GetCoverage request is reported as
+     */
+    private static Exception getFailure(Throwable e, Deadline deadline) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof TimeoutException) {
+            // Attempts timing out on their own are not the deadline running out
+            return deadline.isExpired() ? new DeadlineExceededException() : new ServiceRuntimeException("Timeout");
+        }
+        if (cause instanceof CallNotPermittedException) {
+            return new ServiceRuntimeException("WCS service disabled temporarily");
+        }
+        if (cause instanceof ServiceRuntimeException) {
+            return (ServiceRuntimeException) cause;
         }
+        return new ServiceException("Failed to retrieve data from WCS", cause);
     }
 }
@@ -0,0 +1,142 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells which parts of the full resolution grid of a coverage are known to
+ * have no data, so that they're never requested. Everything outside the
+ * grid limits of the coverage has no data. Inside them the grid is divided
+ * into blocks of blockSize x blockSize cells, one bit per block, and blocks
+ * seen to be all NODATA are learned as they're fetched.
+ */
+public class CoverageMask {
+
+    @FunctionalInterface
+    public interface CellValues {
+        /**
+         * @return value of the cell, Double.NaN for NODATA
+         */
+        double getValue(int gridX, int gridY);
+    }
+
+    private final int minGridX;
+    private final int minGridY;
+    private final int maxGridX;
+    private final int maxGridY;
+    private final int blockSize;
+    private final int blocksAcross;
+    // bit per block, set if the block is known to be all NODATA. null if not learning
+    private final AtomicLongArray emptyBlocks;
+
+    /**
+     * @param minGridX first column of the coverage (inclusive)
+     * @param minGridY first row of the coverage (inclusive)
+     * @param maxGridX last column of the coverage (inclusive)
+     * @param maxGridY last row of the coverage (inclusive)
+     * @param blockSize size of the blocks learned in cells, non-positive to only use the limits
+     */
+    public CoverageMask(int minGridX, int minGridY, int maxGridX, int maxGridY, int blockSize) {
+        this.minGridX = minGridX;
+        this.minGridY = minGridY;
+        this.maxGridX = maxGridX;
+        this.maxGridY = maxGridY;
+        if (blockSize > 0) {
+            this.blockSize = blockSize;
+            this.blocksAcross = (maxGridX - minGridX) / blockSize + 1;
+            int blocksDown = (maxGridY - minGridY) / blockSize + 1;
+            long numBlocks = (long) blocksAcross * blocksDown;
+            this.emptyBlocks = new AtomicLongArray((int) ((numBlocks + 63) / 64));
+        } else {
+            this.blockSize = 0;
+            this.blocksAcross = 0;
+            this.emptyBlocks = null;
+        }
+    }
+
+    /**
+     * @return true if none of the cells [x0, x1] x [y0, y1] can have data
+     */
+    public boolean isEmpty(int x0, int y0, int x1, int y1) {
+        if (x1 < minGridX || x0 > maxGridX || y1 < minGridY || y0 > maxGridY) {
+            return true;
+        }
+        if (emptyBlocks == null) {
+            return false;
+        }
+        int bx0 = (Math.max(x0, minGridX) - minGridX) / blockSize;
+        int by0 = (Math.max(y0, minGridY) - minGridY) / blockSize;
+        int bx1 = (Math.min(x1, maxGridX) - minGridX) / blockSize;
+        int by1 = (Math.min(y1, maxGridY) - minGridY) / blockSize;
+        for (int by = by0; by <= by1; by++) {
+            for (int bx = bx0; bx <= bx1; bx++) {
+                if (!isEmptyBlock(bx, by)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the blocks that lie wholly within the cells [x0, x1] x [y0, y1]
+     * and are all NODATA as empty. Each block is scanned only until the
+     * first cell with data.
+     *
+     * @return number of blocks found empty
+     */
+    public int learn(int x0, int y0, int x1, int y1, CellValues values) {
+        if (emptyBlocks == null) {
+            return 0;
+        }
+        // Blocks are clipped to the limits, the part outside has no data anyway
+        int bx0 = ceilDiv(Math.max(x0, minGridX) - minGridX, blockSize);
+        int by0 = ceilDiv(Math.max(y0, minGridY) - minGridY, blockSize);
+        int bx1 = x1 >= maxGridX ? (maxGridX - minGridX) / blockSize : (x1 - minGridX + 1) / blockSize - 1;
+        int by1 = y1 >= maxGridY ? (maxGridY - minGridY) / blockSize : (y1 - minGridY + 1) / blockSize - 1;
+        int learned = 0;
+        for (int by = by0; by <= by1; by++) {
+            for (int bx = bx0; bx <= bx1; bx++) {
+                if (!isEmptyBlock(bx, by) && isAllNoData(bx, by, values)) {
+                    setEmptyBlock(bx, by);
+                    learned++;
+                }
+            }
+        }
+        return learned;
+    }
+
+    private boolean isAllNoData(int bx, int by, CellValues values) {
+        int cx0 = minGridX + bx * blockSize;
+        int cy0 = minGridY + by * blockSize;
+        int cx1 = Math.min(cx0 + blockSize - 1, maxGridX);
+        int cy1 = Math.min(cy0 + blockSize - 1, maxGridY);
+        for (int y = cy0; y <= cy1; y++) {
+            for (int x = cx0; x <= cx1; x++) {
+                if (!Double.isNaN(values.getValue(x, y))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isEmptyBlock(int bx, int by) {
+        long bit = (long) by * blocksAcross + bx;
+        return (emptyBlocks.get((int) (bit >>> 6)) & (1L << bit)) != 0;
+    }
+
+    private void setEmptyBlock(int bx, int by) {
+        long bit = (long) by * blocksAcross + bx;
+        int i = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long prev;
+        do {
+            prev = emptyBlocks.get(i);
+        } while ((prev & mask) == 0 && !emptyBlocks.compareAndSet(i, prev, prev | mask));
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return -Math.floorDiv(-x, y);
+    }
+
+}
@@ -0,0 +1,121 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * GetCapabilities and DescribeCoverage responses of a coverage, everything
+ * TerrainProfileService needs to know before it can request the coverage.
+ * Can be saved to a snapshot file so that the service can be started from it
+ * without waiting for the WCS.
+ */
+public class CoverageMetadata {
+
+    private static final int MAGIC = 0x54504d44; // TPMD
+    private static final int VERSION = 1;
+
+    private final String endPoint;
+    private final String coverageId;
+    private final byte[] capabilities;
+    private final byte[] describeCoverage;
+
+    public CoverageMetadata(String endPoint, String coverageId, byte[] capabilities, byte[] describeCoverage) {
+        this.endPoint = endPoint;
+        this.coverageId = coverageId;
+        this.capabilities = capabilities;
+        this.describeCoverage = describeCoverage;
+    }
+
+    public String getEndPoint() {
+        return endPoint;
+    }
+
+    public String getCoverageId() {
+        return coverageId;
+    }
+
+    public byte[] getCapabilities() {
+        return capabilities;
+    }
+
+    public byte[] getDescribeCoverage() {
+        return describeCoverage;
+    }
+
+    /**
+     * @return true if this describes coverageId of the service at endPoint
+     */
+    public boolean isFor(String endPoint, String coverageId) {
+        return this.endPoint.equals(endPoint) && this.coverageId.equals(coverageId);
+    }
+
+    public static CoverageMetadata read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    public static CoverageMetadata read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a coverage metadata snapshot");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        String endPoint = data.readUTF();
+        String coverageId = data.readUTF();
+        byte[] capabilities = readBytes(data);
+        byte[] describeCoverage = readBytes(data);
+        return new CoverageMetadata(endPoint, coverageId, capabilities, describeCoverage);
+    }
+
+    private static byte[] readBytes(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes to a temporary file first and then replaces the file, so that
+     * a half written snapshot is never left behind
+     */
+    public void write(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                write(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeUTF(endPoint);
+        data.writeUTF(coverageId);
+        data.writeInt(capabilities.length);
+        data.write(capabilities);
+        data.writeInt(describeCoverage.length);
+        data.write(describeCoverage);
+        data.flush();
+    }
+
+}
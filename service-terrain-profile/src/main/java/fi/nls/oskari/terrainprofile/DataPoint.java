@@ -5,6 +5,8 @@ public class DataPoint {
     private double e;
     private double n;
     private double altitude;
+    // altitudes from additional coverages, null if none were requested
+    private double[] altitudes;
     private double distFromStart;
     private int gridX;
     private int gridY;
@@ -35,6 +37,14 @@ public class DataPoint {
         this.altitude = altitude;
     }
 
+    public double[] getAltitudes() {
+        return altitudes;
+    }
+
+    public void setAltitudes(double[] altitudes) {
+        this.altitudes = altitudes;
+    }
+
     public double getDistFromStart() {
         return distFromStart;
     }
@@ -0,0 +1,84 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * End-to-end time limit of a single request. Created once when the request
+ * arrives and passed down to every tile fetch, retry and back-off made on
+ * behalf of that request.
+ */
+public class Deadline {
+
+    private static final Deadline NONE = new Deadline(0L, false);
+
+    private final long expiresAtNanos;
+    private final boolean bounded;
+
+    private Deadline(long expiresAtNanos, boolean bounded) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * @param timeoutMs non-positive means no deadline
+     */
+    public static Deadline after(long timeoutMs) {
+        if (timeoutMs <= 0) {
+            return NONE;
+        }
+        return new Deadline(System.nanoTime() + timeoutMs * 1_000_000L, true);
+    }
+
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * @param timeoutMs non-positive means no additional limit
+     * @return this deadline or one timeoutMs from now, whichever comes first
+     */
+    public Deadline sooner(long timeoutMs) {
+        Deadline other = after(timeoutMs);
+        if (!other.bounded) {
+            return this;
+        }
+        if (!bounded || other.expiresAtNanos - expiresAtNanos < 0) {
+            return other;
+        }
+        return this;
+    }
+
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    public boolean isExpired() {
+        return bounded && expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return milliseconds left, 0 if expired, Long.MAX_VALUE if not bounded
+     */
+    public long remainingMillis() {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = (expiresAtNanos - System.nanoTime()) / 1_000_000L;
+        return Math.max(remaining, 0L);
+    }
+
+    /**
+     * @param timeoutMs timeout configured elsewhere, non-positive meaning infinite
+     * @return the smaller one of timeoutMs and the time left, as accepted by
+     *         URLConnection#setReadTimeout(int)
+     */
+    public int limit(int timeoutMs) {
+        if (!bounded) {
+            return timeoutMs;
+        }
+        long remaining = Math.max(remainingMillis(), 1L);
+        if (timeoutMs > 0 && timeoutMs < remaining) {
+            return timeoutMs;
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,14 @@
+package fi.nls.oskari.terrainprofile;
+
+import fi.nls.oskari.service.ServiceRuntimeException;
+
+/**
+ * Thrown when the {@link Deadline} given to the work has passed, as opposed
+ * to other failures of the WCS. Reported to clients as "Timeout".
+ */
+public class DeadlineExceededException extends ServiceRuntimeException {
+
+    public DeadlineExceededException() {
+        super("Timeout");
+    }
+}
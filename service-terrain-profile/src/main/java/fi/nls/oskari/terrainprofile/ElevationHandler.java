@@ -0,0 +1,115 @@
+package fi.nls.oskari.terrainprofile;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.nls.oskari.annotation.OskariActionRoute;
+import fi.nls.oskari.control.*;
+import fi.nls.oskari.log.LogFactory;
+import fi.nls.oskari.log.Logger;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.service.ServiceRuntimeException;
+import fi.nls.oskari.util.IOHelper;
+import fi.nls.oskari.util.PropertyUtil;
+
+import java.io.IOException;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.geotools.api.referencing.operation.MathTransform;
+
+/**
+ * Altitudes for a bulk of points at once. Points are sent as the body of a
+ * POST request (or in the points parameter) either as a GeoJSON MultiPoint,
+ * a Feature with a MultiPoint geometry or a flat array [x1,y1,...,xN,yN].
+ * Responds with an array of altitudes in the same order as the points,
+ * null where the DEM has no data.
+ */
+@OskariActionRoute("TerrainElevation")
+public class ElevationHandler extends AbstractTerrainHandler {
+
+    private static final Logger LOG = LogFactory.getLogger(ElevationHandler.class);
+
+    protected static final String PARAM_POINTS = "points";
+
+    protected static final String PROPERTY_MAX_POINTS = "terrain.profile.elevation.maxPoints";
+
+    private static final int DEFAULT_MAX_POINTS = 500000;
+
+    private int maxPoints = DEFAULT_MAX_POINTS;
+
+    public ElevationHandler() {
+        this(new ObjectMapper(), null);
+    }
+
+    public ElevationHandler(ObjectMapper om, TerrainProfileService tps) {
+        super(om, tps);
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        maxPoints = PropertyUtil.getOptional(PROPERTY_MAX_POINTS, DEFAULT_MAX_POINTS);
+    }
+
+    @Override
+    public void handleAction(ActionParameters params) throws ActionException {
+        Deadline deadline = Deadline.after(requestTimeoutMs);
+        String clientSRS = params.getHttpParam(ActionConstants.PARAM_SRS, TerrainProfileHandler.DEFAULT_SRS);
+        double scaleFactor = params.getHttpParam(TerrainProfileHandler.JSON_PROPERTY_SCALE_FACTOR, 0.0);
+        double[] points = readPoints(params);
+
+        MathTransform transform = TerrainProfileHandler.getTransform(clientSRS, serviceSrs);
+        if (transform != null) {
+            TerrainProfileHandler.transformInPlace(points, transform);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Number of points:", points.length / 2);
+        }
+
+        double[] altitudes;
+        try {
+            altitudes = getService().getAltitudes(points, scaleFactor, deadline);
+        } catch (ServiceRuntimeException e) {
+            throw new ActionCommonException(e.getMessage(), e);
+        } catch (ServiceException e) {
+            throw new ActionException(e.getMessage(), e);
+        }
+        writeResponse(params, altitudes);
+    }
+
+    private double[] readPoints(ActionParameters params) throws ActionException {
+        // Read the body as it arrives, hundreds of thousands of points add up
+        try (JsonParser json = isInBody(params, PARAM_POINTS)
+                ? om.getFactory().createParser(params.getRequest().getInputStream())
+                : om.getFactory().createParser(params.getRequiredParam(PARAM_POINTS))) {
+            return new MultiPointParser(maxPoints).parse(json);
+        } catch (JsonProcessingException e) {
+            throw new ActionParamsException("Expected JSON for param " + PARAM_POINTS, e);
+        } catch (IOException e) {
+            throw new ActionException("Failed to read param " + PARAM_POINTS, e);
+        }
+    }
+
+    private void writeResponse(ActionParameters params, double[] altitudes) throws ActionException {
+        HttpServletResponse response = params.getResponse();
+        response.setContentType(IOHelper.CONTENT_TYPE_JSON);
+        try (JsonGenerator json = om.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartArray();
+            for (double alt : altitudes) {
+                if (Double.isNaN(alt)) {
+                    json.writeNull();
+                } else {
+                    json.writeNumber(alt);
+                }
+            }
+            json.writeEndArray();
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.Arrays;
+
+import fi.nls.oskari.control.ActionParamsException;
+
+/**
+ * Decoder for the Encoded Polyline Algorithm Format (as used by Google Maps).
+ * Each value is stored as a zig-zag encoded delta from the previous value in
+ * 5-bit chunks offset by 63. Coordinates are encoded in (y, x) order, meaning
+ * (lat, lon) or (north, east), with a configurable number of decimals.
+ */
+public class EncodedPolyline {
+
+    public static final int DEFAULT_PRECISION = 5;
+    public static final int MAX_PRECISION = 10;
+
+    private static final String ERR_MALFORMED = "Invalid input - malformed encoded polyline";
+    private static final int INITIAL_CAPACITY = 64;
+
+    private EncodedPolyline() {}
+
+    /**
+     * @param encoded encoded polyline
+     * @param precision number of decimals the coordinates were encoded with
+     * @param maxCoordinates maximum number of coordinates accepted
+     * @return coordinates as [x1,y1,...,xN,yN]
+     */
+    public static double[] decode(CharSequence encoded, int precision, int maxCoordinates)
+            throws ActionParamsException {
+        if (precision < 0 || precision > MAX_PRECISION) {
+            throw new ActionParamsException("Invalid precision, expected integer between 0 and " + MAX_PRECISION);
+        }
+        double factor = Math.pow(10, precision);
+
+        double[] xy = new double[Math.min(INITIAL_CAPACITY, maxCoordinates * 2)];
+        int n = 0;
+        long x = 0;
+        long y = 0;
+
+        int len = encoded.length();
+        int i = 0;
+        while (i < len) {
+            long dy = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = nextChunk(encoded, i++, shift);
+                dy |= (long) (b & 0x1F) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+
+            if (i == len) {
+                // Missing x value
+                throw new ActionParamsException(ERR_MALFORMED);
+            }
+
+            long dx = 0;
+            shift = 0;
+            do {
+                b = nextChunk(encoded, i++, shift);
+                dx |= (long) (b & 0x1F) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+
+            y += (dy & 1) != 0 ? ~(dy >> 1) : (dy >> 1);
+            x += (dx & 1) != 0 ? ~(dx >> 1) : (dx >> 1);
+
+            if (n == maxCoordinates * 2) {
+                throw new ActionParamsException(RouteParser.ERR_TOO_MANY + maxCoordinates);
+            }
+            if (n == xy.length) {
+                xy = Arrays.copyOf(xy, Math.min(xy.length * 2, maxCoordinates * 2));
+            }
+            xy[n++] = x / factor;
+            xy[n++] = y / factor;
+        }
+
+        if (n < 4) {
+            throw new ActionParamsException(RouteParser.ERR_TOO_FEW);
+        }
+        return n == xy.length ? xy : Arrays.copyOf(xy, n);
+    }
+
+    private static int nextChunk(CharSequence encoded, int i, int shift) throws ActionParamsException {
+        if (i >= encoded.length() || shift > 60) {
+            throw new ActionParamsException(ERR_MALFORMED);
+        }
+        int b = encoded.charAt(i) - 63;
+        if (b < 0 || b > 0x3F) {
+            throw new ActionParamsException(ERR_MALFORMED);
+        }
+        return b;
+    }
+
+}
@@ -1,5 +1,7 @@
 package fi.nls.oskari.terrainprofile;
 
+import java.util.Arrays;
+
 public class GeomUtil {
 
     public static double[] getEnvelope(double[] coordinates) {
@@ -54,4 +56,76 @@ public class GeomUtil {
         return sum;
     }
 
+    /**
+     * @param lineString [x1,y1,x2,y2,...,xN,yN]
+     * @return distance of each coordinate from the start along lineString,
+     *         the first one being 0 and the last one the length of lineString
+     */
+    public static double[] getCumulativeLengths(double[] lineString) {
+        return getCumulativeLengths(lineString, lineString[0], lineString[1], 0.0);
+    }
+
+    /**
+     * Segment lengths are computed in a loop of their own, free of the
+     * dependency between iterations the running sum has, so that the JIT
+     * can vectorize it
+     *
+     * @param points [x1,y1,x2,y2,...,xN,yN]
+     * @param x0 x of the point preceding points
+     * @param y0 y of the point preceding points
+     * @param start distance of (x0, y0)
+     * @return distance of each point from the start, following (x0, y0) and then each other
+     */
+    public static double[] getCumulativeLengths(double[] points, double x0, double y0, double start) {
+        int n = points.length / 2;
+        double[] lengths = new double[n];
+        if (n == 0) {
+            return lengths;
+        }
+        lengths[0] = getDistance(x0, y0, points[0], points[1]);
+        for (int i = 1; i < n; i++) {
+            double dx = points[i * 2] - points[i * 2 - 2];
+            double dy = points[i * 2 + 1] - points[i * 2 - 1];
+            lengths[i] = Math.sqrt(dx * dx + dy * dy);
+        }
+        double sum = start;
+        for (int i = 0; i < n; i++) {
+            sum += lengths[i];
+            lengths[i] = sum;
+        }
+        return lengths;
+    }
+
+    /**
+     * @param rings polygon rings [x1,y1,x2,y2,...,xN,yN], closed or not
+     * @param y horizontal line to intersect the rings with
+     * @return x coordinates where the edges of the rings cross the line, in
+     *         ascending order. Vertices exactly on the line count as above it
+     *         so each crossing is counted once.
+     */
+    public static double[] getCrossings(double[][] rings, double y) {
+        int n = 0;
+        double[] crossings = new double[8];
+        for (double[] ring : rings) {
+            int len = ring.length;
+            double x1 = ring[len - 2];
+            double y1 = ring[len - 1];
+            for (int i = 0; i < len;) {
+                double x2 = ring[i++];
+                double y2 = ring[i++];
+                if ((y1 <= y) != (y2 <= y)) {
+                    if (n == crossings.length) {
+                        crossings = Arrays.copyOf(crossings, n * 2);
+                    }
+                    crossings[n++] = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+                }
+                x1 = x2;
+                y1 = y2;
+            }
+        }
+        crossings = Arrays.copyOf(crossings, n);
+        Arrays.sort(crossings);
+        return crossings;
+    }
+
 }
@@ -0,0 +1,44 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Values of a rectangular part of the DEM grid decoded into memory. Unlike
+ * GridWindow, which decodes lazily, this can be read from many threads at once.
+ */
+public class GridRaster {
+
+    private final int minGridX;
+    private final int minGridY;
+    private final int width;
+    private final int height;
+    private final float[] values;
+
+    /**
+     * Decodes the cells [minGridX, maxGridX] x [minGridY, maxGridY] of the window
+     */
+    public GridRaster(GridWindow window, int minGridX, int minGridY, int maxGridX, int maxGridY) {
+        this.minGridX = minGridX;
+        this.minGridY = minGridY;
+        this.width = maxGridX - minGridX + 1;
+        this.height = maxGridY - minGridY + 1;
+        this.values = new float[width * height];
+        int i = 0;
+        for (int y = minGridY; y <= maxGridY; y++) {
+            for (int x = minGridX; x <= maxGridX; x++) {
+                values[i++] = (float) window.getValue(x, y);
+            }
+        }
+    }
+
+    /**
+     * @return value of the cell, Double.NaN if the value is NO_DATA or outside the raster
+     */
+    public double getValue(int gridX, int gridY) {
+        int x = gridX - minGridX;
+        int y = gridY - minGridY;
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return Double.NaN;
+        }
+        return values[y * width + x];
+    }
+
+}
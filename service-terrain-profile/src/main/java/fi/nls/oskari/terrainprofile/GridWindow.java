@@ -0,0 +1,73 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+import fi.nls.oskari.terrainprofile.dem.DEM;
+
+/**
+ * Rectangular part of the DEM grid received with one GetCoverage request,
+ * addressed with the grid coordinates of the whole coverage
+ */
+public class GridWindow {
+
+    private final DEM dem;
+    private final int minGridX;
+    private final int minGridY;
+    private final int maxGridX;
+    private final int maxGridY;
+
+    public GridWindow(DEM dem, int minGridX, int minGridY, int maxGridX, int maxGridY) {
+        this.dem = dem;
+        this.minGridX = minGridX;
+        this.minGridY = minGridY;
+        this.maxGridX = maxGridX;
+        this.maxGridY = maxGridY;
+    }
+
+    public int getMinGridX() {
+        return minGridX;
+    }
+
+    public int getMinGridY() {
+        return minGridY;
+    }
+
+    public int getMaxGridX() {
+        return maxGridX;
+    }
+
+    public int getMaxGridY() {
+        return maxGridY;
+    }
+
+    /**
+     * @return value of the cell or Double.NaN if the value is NO_DATA
+     */
+    public double getValue(int gridX, int gridY) {
+        return dem.getValue(gridX - minGridX, gridY - minGridY);
+    }
+
+    /**
+     * @return index of the tile of the DEM the cell is in
+     */
+    public int getTileIndex(int gridX, int gridY) {
+        return dem.getTileIndex(gridX - minGridX, gridY - minGridY);
+    }
+
+    /**
+     * @return indices of the tiles of the DEM intersecting the cells [minGridX, maxGridX] x [minGridY, maxGridY]
+     */
+    public BitSet getTileIndices(int minGridX, int minGridY, int maxGridX, int maxGridY) {
+        return dem.getTileIndices(minGridX - this.minGridX, minGridY - this.minGridY,
+                maxGridX - this.minGridX, maxGridY - this.minGridY);
+    }
+
+    /**
+     * @see DEM#decodeTiles(BitSet, ForkJoinPool, int)
+     */
+    public void decodeTiles(BitSet tiles, ForkJoinPool pool, int parallelism) {
+        dem.decodeTiles(tiles, pool, parallelism);
+    }
+
+}
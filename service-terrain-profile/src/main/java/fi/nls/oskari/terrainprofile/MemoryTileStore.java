@@ -0,0 +1,63 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TileStore within the process, for tests and a single node. Expired
+ * entries are removed as they're come across.
+ */
+public class MemoryTileStore implements TileStore {
+
+    private static class Entry<T> {
+        private final T value;
+        private final long expires;
+
+        private Entry(T value, long ttlMs) {
+            this.value = value;
+            this.expires = System.currentTimeMillis() + ttlMs;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+
+    private final Map<String, Entry<byte[]>> tiles = new ConcurrentHashMap<>();
+    private final Map<String, Entry<String>> locks = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(String key) {
+        Entry<byte[]> entry = tiles.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            tiles.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public void put(String key, byte[] tile, long expirationMs) {
+        tiles.put(key, new Entry<>(tile, expirationMs));
+    }
+
+    @Override
+    public boolean tryLock(String key, String owner, long ttlMs) {
+        Entry<String> lock = new Entry<>(owner, ttlMs);
+        Entry<String> current = locks.merge(key, lock, (old, acquired) -> old.isExpired() ? acquired : old);
+        return current == lock;
+    }
+
+    @Override
+    public void unlock(String key, String owner) {
+        locks.computeIfPresent(key, (k, lock) -> lock.value.equals(owner) ? null : lock);
+    }
+
+    public int size() {
+        return tiles.size();
+    }
+
+}
@@ -0,0 +1,143 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import fi.nls.oskari.control.ActionParamsException;
+
+/**
+ * Reads points straight into a coordinate array in one pass. Accepts a flat
+ * array of numbers [x1,y1,...,xN,yN], a GeoJSON MultiPoint geometry or a
+ * GeoJSON Feature with a MultiPoint geometry.
+ */
+public class MultiPointParser {
+
+    static final String ERR_INPUT = "Invalid input - expected MultiPoint or array of coordinates";
+    static final String ERR_ODD = "Invalid input - odd number of values in array of coordinates";
+    static final String ERR_EMPTY = "Invalid input - expected atleast one point";
+    static final String ERR_TOO_MANY = "Invalid input - too many points, maximum is ";
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int maxPoints;
+
+    public MultiPointParser(int maxPoints) {
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * @return coordinates as [x1,y1,...,xN,yN]
+     */
+    public double[] parse(JsonParser json) throws ActionParamsException, IOException {
+        JsonToken token = json.nextToken();
+        double[] coordinates;
+        if (token == JsonToken.START_ARRAY) {
+            coordinates = readFlatArray(json);
+        } else if (token == JsonToken.START_OBJECT) {
+            coordinates = readObject(json);
+        } else {
+            throw new ActionParamsException(ERR_INPUT);
+        }
+        if (coordinates.length == 0) {
+            throw new ActionParamsException(ERR_EMPTY);
+        }
+        return coordinates;
+    }
+
+    /**
+     * Reads either a Feature or a MultiPoint, whichever the type turns out to be
+     */
+    private double[] readObject(JsonParser json) throws ActionParamsException, IOException {
+        String type = null;
+        double[] coordinates = null;
+        double[] geometry = null;
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            if ("type".equals(field)) {
+                type = value == JsonToken.VALUE_STRING ? json.getText() : null;
+                json.skipChildren();
+            } else if ("coordinates".equals(field) && value == JsonToken.START_ARRAY) {
+                coordinates = readPositions(json);
+            } else if ("geometry".equals(field) && value == JsonToken.START_OBJECT) {
+                geometry = readObject(json);
+            } else {
+                json.skipChildren();
+            }
+        }
+
+        if ("MultiPoint".equals(type) && coordinates != null) {
+            return coordinates;
+        }
+        if ("Feature".equals(type) && geometry != null) {
+            return geometry;
+        }
+        throw new ActionParamsException(ERR_INPUT);
+    }
+
+    private double[] readPositions(JsonParser json) throws ActionParamsException, IOException {
+        double[] xy = new double[Math.min(INITIAL_CAPACITY, maxPoints * 2)];
+        int n = 0;
+
+        JsonToken token;
+        while ((token = json.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_ARRAY) {
+                throw new ActionParamsException(ERR_INPUT);
+            }
+            double x = readNumber(json, json.nextToken());
+            double y = readNumber(json, json.nextToken());
+            // Ignore possible third dimension
+            while (json.nextToken() != JsonToken.END_ARRAY) {
+                json.skipChildren();
+            }
+            xy = ensureCapacity(xy, n);
+            xy[n++] = x;
+            xy[n++] = y;
+        }
+
+        return n == xy.length ? xy : Arrays.copyOf(xy, n);
+    }
+
+    private double[] readFlatArray(JsonParser json) throws ActionParamsException, IOException {
+        double[] xy = new double[Math.min(INITIAL_CAPACITY, maxPoints * 2)];
+        int n = 0;
+
+        JsonToken token;
+        while ((token = json.nextToken()) != JsonToken.END_ARRAY) {
+            double value = readNumber(json, token);
+            if (n % 2 == 0) {
+                xy = ensureCapacity(xy, n);
+            }
+            xy[n++] = value;
+        }
+        if (n % 2 != 0) {
+            throw new ActionParamsException(ERR_ODD);
+        }
+
+        return n == xy.length ? xy : Arrays.copyOf(xy, n);
+    }
+
+    /**
+     * @return array with room for one more point
+     */
+    private double[] ensureCapacity(double[] xy, int n) throws ActionParamsException {
+        if (n == maxPoints * 2) {
+            throw new ActionParamsException(ERR_TOO_MANY + maxPoints);
+        }
+        if (n == xy.length) {
+            return Arrays.copyOf(xy, Math.min(xy.length * 2, maxPoints * 2));
+        }
+        return xy;
+    }
+
+    private double readNumber(JsonParser json, JsonToken token) throws ActionParamsException, IOException {
+        if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+            throw new ActionParamsException(ERR_INPUT);
+        }
+        return json.getDoubleValue();
+    }
+
+}
@@ -0,0 +1,102 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.List;
+
+/**
+ * Summary of a profile, accumulated piece by piece in order of distance
+ * from the start. Ascent and descent are summed over consecutive points
+ * with data as they are, without smoothing.
+ */
+public class ProfileStatistics {
+
+    private long count;
+    private long noDataCount;
+    private double length;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum;
+    private double ascent;
+    private double descent;
+    private double previous = Double.NaN;
+
+    public void accept(List<DataPoint> points) {
+        for (DataPoint p : points) {
+            accept(p);
+        }
+    }
+
+    public void accept(DataPoint p) {
+        length = p.getDistFromStart();
+        double altitude = p.getAltitude();
+        if (Double.isNaN(altitude)) {
+            noDataCount++;
+            return;
+        }
+        if (count == 0) {
+            min = altitude;
+            max = altitude;
+        } else {
+            min = Math.min(min, altitude);
+            max = Math.max(max, altitude);
+        }
+        count++;
+        sum += altitude;
+        if (!Double.isNaN(previous)) {
+            double diff = altitude - previous;
+            if (diff > 0) {
+                ascent += diff;
+            } else {
+                descent -= diff;
+            }
+        }
+        previous = altitude;
+    }
+
+    /**
+     * @return number of points with data
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getNoDataCount() {
+        return noDataCount;
+    }
+
+    /**
+     * @return distance from the start to the last point
+     */
+    public double getLength() {
+        return length;
+    }
+
+    /**
+     * @return smallest altitude, Double.NaN if no point had data
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return largest altitude, Double.NaN if no point had data
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return mean altitude of the points, Double.NaN if no point had data
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double getAscent() {
+        return ascent;
+    }
+
+    public double getDescent() {
+        return descent;
+    }
+
+}
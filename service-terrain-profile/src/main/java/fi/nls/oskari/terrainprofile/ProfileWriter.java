@@ -0,0 +1,13 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.List;
+
+/**
+ * Receives a profile piece by piece, in order of distance from the start
+ */
+@FunctionalInterface
+public interface ProfileWriter<E extends Exception> {
+
+    public void write(List<DataPoint> points) throws E;
+
+}
@@ -0,0 +1,63 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.Collections;
+
+import fi.nls.oskari.cache.JedisManager;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * TileStore in the Redis Oskari keeps its sessions in, connections are taken
+ * from the pool of JedisManager (redis.hostname, redis.port, redis.pool.size).
+ * Keys are prefixed with terrainprofile:.
+ */
+public class RedisTileStore implements TileStore {
+
+    private static final String PREFIX = "terrainprofile:tile:";
+    private static final String LOCK_PREFIX = "terrainprofile:lock:";
+    // delete the lock only if it's still ours, it may have expired and been taken by someone else
+    private static final String UNLOCK_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+    @Override
+    public byte[] get(String key) {
+        try (Jedis jedis = getClient()) {
+            return jedis.get(toBytes(PREFIX + key));
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] tile, long expirationMs) {
+        try (Jedis jedis = getClient()) {
+            jedis.set(toBytes(PREFIX + key), tile, SetParams.setParams().px(expirationMs));
+        }
+    }
+
+    @Override
+    public boolean tryLock(String key, String owner, long ttlMs) {
+        try (Jedis jedis = getClient()) {
+            return "OK".equals(jedis.set(LOCK_PREFIX + key, owner, SetParams.setParams().nx().px(ttlMs)));
+        }
+    }
+
+    @Override
+    public void unlock(String key, String owner) {
+        try (Jedis jedis = getClient()) {
+            jedis.eval(UNLOCK_SCRIPT, Collections.singletonList(LOCK_PREFIX + key),
+                    Collections.singletonList(owner));
+        }
+    }
+
+    private static Jedis getClient() {
+        Jedis jedis = JedisManager.getClient();
+        if (jedis == null) {
+            throw new IllegalStateException("No connection to Redis");
+        }
+        return jedis;
+    }
+
+    private static byte[] toBytes(String key) {
+        return key.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+}
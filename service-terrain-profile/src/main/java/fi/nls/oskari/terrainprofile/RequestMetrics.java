@@ -0,0 +1,238 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Where the time of a single request went, stage by stage, and how much was
+ * fetched for it. Bound to the thread handling the request so that the
+ * service can add to it without passing it around. Work done on other threads
+ * adds to it if the metrics are bound to that thread as well, time of such
+ * work may overlap so the stages can add up to more than the total.
+ */
+public class RequestMetrics {
+
+    public enum Stage {
+        PARSE("parse"),
+        TRANSFORM("transform"),
+        PLAN("plan"),
+        WCS("wcs"),
+        DECODE("decode"),
+        ENCODE("encode");
+
+        private final String id;
+
+        Stage(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    private static final String METRIC_PREFIX = "terrainprofile.request";
+    private static final Stage[] STAGES = Stage.values();
+    private static final ThreadLocal<RequestMetrics> CURRENT = new ThreadLocal<>();
+    // Bound when there's no request being measured, ignores everything
+    private static final RequestMetrics NONE = new RequestMetrics(null);
+
+    private final String route;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray stageNanos = new AtomicLongArray(STAGES.length);
+    private final AtomicLong tiles = new AtomicLong();
+    private final AtomicLong tileCacheHits = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile long totalNanos = -1;
+
+    private RequestMetrics(String route) {
+        this.route = route;
+    }
+
+    /**
+     * Starts measuring a request handled by the current thread
+     */
+    public static RequestMetrics start(String route) {
+        RequestMetrics metrics = new RequestMetrics(route);
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * @return metrics of the request the current thread is working for,
+     *         never null but ignores everything if none
+     */
+    public static RequestMetrics current() {
+        RequestMetrics metrics = CURRENT.get();
+        return metrics != null ? metrics : NONE;
+    }
+
+    /**
+     * Binds metrics to the current thread, for work done on behalf of a request on another thread
+     *
+     * @return metrics previously bound to the thread, to be restored with this method afterwards
+     */
+    public static RequestMetrics bind(RequestMetrics metrics) {
+        RequestMetrics previous = current();
+        if (metrics == NONE) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(metrics);
+        }
+        return previous;
+    }
+
+    /**
+     * Unbinds the metrics of the current thread, for a request that goes on
+     * on other threads and finishes there
+     */
+    public static void unbind() {
+        CURRENT.remove();
+    }
+
+    public boolean isEnabled() {
+        return this != NONE;
+    }
+
+    /**
+     * @return System.nanoTime() to pass to {@link #end(Stage, long)}, 0 if disabled
+     */
+    public long begin() {
+        return isEnabled() ? System.nanoTime() : 0L;
+    }
+
+    public void end(Stage stage, long beginNanos) {
+        if (isEnabled()) {
+            stageNanos.addAndGet(stage.ordinal(), System.nanoTime() - beginNanos);
+        }
+    }
+
+    /**
+     * A tile (GetCoverage response) used for the request, fetched or from the cache
+     */
+    public void tile(boolean fromCache) {
+        tiles.incrementAndGet();
+        if (fromCache) {
+            tileCacheHits.incrementAndGet();
+        }
+    }
+
+    /**
+     * A GetCoverage request, retried or not
+     */
+    public void request(long responseBytes) {
+        requests.incrementAndGet();
+        bytes.addAndGet(responseBytes);
+    }
+
+    /**
+     * A single attempt of a GetCoverage request, the first or a retry
+     */
+    public void attempt() {
+        attempts.incrementAndGet();
+    }
+
+    public long getStageMillis(Stage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(stageNanos.get(stage.ordinal()));
+    }
+
+    public long getTotalMillis() {
+        long nanos = totalNanos >= 0 ? totalNanos : System.nanoTime() - startNanos;
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public long getRetries() {
+        return Math.max(0, attempts.get() - requests.get());
+    }
+
+    /**
+     * @return value for a Server-Timing header, stages so far and the total
+     */
+    public String toServerTiming() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : STAGES) {
+            long nanos = stageNanos.get(stage.ordinal());
+            if (nanos > 0) {
+                sb.append(stage.getId()).append(";dur=").append(formatMillis(nanos)).append(", ");
+            }
+        }
+        sb.append("total;dur=").append(formatMillis(System.nanoTime() - startNanos));
+        return sb.toString();
+    }
+
+    /**
+     * @return the metrics as key=value pairs for a log line
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("route=").append(route);
+        sb.append(" total_ms=").append(getTotalMillis());
+        for (Stage stage : STAGES) {
+            sb.append(' ').append(stage.getId()).append("_ms=").append(getStageMillis(stage));
+        }
+        sb.append(" tiles=").append(tiles.get());
+        sb.append(" tile_cache_hits=").append(tileCacheHits.get());
+        sb.append(" wcs_requests=").append(requests.get());
+        sb.append(" retries=").append(getRetries());
+        sb.append(" bytes=").append(bytes.get());
+        return sb.toString();
+    }
+
+    /**
+     * Stops measuring, unbinds the metrics from the current thread and
+     * records them to the meter registry, once
+     *
+     * @return false if there was nothing to record or it was recorded already
+     * @see TerrainProfileMetrics#getRegistry()
+     */
+    public boolean finish() {
+        CURRENT.remove();
+        if (!isEnabled() || !finished.compareAndSet(false, true)) {
+            return false;
+        }
+        totalNanos = System.nanoTime() - startNanos;
+        MeterRegistry registry = TerrainProfileMetrics.getRegistry();
+        Timer.builder(METRIC_PREFIX)
+                .tag("route", route)
+                .register(registry)
+                .record(totalNanos, TimeUnit.NANOSECONDS);
+        for (Stage stage : STAGES) {
+            Timer.builder(METRIC_PREFIX + ".stage")
+                    .tag("route", route)
+                    .tag("stage", stage.getId())
+                    .register(registry)
+                    .record(stageNanos.get(stage.ordinal()), TimeUnit.NANOSECONDS);
+        }
+        DistributionSummary.builder(METRIC_PREFIX + ".tiles")
+                .tag("route", route)
+                .register(registry)
+                .record(tiles.get());
+        DistributionSummary.builder(METRIC_PREFIX + ".bytes")
+                .tag("route", route)
+                .baseUnit("bytes")
+                .register(registry)
+                .record(bytes.get());
+        Counter.builder(METRIC_PREFIX + ".retries")
+                .tag("route", route)
+                .register(registry)
+                .increment(getRetries());
+        return true;
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0);
+    }
+
+}
@@ -0,0 +1,53 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Token bucket that caps retries to a percentage of normal traffic.
+ * Every request deposits percent / 100 tokens, every retry withdraws one.
+ * The balance starts full and never exceeds maxBalance so that a quiet
+ * process can still retry a few times, but a struggling WCS won't get
+ * hammered with MAX_RETRIES attempts for every single request.
+ */
+public class RetryBudget {
+
+    // balance is kept in hundredths of a retry to avoid rounding errors
+    private static final int RETRY_COST = 100;
+
+    private final int deposit;
+    private final int maxBalance;
+    private int balance;
+
+    public RetryBudget(int percent, int maxBalance) {
+        if (percent < 0) {
+            throw new IllegalArgumentException("percent must be non-negative");
+        }
+        if (maxBalance < 1) {
+            throw new IllegalArgumentException("maxBalance must be positive");
+        }
+        this.deposit = percent;
+        this.maxBalance = maxBalance * RETRY_COST;
+        this.balance = this.maxBalance;
+    }
+
+    public synchronized void onRequest() {
+        balance = Math.min(balance + deposit, maxBalance);
+    }
+
+    /**
+     * @return true if a retry is allowed, in which case the budget is charged for it
+     */
+    public synchronized boolean tryAcquire() {
+        if (balance < RETRY_COST) {
+            return false;
+        }
+        balance -= RETRY_COST;
+        return true;
+    }
+
+    /**
+     * @return number of retries currently allowed, may be fractional
+     */
+    public synchronized double getBalance() {
+        return (double) balance / RETRY_COST;
+    }
+
+}
@@ -0,0 +1,44 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Route of a TerrainProfile request, coordinates are [x1,y1,...,xN,yN]
+ */
+public class Route {
+
+    private final double[] coordinates;
+    private final int numPoints;
+    private final double scaleFactor;
+    private final double spacing;
+
+    public Route(double[] coordinates, int numPoints, double scaleFactor) {
+        this(coordinates, numPoints, scaleFactor, 0.0);
+    }
+
+    /**
+     * @param spacing distance between the points of each segment in metres,
+     *        non-positive to sample numPoints points along the whole route instead
+     */
+    public Route(double[] coordinates, int numPoints, double scaleFactor, double spacing) {
+        this.coordinates = coordinates;
+        this.numPoints = numPoints;
+        this.scaleFactor = scaleFactor;
+        this.spacing = spacing;
+    }
+
+    public double[] getCoordinates() {
+        return coordinates;
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public double getSpacing() {
+        return spacing;
+    }
+
+}
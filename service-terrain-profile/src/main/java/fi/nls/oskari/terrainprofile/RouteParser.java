@@ -0,0 +1,188 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import fi.nls.oskari.control.ActionParamsException;
+
+/**
+ * Reads a GeoJSON Feature/LineString straight into a coordinate array in one
+ * pass without building a tree of the whole document. Members may appear in
+ * any order, validation errors are reported in the same order as if the
+ * document had been parsed into a tree first.
+ */
+public class RouteParser {
+
+    private static final String ERR_FEATURE = "Invalid input - expected GeoJSON feature";
+    private static final String ERR_LINESTRING = "Invalid input - expected LineString geometry";
+    static final String ERR_TOO_FEW = "Invalid input - expected LineString with atleast two coordinates";
+    static final String ERR_TOO_MANY = "Invalid input - too many coordinates, maximum is ";
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxCoordinates;
+
+    private boolean tooManyCoordinates;
+    private boolean invalidNumPoints;
+
+    public RouteParser(int maxCoordinates) {
+        this.maxCoordinates = maxCoordinates;
+    }
+
+    public Route parse(JsonParser json) throws ActionParamsException, IOException {
+        if (json.nextToken() != JsonToken.START_OBJECT) {
+            throw new ActionParamsException(ERR_FEATURE);
+        }
+
+        double[] coordinates = null;
+        int numPoints = 0;
+        double scaleFactor = 0.0;
+        double spacing = 0.0;
+
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            if ("geometry".equals(field)) {
+                if (value != JsonToken.START_OBJECT) {
+                    throw new ActionParamsException(ERR_FEATURE);
+                }
+                coordinates = readGeometry(json);
+            } else if (TerrainProfileHandler.JSON_PROPERTY_PROPERTIES.equals(field)
+                    && value == JsonToken.START_OBJECT) {
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    String property = json.getCurrentName();
+                    JsonToken propertyValue = json.nextToken();
+                    if (TerrainProfileHandler.JSON_PROPERTY_NUM_POINTS.equals(property)) {
+                        numPoints = readNumPoints(json, propertyValue);
+                    } else if (TerrainProfileHandler.JSON_PROPERTY_SCALE_FACTOR.equals(property)) {
+                        scaleFactor = readOptionalNumber(json, propertyValue);
+                    } else if (TerrainProfileHandler.JSON_PROPERTY_SPACING.equals(property)) {
+                        spacing = readOptionalNumber(json, propertyValue);
+                    } else {
+                        json.skipChildren();
+                    }
+                }
+            } else {
+                json.skipChildren();
+            }
+        }
+
+        if (coordinates == null) {
+            throw new ActionParamsException(ERR_FEATURE);
+        }
+        if (invalidNumPoints) {
+            throw new ActionParamsException(String.format(
+                    "Invalid property value '%s'", TerrainProfileHandler.JSON_PROPERTY_NUM_POINTS));
+        }
+        return new Route(coordinates, numPoints, scaleFactor, spacing);
+    }
+
+    private double[] readGeometry(JsonParser json) throws ActionParamsException, IOException {
+        String type = null;
+        double[] coordinates = null;
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            if ("type".equals(field)) {
+                type = value == JsonToken.VALUE_STRING ? json.getText() : null;
+                json.skipChildren();
+            } else if ("coordinates".equals(field)) {
+                if (value != JsonToken.START_ARRAY) {
+                    throw new ActionParamsException(ERR_LINESTRING);
+                }
+                coordinates = readCoordinates(json);
+            } else {
+                json.skipChildren();
+            }
+        }
+
+        if (!"LineString".equals(type) || coordinates == null) {
+            throw new ActionParamsException(ERR_LINESTRING);
+        }
+        if (coordinates.length < 4) {
+            throw new ActionParamsException(ERR_TOO_FEW);
+        }
+        if (tooManyCoordinates) {
+            throw new ActionParamsException(ERR_TOO_MANY + maxCoordinates);
+        }
+        return coordinates;
+    }
+
+    private double[] readCoordinates(JsonParser json) throws ActionParamsException, IOException {
+        double[] xy = new double[Math.min(INITIAL_CAPACITY, maxCoordinates * 2)];
+        int n = 0;
+
+        JsonToken token;
+        while ((token = json.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_ARRAY) {
+                throw new ActionParamsException(ERR_LINESTRING);
+            }
+            double x = readNumber(json);
+            double y = readNumber(json);
+            // Ignore possible third dimension
+            while (json.nextToken() != JsonToken.END_ARRAY) {
+                json.skipChildren();
+            }
+
+            if (n == maxCoordinates * 2) {
+                // Type of the geometry might not be known yet, keep on reading
+                // so that we report the same error as before
+                tooManyCoordinates = true;
+                while (json.nextToken() != JsonToken.END_ARRAY) {
+                    json.skipChildren();
+                }
+                break;
+            }
+            if (n == xy.length) {
+                xy = Arrays.copyOf(xy, Math.min(xy.length * 2, maxCoordinates * 2));
+            }
+            xy[n++] = x;
+            xy[n++] = y;
+        }
+
+        return n == xy.length ? xy : Arrays.copyOf(xy, n);
+    }
+
+    private double readNumber(JsonParser json) throws ActionParamsException, IOException {
+        JsonToken token = json.nextToken();
+        if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+            throw new ActionParamsException(ERR_LINESTRING);
+        }
+        return json.getDoubleValue();
+    }
+
+    private int readNumPoints(JsonParser json, JsonToken value) throws IOException {
+        if (value != JsonToken.VALUE_NUMBER_INT) {
+            invalidNumPoints = true;
+            json.skipChildren();
+            return 0;
+        }
+        double numPoints = json.getDoubleValue();
+        return (int) Math.max(Math.min(numPoints, Integer.MAX_VALUE), Integer.MIN_VALUE);
+    }
+
+    /**
+     * @return the number, also from a string, 0.0 if it's not one
+     */
+    private double readOptionalNumber(JsonParser json, JsonToken value) throws IOException {
+        double fallback = 0.0;
+        switch (value) {
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+            return json.getDoubleValue();
+        case VALUE_STRING:
+            try {
+                return Double.parseDouble(json.getText().trim());
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        default:
+            json.skipChildren();
+            return fallback;
+        }
+    }
+
+}
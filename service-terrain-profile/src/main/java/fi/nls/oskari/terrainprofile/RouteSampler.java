@@ -0,0 +1,121 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Walks along a LineString and hands out the points to profile in chunks.
+ * Either the coordinates of the LineString as they are, or numPoints evenly
+ * spaced points along it. Only the chunk being handed out is allocated, so
+ * the number of points can be far larger than what fits comfortably in memory
+ * at once.
+ */
+public class RouteSampler {
+
+    private final double[] coordinates;
+    private final int total;
+    private final boolean interpolate;
+
+    private int emitted;
+
+    // Interpolation state, the segment the previous point fell on
+    private double[] cumulativeLengths;
+    private double segmentLength;
+    private int segment = -1;
+    private double x0;
+    private double y0;
+    private double dxPerMetre;
+    private double dyPerMetre;
+
+    /**
+     * @param coordinates [x1,y1,...,xN,yN]
+     * @param numPoints number of points wanted, more points are interpolated
+     *        if the LineString has less coordinates than this
+     */
+    public RouteSampler(double[] coordinates, int numPoints) {
+        this.coordinates = coordinates;
+        this.interpolate = coordinates.length < numPoints * 2;
+        this.total = interpolate ? numPoints : coordinates.length / 2;
+        if (interpolate) {
+            cumulativeLengths = GeomUtil.getCumulativeLengths(coordinates);
+            segmentLength = cumulativeLengths[cumulativeLengths.length - 1] / (numPoints - 1);
+        }
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public boolean hasNext() {
+        return emitted < total;
+    }
+
+    /**
+     * @return next at most maxPoints points as [x1,y1,...,xN,yN]
+     */
+    public double[] next(int maxPoints) {
+        int n = Math.min(maxPoints, total - emitted);
+        double[] chunk = new double[n * 2];
+        if (!interpolate) {
+            System.arraycopy(coordinates, emitted * 2, chunk, 0, n * 2);
+            emitted += n;
+            return chunk;
+        }
+
+        // The points only move forward so the segment of each is found by
+        // walking on from the segment of the previous one. The points on
+        // the same segment are then filled in a loop free of branches.
+        int lastSegment = cumulativeLengths.length - 2;
+        int end = emitted + n;
+        int interpolatedEnd = Math.min(end, total - 1);
+        int i = 0;
+        while (emitted < interpolatedEnd) {
+            double distance = emitted * segmentLength;
+            if (segment < 0 || segment < lastSegment && cumulativeLengths[segment + 1] < distance) {
+                nextSegment(distance, lastSegment);
+            }
+            // A route of zero length has every point at its start
+            int stop = segment < lastSegment && segmentLength > 0
+                    ? Math.min(interpolatedEnd, getFirstPointPast(cumulativeLengths[segment + 1]))
+                    : interpolatedEnd;
+            double start = cumulativeLengths[segment];
+            for (; emitted < stop; emitted++) {
+                double d = emitted * segmentLength - start;
+                chunk[i++] = x0 + d * dxPerMetre;
+                chunk[i++] = y0 + d * dyPerMetre;
+            }
+        }
+        if (emitted < end) {
+            // Add last point as is, free of rounding errors
+            chunk[i++] = coordinates[coordinates.length - 2];
+            chunk[i++] = coordinates[coordinates.length - 1];
+            emitted++;
+        }
+        return chunk;
+    }
+
+    /**
+     * @return index of the first point farther than distance from the start,
+     *         at least emitted + 1
+     */
+    private int getFirstPointPast(double distance) {
+        long k = Math.max(emitted + 1, (long) (distance / segmentLength));
+        while (k * segmentLength <= distance) {
+            k++;
+        }
+        return (int) Math.min(k, Integer.MAX_VALUE);
+    }
+
+    private void nextSegment(double distance, int lastSegment) {
+        segment = Math.max(segment, 0);
+        while (segment < lastSegment && cumulativeLengths[segment + 1] < distance) {
+            segment++;
+        }
+        int j = segment * 2;
+        x0 = coordinates[j];
+        y0 = coordinates[j + 1];
+        // segment is at most lastSegment, so its end point always exists
+        double length = cumulativeLengths[segment + 1] - cumulativeLengths[segment];
+        // zero-length segments are only ever the segment of the first point, at their start
+        dxPerMetre = length > 0 ? (coordinates[j + 2] - x0) / length : 0.0;
+        dyPerMetre = length > 0 ? (coordinates[j + 3] - y0) / length : 0.0;
+    }
+
+}
@@ -0,0 +1,176 @@
+package fi.nls.oskari.terrainprofile;
+
+import fi.nls.oskari.log.LogFactory;
+import fi.nls.oskari.log.Logger;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.util.PropertyUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Second-level tile cache shared by every node, behind the tile cache of
+ * each node. Tiles are stored deflated in a {@link TileStore}. The node
+ * that needs a tile first takes a lock on it and fetches it from the WCS,
+ * the others needing the same tile meanwhile wait for it to appear in the
+ * store instead of fetching it themselves.
+ *
+ * If the store fails the tile is fetched as if there was no shared cache,
+ * a missing Redis slows things down but doesn't break them.
+ */
+public class SharedTileCache {
+
+    private static final Logger LOG = LogFactory.getLogger(SharedTileCache.class);
+
+    protected static final String PROPERTY_STORE = "terrain.profile.sharedTileCache";
+    protected static final String PROPERTY_EXPIRATION_MS = "terrain.profile.sharedTileCache.expirationms";
+    protected static final String PROPERTY_LOCK_MS = "terrain.profile.sharedTileCache.lockms";
+
+    private static final String STORE_REDIS = "redis";
+    private static final String STORE_MEMORY = "memory";
+    private static final int DEFAULT_EXPIRATION_MS = 24 * 60 * 60 * 1000;
+    private static final int DEFAULT_LOCK_MS = 30000;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private static SharedTileCache instance;
+    private static boolean initialized;
+
+    public interface Loader {
+        public byte[] load() throws ServiceException;
+    }
+
+    private final TileStore store;
+    private final long expirationMs;
+    private final long lockMs;
+
+    /**
+     * @param expirationMs time tiles are kept in the store
+     * @param lockMs time after which a lock is released even if the node holding it never does
+     */
+    public SharedTileCache(TileStore store, long expirationMs, long lockMs) {
+        this.store = store;
+        this.expirationMs = expirationMs;
+        this.lockMs = lockMs;
+    }
+
+    /**
+     * @return the shared tile cache configured with terrain.profile.sharedTileCache,
+     *         null if disabled (default)
+     */
+    public static synchronized SharedTileCache getInstance() {
+        if (!initialized) {
+            instance = create(PropertyUtil.getOptional(PROPERTY_STORE));
+            initialized = true;
+        }
+        return instance;
+    }
+
+    private static SharedTileCache create(String type) {
+        TileStore store;
+        if (STORE_REDIS.equalsIgnoreCase(type)) {
+            store = new RedisTileStore();
+        } else if (STORE_MEMORY.equalsIgnoreCase(type)) {
+            store = new MemoryTileStore();
+        } else {
+            if (type != null && !type.trim().isEmpty()) {
+                LOG.warn("Unknown", PROPERTY_STORE, type, "- shared tile cache disabled");
+            }
+            return null;
+        }
+        LOG.info("Using shared tile cache:", type);
+        return new SharedTileCache(store,
+                PropertyUtil.getOptional(PROPERTY_EXPIRATION_MS, DEFAULT_EXPIRATION_MS),
+                PropertyUtil.getOptional(PROPERTY_LOCK_MS, DEFAULT_LOCK_MS));
+    }
+
+    /**
+     * @return the tile from the store, or from loader if no node has fetched it yet
+     * @throws DeadlineExceededException if the deadline expires while waiting for another node
+     */
+    public byte[] get(String key, Loader loader, Deadline deadline) throws ServiceException {
+        String owner = UUID.randomUUID().toString();
+        while (true) {
+            boolean locked;
+            try {
+                byte[] stored = store.get(key);
+                if (stored != null) {
+                    return inflate(stored);
+                }
+                locked = store.tryLock(key, owner, lockMs);
+            } catch (DataFormatException | RuntimeException e) {
+                LOG.warn("Shared tile cache failed, fetching tile", key, ":", e.getMessage());
+                return loader.load();
+            }
+            if (locked) {
+                return loadAndStore(key, owner, loader);
+            }
+            long wait = Math.min(POLL_INTERVAL_MS, deadline.remainingMillis());
+            if (wait <= 0) {
+                throw new DeadlineExceededException();
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceException("Interrupted while waiting for tile " + key, e);
+            }
+        }
+    }
+
+    private byte[] loadAndStore(String key, String owner, Loader loader) throws ServiceException {
+        try {
+            byte[] tile = loader.load();
+            try {
+                store.put(key, deflate(tile), expirationMs);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to store tile", key, "in shared tile cache:", e.getMessage());
+            }
+            return tile;
+        } finally {
+            try {
+                store.unlock(key, owner);
+            } catch (RuntimeException e) {
+                LOG.debug("Failed to release lock of tile", key, ":", e.getMessage());
+            }
+        }
+    }
+
+    protected static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    protected static byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated tile");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Line of sight from an observer to a target, heights are above the ground
+ */
+public class SightLine {
+
+    private final double observerE;
+    private final double observerN;
+    private final double observerHeight;
+    private final double targetE;
+    private final double targetN;
+    private final double targetHeight;
+
+    public SightLine(double observerE, double observerN, double observerHeight,
+            double targetE, double targetN, double targetHeight) {
+        this.observerE = observerE;
+        this.observerN = observerN;
+        this.observerHeight = observerHeight;
+        this.targetE = targetE;
+        this.targetN = targetN;
+        this.targetHeight = targetHeight;
+    }
+
+    public double getObserverE() {
+        return observerE;
+    }
+
+    public double getObserverN() {
+        return observerN;
+    }
+
+    public double getObserverHeight() {
+        return observerHeight;
+    }
+
+    public double getTargetE() {
+        return targetE;
+    }
+
+    public double getTargetN() {
+        return targetN;
+    }
+
+    public double getTargetHeight() {
+        return targetHeight;
+    }
+
+    public double getLength() {
+        return GeomUtil.getDistance(observerE, observerN, targetE, targetN);
+    }
+
+}
@@ -0,0 +1,415 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.nls.oskari.log.LogFactory;
+import fi.nls.oskari.log.Logger;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.util.PropertyUtil;
+
+/**
+ * Computes the profiles and statistics of a large number of routes, for
+ * example a whole trail network, outside of the web app. Reads a GeoJSON
+ * FeatureCollection of LineStrings in the SRS of the coverage and writes a
+ * line of GeoJSON per route (newline delimited) as each route is done. The
+ * output doubles as the checkpoint: running again with the same output
+ * skips the routes already in it, so an interrupted run resumes where it
+ * left off and routes that failed are retried.
+ *
+ * Usage: TerrainProfileBatch oskari-ext.properties routes.geojson output.ndjson
+ *
+ * The coverage is configured with the same terrain.profile.wcs.* properties
+ * as the TerrainProfile route. The tile cache is enabled unless configured
+ * otherwise so that routes share the tiles they have in common.
+ */
+public class TerrainProfileBatch {
+
+    private static final Logger LOG = LogFactory.getLogger(TerrainProfileBatch.class);
+
+    protected static final String PROPERTY_THREADS = "terrain.profile.batch.threads";
+    protected static final String PROPERTY_STEP = "terrain.profile.batch.step";
+    protected static final String PROPERTY_SCALE_FACTOR = "terrain.profile.batch.scaleFactor";
+    protected static final String PROPERTY_TIMEOUT_MS = "terrain.profile.batch.timeoutms";
+    protected static final String PROPERTY_PROFILES = "terrain.profile.batch.profiles";
+    private static final String DEFAULT_STEP = "10";
+    private static final String DEFAULT_SCALE_FACTOR = "-1";
+    private static final int DEFAULT_TILE_CACHE_LIMIT = 256;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int LOG_INTERVAL = 1000;
+
+    private static final String JSON_PROPERTY_LENGTH = "length";
+    private static final String JSON_PROPERTY_MIN_ALTITUDE = "minAltitude";
+    private static final String JSON_PROPERTY_MAX_ALTITUDE = "maxAltitude";
+    private static final String JSON_PROPERTY_MEAN_ALTITUDE = "meanAltitude";
+    private static final String JSON_PROPERTY_ASCENT = "ascent";
+    private static final String JSON_PROPERTY_DESCENT = "descent";
+    private static final String JSON_PROPERTY_NO_DATA_POINTS = "noDataPoints";
+
+    private final TerrainProfileService tps;
+    private final ObjectMapper om = new ObjectMapper();
+    private final int threads;
+    private final double step;
+    private final double scaleFactor;
+    private final long timeoutMs;
+    private final boolean writeProfiles;
+
+    /**
+     * @param step distance between the points of the profile in metres
+     * @param scaleFactor non-positive to pick one by the extent of each route, like the TerrainProfile route
+     * @param timeoutMs time limit of a single route, non-positive for none
+     * @param writeProfiles true to write the points of the profile, false for the statistics only
+     */
+    public TerrainProfileBatch(TerrainProfileService tps, int threads, double step, double scaleFactor,
+            long timeoutMs, boolean writeProfiles) {
+        this.tps = tps;
+        this.threads = threads;
+        this.step = step;
+        this.scaleFactor = scaleFactor;
+        this.timeoutMs = timeoutMs;
+        this.writeProfiles = writeProfiles;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: TerrainProfileBatch oskari-ext.properties routes.geojson output.ndjson");
+            System.exit(1);
+        }
+        loadProperties(Paths.get(args[0]));
+        if (PropertyUtil.getOptional(TerrainProfileService.PROPERTY_TILE_CACHE_LIMIT) == null) {
+            PropertyUtil.addProperty(TerrainProfileService.PROPERTY_TILE_CACHE_LIMIT,
+                    Integer.toString(DEFAULT_TILE_CACHE_LIMIT), true);
+        }
+        TerrainProfileServiceProvider provider = TerrainProfileHandler.createProvider();
+        provider.start();
+        TerrainProfileBatch batch = new TerrainProfileBatch(provider.get(),
+                PropertyUtil.getOptional(PROPERTY_THREADS, Runtime.getRuntime().availableProcessors()),
+                Double.parseDouble(PropertyUtil.get(PROPERTY_STEP, DEFAULT_STEP)),
+                Double.parseDouble(PropertyUtil.get(PROPERTY_SCALE_FACTOR, DEFAULT_SCALE_FACTOR)),
+                PropertyUtil.getOptional(PROPERTY_TIMEOUT_MS, 0),
+                PropertyUtil.getOptional(PROPERTY_PROFILES, false));
+        Result result = batch.run(Paths.get(args[1]), Paths.get(args[2]));
+        System.exit(result.getFailed() > 0 ? 2 : 0);
+    }
+
+    private static void loadProperties(Path file) throws Exception {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            PropertyUtil.addProperty(key, properties.getProperty(key), true);
+        }
+    }
+
+    public static class Result {
+        private final long done;
+        private final long skipped;
+        private final long failed;
+
+        public Result(long done, long skipped, long failed) {
+            this.done = done;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+
+        /**
+         * @return number of routes written during this run
+         */
+        public long getDone() {
+            return done;
+        }
+
+        /**
+         * @return number of routes skipped, already in the output or not LineStrings
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return number of routes that failed, they are tried again on the next run
+         */
+        public long getFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * Profiles every route of input not already in output, appending them to output
+     */
+    public Result run(Path input, Path output) throws IOException, InterruptedException {
+        Set<String> done = resume(output);
+        if (!done.isEmpty()) {
+            LOG.info("Resuming,", done.size(), "routes already in", output);
+        }
+        AtomicLong written = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long skipped = 0;
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Don't read ahead more than there are routes being profiled
+        Semaphore inFlight = new Semaphore(threads * 2);
+        try (OutputStream out = Files.newOutputStream(output,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                JsonParser parser = om.getFactory().createParser(new BufferedInputStream(Files.newInputStream(input)))) {
+            if (!toFeatures(parser)) {
+                throw new IOException("Expected GeoJSON FeatureCollection");
+            }
+            long index = 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode feature = om.readTree(parser);
+                String id = getId(feature, index++);
+                double[] coordinates = getLineString(feature);
+                if (coordinates == null || done.contains(id)) {
+                    skipped++;
+                    continue;
+                }
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        byte[] line = profile(id, coordinates);
+                        writeLine(out, line);
+                        long n = written.incrementAndGet();
+                        if (n % LOG_INTERVAL == 0) {
+                            LOG.info(n, "routes done,", failed.get(), "failed");
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        LOG.warn("Failed to profile route", id, ":", e.getMessage());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Done in", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), "s:",
+                written.get(), "routes written,", skipped, "skipped,", failed.get(), "failed");
+        return new Result(written.get(), skipped, failed.get());
+    }
+
+    /**
+     * Moves the parser to the start of the features array
+     *
+     * @return false if there's no features array at the top level
+     */
+    private static boolean toFeatures(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("features".equals(field) && value == JsonToken.START_ARRAY) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * @return id of the feature, its index in the input if it has none
+     */
+    private static String getId(JsonNode feature, long index) {
+        JsonNode id = feature.get("id");
+        return id != null && !id.isNull() ? id.asText() : Long.toString(index);
+    }
+
+    /**
+     * @return coordinates of a LineString feature as [x1,y1,...,xN,yN], null for other features
+     */
+    private static double[] getLineString(JsonNode feature) {
+        JsonNode geometry = feature.get("geometry");
+        if (geometry == null || !"LineString".equals(geometry.path("type").asText())) {
+            return null;
+        }
+        JsonNode coordinates = geometry.get("coordinates");
+        if (coordinates == null || coordinates.size() < 2) {
+            return null;
+        }
+        double[] arr = new double[coordinates.size() * 2];
+        for (int i = 0; i < coordinates.size(); i++) {
+            arr[i * 2] = coordinates.get(i).get(0).asDouble();
+            arr[i * 2 + 1] = coordinates.get(i).get(1).asDouble();
+        }
+        return arr;
+    }
+
+    /**
+     * @return the route as a line of GeoJSON, without the line feed
+     */
+    protected byte[] profile(String id, double[] coordinates) throws ServiceException, IOException {
+        int numPoints = (int) Math.ceil(GeomUtil.getLength(coordinates) / step) + 1;
+        ProfileStatistics stats = new ProfileStatistics();
+        List<DataPoint> points = writeProfiles ? new ArrayList<>() : null;
+        tps.getTerrainProfile(coordinates, numPoints, scaleFactor, Deadline.after(timeoutMs), CHUNK_SIZE,
+                piece -> {
+                    stats.accept(piece);
+                    if (points != null) {
+                        points.addAll(piece);
+                    }
+                });
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (JsonGenerator json = om.getFactory().createGenerator(baos)) {
+            json.writeStartObject();
+            // id first so that resume() finds it without reading the whole line
+            json.writeStringField("id", id);
+            json.writeStringField("type", "Feature");
+            json.writeFieldName("geometry");
+            if (points == null) {
+                json.writeNull();
+            } else {
+                writeMultiPoint(points, json);
+            }
+            json.writeFieldName("properties");
+            json.writeStartObject();
+            json.writeNumberField(TerrainProfileHandler.JSON_PROPERTY_NUM_POINTS, stats.getCount() + stats.getNoDataCount());
+            json.writeNumberField(JSON_PROPERTY_NO_DATA_POINTS, stats.getNoDataCount());
+            json.writeNumberField(JSON_PROPERTY_LENGTH, stats.getLength());
+            writeNumberOrNull(json, JSON_PROPERTY_MIN_ALTITUDE, stats.getMin());
+            writeNumberOrNull(json, JSON_PROPERTY_MAX_ALTITUDE, stats.getMax());
+            writeNumberOrNull(json, JSON_PROPERTY_MEAN_ALTITUDE, stats.getMean());
+            json.writeNumberField(JSON_PROPERTY_ASCENT, stats.getAscent());
+            json.writeNumberField(JSON_PROPERTY_DESCENT, stats.getDescent());
+            if (points != null) {
+                json.writeFieldName(TerrainProfileHandler.JSON_PROPERTY_DISTANCE_FROM_START);
+                json.writeStartArray();
+                for (DataPoint p : points) {
+                    json.writeNumber(p.getDistFromStart());
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        return baos.toByteArray();
+    }
+
+    private static void writeMultiPoint(List<DataPoint> points, JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("type", "MultiPoint");
+        json.writeFieldName("coordinates");
+        json.writeStartArray();
+        for (DataPoint p : points) {
+            json.writeStartArray();
+            json.writeNumber(p.getE());
+            json.writeNumber(p.getN());
+            if (Double.isNaN(p.getAltitude())) {
+                json.writeNull();
+            } else {
+                json.writeNumber(p.getAltitude());
+            }
+            json.writeEndArray();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+
+    private static void writeNumberOrNull(JsonGenerator json, String field, double value) throws IOException {
+        if (Double.isNaN(value)) {
+            json.writeNullField(field);
+        } else {
+            json.writeNumberField(field, value);
+        }
+    }
+
+    /**
+     * Lines are written whole and flushed so that an interrupted run leaves
+     * at most the last line incomplete
+     */
+    private static synchronized void writeLine(OutputStream out, byte[] line) throws IOException {
+        out.write(line);
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Reads the ids of the routes already in the output and cuts off an
+     * incomplete last line left by an interrupted run
+     *
+     * @return ids of the routes in output, empty if there's no output yet
+     */
+    protected static Set<String> resume(Path output) throws IOException {
+        Set<String> ids = new HashSet<>();
+        if (!Files.exists(output)) {
+            return ids;
+        }
+        JsonFactory factory = new JsonFactory();
+        long complete = 0;
+        long position = 0;
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output))) {
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String id = readId(factory, line.toByteArray());
+                if (id != null) {
+                    ids.add(id);
+                }
+                line.reset();
+                complete = position;
+            }
+        }
+        if (complete < position) {
+            LOG.info("Removing incomplete last line of", output);
+            try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                channel.truncate(complete);
+            }
+        }
+        return ids;
+    }
+
+    private static String readId(JsonFactory factory, byte[] line) throws IOException {
+        try (JsonParser parser = factory.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("id".equals(field)) {
+                    return parser.getValueAsString();
+                }
+                parser.skipChildren();
+            }
+        }
+        return null;
+    }
+
+}
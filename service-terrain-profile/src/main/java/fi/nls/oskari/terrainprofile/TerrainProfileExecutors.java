@@ -0,0 +1,147 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fi.nls.oskari.util.PropertyUtil;
+
+/**
+ * Thread pools of a coverage, shared by every TerrainProfileService loaded
+ * for it so that reloading the coverage doesn't start new threads. Each pool
+ * is created on first use and shut down on {@link #close()}.
+ */
+public class TerrainProfileExecutors implements AutoCloseable {
+
+    private static final int DEFAULT_FETCH_POOL_SIZE = 16;
+    private static final int SCHEDULER_POOL_SIZE = 3;
+    private static final int VISIBILITY_QUEUE_PER_THREAD = 64;
+    private static final int ASYNC_QUEUE_PER_THREAD = 4;
+
+    private final List<ExecutorService> created = new ArrayList<>();
+    private boolean closed;
+
+    // decodes TIFF tiles so that decoding can't take over every core
+    private ForkJoinPool decodePool;
+    // GetCoverage requests of additional coverages, CoverageLoader limits how many are in flight
+    private ExecutorService fetchExecutor;
+    // checks lines of sight so that visibility requests can't take over every core
+    private ExecutorService visibilityExecutor;
+    // samples the tiles of asynchronous requests once they have been fetched
+    private ExecutorService asyncExecutor;
+    // times out and schedules the retries of GetCoverage requests
+    private ScheduledExecutorService scheduler;
+    // loads the coverage metadata, loads are rare and mostly wait on the WCS
+    private ExecutorService initExecutor;
+
+    public synchronized ForkJoinPool getDecodePool() {
+        if (decodePool == null) {
+            int poolSize = PropertyUtil.getOptional(TerrainProfileService.PROPERTY_DECODE_POOL_SIZE,
+                    Runtime.getRuntime().availableProcessors());
+            decodePool = add(new ForkJoinPool(poolSize));
+        }
+        return decodePool;
+    }
+
+    /**
+     * Coverages the pool has no room for are fetched on the thread of the request
+     */
+    public synchronized ExecutorService getFetchExecutor() {
+        if (fetchExecutor == null) {
+            int poolSize = PropertyUtil.getOptional(TerrainProfileService.PROPERTY_FETCH_POOL_SIZE,
+                    DEFAULT_FETCH_POOL_SIZE);
+            fetchExecutor = add(createBounded("terrainprofile-fetch", poolSize,
+                    new LinkedBlockingQueue<>(poolSize)));
+        }
+        return fetchExecutor;
+    }
+
+    /**
+     * Lines the pool has no room for are checked on the thread of the request
+     */
+    public synchronized ExecutorService getVisibilityExecutor() {
+        if (visibilityExecutor == null) {
+            int poolSize = PropertyUtil.getOptional(TerrainProfileService.PROPERTY_VISIBILITY_POOL_SIZE,
+                    Runtime.getRuntime().availableProcessors());
+            visibilityExecutor = add(createBounded("terrainprofile-visibility", poolSize,
+                    new LinkedBlockingQueue<>(VISIBILITY_QUEUE_PER_THREAD * poolSize)));
+        }
+        return visibilityExecutor;
+    }
+
+    /**
+     * Tiles the pool has no room for are sampled on the thread that fetched them
+     */
+    public synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            int poolSize = PropertyUtil.getOptional(TerrainProfileService.PROPERTY_ASYNC_POOL_SIZE,
+                    Runtime.getRuntime().availableProcessors());
+            asyncExecutor = add(createBounded("terrainprofile-async", poolSize,
+                    new LinkedBlockingQueue<>(ASYNC_QUEUE_PER_THREAD * poolSize)));
+        }
+        return asyncExecutor;
+    }
+
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = add(Executors.newScheduledThreadPool(SCHEDULER_POOL_SIZE,
+                    daemon("terrainprofile-scheduler")));
+        }
+        return scheduler;
+    }
+
+    public synchronized ExecutorService getInitExecutor() {
+        if (initExecutor == null) {
+            initExecutor = add(Executors.newCachedThreadPool(daemon("terrainprofile-init")));
+        }
+        return initExecutor;
+    }
+
+    /**
+     * Shuts down the pools created so far. Work already queued is finished,
+     * after this the fetch, visibility and async pools run what they are
+     * given on the calling thread and the others reject it.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (ExecutorService executor : created) {
+            executor.shutdown();
+        }
+        created.clear();
+    }
+
+    private <T extends ExecutorService> T add(T executor) {
+        if (closed) {
+            executor.shutdown();
+            throw new IllegalStateException("Executors have been closed");
+        }
+        created.add(executor);
+        return executor;
+    }
+
+    private static ExecutorService createBounded(String name, int poolSize, BlockingQueue<Runnable> queue) {
+        // Unlike CallerRunsPolicy runs the task also after close() so that no request is left waiting for it
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                queue, daemon(name), (task, pool) -> task.run());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+}
@@ -1,11 +1,14 @@
 package fi.nls.oskari.terrainprofile;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import fi.nls.oskari.annotation.OskariActionRoute;
+import fi.nls.oskari.cache.Cache;
+import fi.nls.oskari.cache.CacheManager;
 import fi.nls.oskari.control.*;
 import fi.nls.oskari.log.LogFactory;
 import fi.nls.oskari.log.Logger;
@@ -20,12 +23,34 @@ import fi.nls.oskari.util.ResponseHelper;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
 import org.geotools.referencing.CRS;
 import org.geotools.api.referencing.FactoryException;
 import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
@@ -39,6 +64,21 @@ public class TerrainProfileHandler extends ActionHandler {
     private static final Logger LOG = LogFactory.getLogger(TerrainProfileHandler.class);
 
     protected static final String PARAM_ROUTE = "route";
+    protected static final String PARAM_ENCODING = "encoding";
+    protected static final String PARAM_PRECISION = "precision";
+    protected static final String PARAM_FORMAT = "format";
+    protected static final String PARAM_LOD = "lod";
+    protected static final String PARAM_REFINE_TOKEN = "refineToken";
+    protected static final String PARAM_COVERAGES = "coverages";
+
+    protected static final String ENCODING_GEOJSON = "geojson";
+    protected static final String ENCODING_POLYLINE = "polyline";
+
+    protected static final String FORMAT_GEOJSON = "geojson";
+    protected static final String FORMAT_NDJSON = "ndjson";
+
+    protected static final String LOD_FULL = "full";
+    protected static final String LOD_COARSE = "coarse";
 
     protected static final String PROPERTY_ENDPOINT = "terrain.profile.wcs.endPoint";
     protected static final String PROPERTY_ENDPOINT_SRS = "terrain.profile.wcs.srs";
@@ -48,18 +88,67 @@ public class TerrainProfileHandler extends ActionHandler {
     protected static final String PROPERTY_DEM_TYPE = "terrain.profile.wcs.demType";
     protected static final String PROPERTY_DEM_SCALE = "terrain.profile.wcs.demScale";
     protected static final String PROPERTY_DEM_OFFSET = "terrain.profile.wcs.demOffset";
+    protected static final String PROPERTY_REQUEST_TIMEOUT_MS = "terrain.profile.timeoutms";
+    protected static final String PROPERTY_CACHE_LIMIT = "terrain.profile.cache.limit";
+    protected static final String PROPERTY_CACHE_EXPIRATION_MS = "terrain.profile.cache.expirationms";
+    protected static final String PROPERTY_MAX_COORDINATES = "terrain.profile.maxCoordinates";
+    protected static final String PROPERTY_MAX_BODY_BYTES = "terrain.profile.maxBodyBytes";
+    protected static final String PROPERTY_CHUNK_SIZE = "terrain.profile.chunkSize";
+    protected static final String PROPERTY_COARSE_TIMEOUT_MS = "terrain.profile.lod.coarseTimeoutms";
+    protected static final String PROPERTY_COVERAGES = "terrain.profile.coverages";
+    protected static final String PROPERTY_COVERAGE_PREFIX = "terrain.profile.coverage.";
+    protected static final String PROPERTY_SNAPSHOT_DIR = "terrain.profile.snapshot.dir";
+    protected static final String PROPERTY_SERVER_TIMING = "terrain.profile.serverTiming";
+    protected static final String PROPERTY_SLOW_REQUEST_MS = "terrain.profile.slowRequestms";
+    protected static final String PROPERTY_ASYNC = "terrain.profile.async";
 
     protected static final String JSON_PROPERTY_PROPERTIES = "properties";
     protected static final String JSON_PROPERTY_NUM_POINTS = "numPoints";
     protected static final String JSON_PROPERTY_SCALE_FACTOR = "scaleFactor";
+    protected static final String JSON_PROPERTY_SPACING = "spacing";
     protected static final String JSON_PROPERTY_DISTANCE_FROM_START = "distanceFromStart";
+    protected static final String JSON_PROPERTY_LOD = "lod";
+    protected static final String JSON_PROPERTY_REFINE_TOKEN = "refineToken";
+    protected static final String JSON_PROPERTY_ALTITUDES = "altitudes";
 
     private static final int NUM_POINTS_MAX = 1000;
-    private static final String DEFAULT_SRS = "EPSG:3067";
+    protected static final String DEFAULT_SRS = "EPSG:3067";
+    protected static final int DEFAULT_REQUEST_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_CACHE_LIMIT = 200;
+    private static final int DEFAULT_CACHE_EXPIRATION_MS = 10 * 60 * 1000;
+    protected static final int DEFAULT_MAX_COORDINATES = 20000;
+    protected static final int DEFAULT_MAX_BODY_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_COARSE_TIMEOUT_MS = 2000;
+    private static final int DEFAULT_SLOW_REQUEST_MS = 5000;
+    // the container times out asynchronous requests this long after the deadline, as a backstop
+    private static final int ASYNC_TIMEOUT_MARGIN_MS = 5000;
+
+    private static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_SERVER_TIMING = "Server-Timing";
+    private static final String ROUTE = "TerrainProfile";
 
     private final ObjectMapper om;
-    private TerrainProfileService tps;
+    private final Cache<ByteArrayOutputStream> responseCache;
+    private final Cache<Refinement> pendingRefinements;
+    // the default coverage, shared by every handler using it
+    private static volatile TerrainProfileServiceProvider defaultProvider;
+
+    // additional coverages by name
+    private final Map<String, TerrainProfileServiceProvider> coverages = new ConcurrentHashMap<>();
+    private Set<String> coverageNames = Collections.emptySet();
+    private final TerrainProfileService tps;
     private String serviceSrs;
+    private int requestTimeoutMs = DEFAULT_REQUEST_TIMEOUT_MS;
+    private int maxCoordinates = DEFAULT_MAX_COORDINATES;
+    private int maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int coarseTimeoutMs = DEFAULT_COARSE_TIMEOUT_MS;
+    private boolean serverTiming;
+    private int slowRequestMs = DEFAULT_SLOW_REQUEST_MS;
+    private boolean async;
 
     public TerrainProfileHandler() {
         this(new ObjectMapper(), null);
@@ -68,53 +157,175 @@ public class TerrainProfileHandler extends ActionHandler {
     public TerrainProfileHandler(ObjectMapper om, TerrainProfileService tps) {
         this.om = om;
         this.tps = tps;
+        this.responseCache = CacheManager.getCache(TerrainProfileHandler.class.getName());
+        this.pendingRefinements = CacheManager.getCache(TerrainProfileHandler.class.getName() + ".refine");
     }
 
     @Override
     public void init() {
-        try {
-            tps = getService();
-        } catch (NoSuchElementException propertyMissing) {
-            // fatal, throw an exception so this route is not added to available actions
-            throw new ServiceRuntimeException(
-                    "Failed to init TerrainProfileService: " + propertyMissing.getMessage());
-        } catch (ServiceException ex) {
-            // not fatal, proceed with init and try again later
-            LOG.error("Failed to init TerrainProfileService: " + ex.getMessage(), ex);
+        if (tps == null) {
+            try {
+                // starts from the snapshot, if any, and loads in the background
+                getDefaultProvider();
+                TileCacheWarmer.startIfConfigured();
+            } catch (NoSuchElementException propertyMissing) {
+                // fatal, throw an exception so this route is not added to available actions
+                throw new ServiceRuntimeException(
+                        "Failed to init TerrainProfileService: " + propertyMissing.getMessage());
+            }
         }
         serviceSrs = PropertyUtil.get(PROPERTY_ENDPOINT_SRS, DEFAULT_SRS).toUpperCase();
+        requestTimeoutMs = PropertyUtil.getOptional(PROPERTY_REQUEST_TIMEOUT_MS, DEFAULT_REQUEST_TIMEOUT_MS);
+        int cacheLimit = PropertyUtil.getOptional(PROPERTY_CACHE_LIMIT, DEFAULT_CACHE_LIMIT);
+        int cacheExpirationMs = PropertyUtil.getOptional(PROPERTY_CACHE_EXPIRATION_MS, DEFAULT_CACHE_EXPIRATION_MS);
+        responseCache.setLimit(cacheLimit);
+        responseCache.setExpiration(cacheExpirationMs);
+        TerrainProfileMetrics.monitor(responseCache, "responses");
+        // A token is good for as long as the response it refers to would be
+        pendingRefinements.setLimit(cacheLimit);
+        pendingRefinements.setExpiration(cacheExpirationMs);
+        maxCoordinates = PropertyUtil.getOptional(PROPERTY_MAX_COORDINATES, DEFAULT_MAX_COORDINATES);
+        maxBodyBytes = PropertyUtil.getOptional(PROPERTY_MAX_BODY_BYTES, DEFAULT_MAX_BODY_BYTES);
+        chunkSize = PropertyUtil.getOptional(PROPERTY_CHUNK_SIZE, DEFAULT_CHUNK_SIZE);
+        coarseTimeoutMs = PropertyUtil.getOptional(PROPERTY_COARSE_TIMEOUT_MS, DEFAULT_COARSE_TIMEOUT_MS);
+        serverTiming = PropertyUtil.getOptional(PROPERTY_SERVER_TIMING, false);
+        slowRequestMs = PropertyUtil.getOptional(PROPERTY_SLOW_REQUEST_MS, DEFAULT_SLOW_REQUEST_MS);
+        async = PropertyUtil.getOptional(PROPERTY_ASYNC, false);
+        Set<String> names = new LinkedHashSet<>(Arrays.asList(PropertyUtil.getCommaSeparatedList(PROPERTY_COVERAGES)));
+        for (String name : names) {
+            try {
+                TerrainProfileServiceProvider provider = createProvider(name);
+                provider.start();
+                coverages.put(name, provider);
+            } catch (NoSuchElementException propertyMissing) {
+                throw new ServiceRuntimeException(
+                        "Failed to init coverage " + name + ": " + propertyMissing.getMessage());
+            }
+        }
+        coverageNames = names;
     }
 
-    protected synchronized TerrainProfileService getService() throws ServiceException {
-        if (tps == null) {
-            tps = new TerrainProfileService(
-                    PropertyUtil.getNecessary(PROPERTY_ENDPOINT),
-                    PropertyUtil.getNecessary(PROPERTY_DEM_COVERAGE_ID),
-                    PropertyUtil.getOptional(PROPERTY_DEM_APIKEY),
-                    getTileValueExtractor());
+    /**
+     * Shuts down the thread pools of the coverages
+     */
+    @Override
+    public void teardown() {
+        for (TerrainProfileServiceProvider provider : coverages.values()) {
+            provider.close();
+        }
+        coverages.clear();
+        TerrainProfileServiceProvider provider;
+        synchronized (TerrainProfileHandler.class) {
+            provider = defaultProvider;
+            defaultProvider = null;
+        }
+        if (provider != null) {
+            provider.close();
+        }
+    }
+
+    /**
+     * Doesn't block other requests. Waits only if the service is not
+     * available yet, sharing the load with any other request waiting for it.
+     */
+    protected TerrainProfileService getService() throws ServiceException {
+        if (tps != null) {
+            return tps;
         }
-        return tps;
+        return getDefaultProvider().get();
     }
 
-    private Supplier<TileValueExtractor> getTileValueExtractor() {
-        String type = PropertyUtil.get(PROPERTY_DEM_TYPE, FloatAsIsValueExtractor.ID);
+    /**
+     * @return the additional coverage, null if no such coverage is configured
+     */
+    protected TerrainProfileService getCoverage(String name) throws ServiceException {
+        TerrainProfileServiceProvider provider = coverages.get(name);
+        return provider != null ? provider.get() : null;
+    }
+
+    /**
+     * @return the provider of the default coverage, started on first call
+     * @throws NoSuchElementException if a required property is missing
+     */
+    static TerrainProfileServiceProvider getDefaultProvider() {
+        TerrainProfileServiceProvider provider = defaultProvider;
+        if (provider != null) {
+            return provider;
+        }
+        synchronized (TerrainProfileHandler.class) {
+            if (defaultProvider == null) {
+                provider = createProvider();
+                provider.start();
+                defaultProvider = provider;
+            }
+            return defaultProvider;
+        }
+    }
+
+    /**
+     * Creates the provider of the coverage configured with terrain.profile.wcs.* properties
+     */
+    static TerrainProfileServiceProvider createProvider() {
+        String coverageId = PropertyUtil.getNecessary(PROPERTY_DEM_COVERAGE_ID);
+        return new TerrainProfileServiceProvider(
+                PropertyUtil.getNecessary(PROPERTY_ENDPOINT),
+                coverageId,
+                PropertyUtil.getOptional(PROPERTY_DEM_APIKEY),
+                getTileValueExtractor(PROPERTY_DEM_TYPE, PROPERTY_DEM_SCALE, PROPERTY_DEM_OFFSET,
+                        PROPERTY_NODATA_VALUE),
+                getSnapshot(coverageId));
+    }
+
+    /**
+     * Creates the provider of an additional coverage configured with
+     * terrain.profile.coverage.[name].* properties, endPoint and APIkey
+     * default to those of the default coverage
+     */
+    static TerrainProfileServiceProvider createProvider(String name) {
+        String prefix = PROPERTY_COVERAGE_PREFIX + name + '.';
+        String endPoint = PropertyUtil.getOptional(prefix + "endPoint");
+        String apiKey = PropertyUtil.getOptional(prefix + "APIkey");
+        String coverageId = PropertyUtil.getNecessary(prefix + "demCoverageId");
+        return new TerrainProfileServiceProvider(
+                endPoint != null ? endPoint : PropertyUtil.getNecessary(PROPERTY_ENDPOINT),
+                coverageId,
+                apiKey != null ? apiKey : PropertyUtil.getOptional(PROPERTY_DEM_APIKEY),
+                getTileValueExtractor(prefix + "demType", prefix + "demScale", prefix + "demOffset",
+                        prefix + "noData"),
+                getSnapshot(coverageId));
+    }
+
+    /**
+     * @return snapshot file of the coverage metadata, null if snapshots are not configured
+     */
+    private static Path getSnapshot(String coverageId) {
+        String dir = PropertyUtil.getOptional(PROPERTY_SNAPSHOT_DIR);
+        if (dir == null || dir.isBlank()) {
+            return null;
+        }
+        return Paths.get(dir, coverageId.replaceAll("[^A-Za-z0-9._-]", "_") + ".wcs");
+    }
+
+    private static Supplier<TileValueExtractor> getTileValueExtractor(String typeProperty,
+            String scaleProperty, String offsetProperty, String noDataProperty) {
+        String type = PropertyUtil.get(typeProperty, FloatAsIsValueExtractor.ID);
 
         switch (type) {
         case ScaledGrayscaleValueExtractor.ID:
-            double scale = Double.parseDouble(PropertyUtil.getNecessary(PROPERTY_DEM_SCALE));
-            double offset = Double.parseDouble(PropertyUtil.getNecessary(PROPERTY_DEM_OFFSET));
-            short noDataS = getNoDataValue(Short::parseShort).shortValue();
+            double scale = Double.parseDouble(PropertyUtil.getNecessary(scaleProperty));
+            double offset = Double.parseDouble(PropertyUtil.getNecessary(offsetProperty));
+            short noDataS = getNoDataValue(noDataProperty, Short::parseShort).shortValue();
             return () -> new ScaledGrayscaleValueExtractor(scale, offset, noDataS);
 
         case FloatAsIsValueExtractor.ID:
         default:
-            float noDataF = getNoDataValue(Float::parseFloat).floatValue();
+            float noDataF = getNoDataValue(noDataProperty, Float::parseFloat).floatValue();
             return () -> new FloatAsIsValueExtractor(noDataF);
         }
     }
 
-    private Number getNoDataValue(Function<String, Number> parser) {
-        String noDataStr = PropertyUtil.getOptional(PROPERTY_NODATA_VALUE);
+    private static Number getNoDataValue(String property, Function<String, Number> parser) {
+        String noDataStr = PropertyUtil.getOptional(property);
         if (noDataStr != null && !noDataStr.isEmpty()) {
             try {
                 Number noDataValue = parser.apply(noDataStr);
@@ -129,21 +340,91 @@ public class TerrainProfileHandler extends ActionHandler {
 
     @Override
     public void handleAction(ActionParameters params) throws ActionException {
-        JsonNode route = getParamRoute(params);
+        RequestMetrics metrics = RequestMetrics.start(ROUTE);
+        try {
+            handleProfile(params);
+        } finally {
+            HttpServletRequest request = params.getRequest();
+            if (request != null && request.isAsyncStarted()) {
+                // finished by the request once it completes, see writeProfileAsync()
+                RequestMetrics.unbind();
+            } else {
+                finish(params, metrics);
+            }
+        }
+    }
+
+    private void finish(ActionParameters params, RequestMetrics metrics) {
+        if (metrics.finish() && slowRequestMs > 0 && metrics.getTotalMillis() >= slowRequestMs) {
+            LOG.warn("Slow request:", metrics,
+                    "format=" + params.getHttpParam(PARAM_FORMAT, FORMAT_GEOJSON),
+                    "lod=" + params.getHttpParam(PARAM_LOD, LOD_FULL));
+        }
+    }
+
+    private void handleProfile(ActionParameters params) throws ActionException {
+        RequestMetrics metrics = RequestMetrics.current();
+        Deadline deadline = Deadline.after(requestTimeoutMs);
+        String refineToken = params.getHttpParam(PARAM_REFINE_TOKEN);
+        if (refineToken != null && !refineToken.isEmpty()) {
+            handleRefinement(params, refineToken, deadline);
+            return;
+        }
+        long parseBegin = metrics.begin();
+        String encoding = params.getHttpParam(PARAM_ENCODING, ENCODING_GEOJSON);
+        String routeParam = params.getHttpParam(PARAM_ROUTE);
+        boolean inBody = routeParam == null || routeParam.isEmpty();
+        String routeStr = inBody ? getRouteFromBody(params) : routeParam;
+        // GeoJSON in the route parameter keeps its old limit, POST bodies
+        // and compact encodings may carry longer routes
+        int maxCoords = inBody || !ENCODING_GEOJSON.equals(encoding) ? maxCoordinates : NUM_POINTS_MAX;
+        String clientSRS = params.getHttpParam(ActionConstants.PARAM_SRS, DEFAULT_SRS);
+        String format = params.getHttpParam(PARAM_FORMAT, FORMAT_GEOJSON);
+        if (!FORMAT_GEOJSON.equals(format) && !FORMAT_NDJSON.equals(format)) {
+            throw new ActionParamsException(String.format("Invalid %s, expected '%s' or '%s'",
+                    PARAM_FORMAT, FORMAT_GEOJSON, FORMAT_NDJSON));
+        }
+        boolean ndjson = FORMAT_NDJSON.equals(format);
+        String lod = params.getHttpParam(PARAM_LOD, LOD_FULL);
+        if (!LOD_FULL.equals(lod) && !LOD_COARSE.equals(lod)) {
+            throw new ActionParamsException(String.format("Invalid %s, expected '%s' or '%s'",
+                    PARAM_LOD, LOD_FULL, LOD_COARSE));
+        }
+        boolean coarse = LOD_COARSE.equals(lod);
+        Set<String> requestedCoverages = parseCoverages(params.getHttpParam(PARAM_COVERAGES, ""));
+
+        // Same route with same parameters results in the same response, skip all the work.
+        // The key of the full profile also serves as the token to refine a coarse one with
+        String cacheKey = getCacheKey(routeStr, clientSRS, encoding,
+                params.getHttpParam(PARAM_PRECISION, ""),
+                params.getHttpParam(JSON_PROPERTY_NUM_POINTS, ""),
+                params.getHttpParam(JSON_PROPERTY_SCALE_FACTOR, ""),
+                params.getHttpParam(JSON_PROPERTY_SPACING, ""),
+                String.join(",", requestedCoverages));
+        // Streamed responses are not cached. If the full profile is already
+        // at hand it's returned to coarse requests as well.
+        if (!ndjson && writeCached(params, cacheKey)) {
+            return;
+        }
 
-        double[] points = getRoutePoints(route);
-        int numPoints = getNumPoints(route.get(JSON_PROPERTY_PROPERTIES));
-        double scaleFactor = getScaleFactor(route.get(JSON_PROPERTY_PROPERTIES));
+        Route route = parseRoute(params, encoding, routeStr, maxCoords);
+        double[] points = route.getCoordinates();
+        int numPoints = Math.min(route.getNumPoints(), maxCoords);
+        double scaleFactor = route.getScaleFactor();
+        double spacing = route.getSpacing();
+        metrics.end(RequestMetrics.Stage.PARSE, parseBegin);
 
         // Allow route to be GC'd
-        route = null;
+        routeStr = null;
+        routeParam = null;
 
-        String clientSRS = params.getHttpParam(ActionConstants.PARAM_SRS, DEFAULT_SRS);
+        long transformBegin = metrics.begin();
         MathTransform transform = getTransform(clientSRS, serviceSrs);
 
         if (transform != null) {
             transformInPlace(points, transform);
         }
+        metrics.end(RequestMetrics.Stage.TRANSFORM, transformBegin);
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("Number of coords:", points.length / 2,
@@ -151,12 +432,43 @@ public class TerrainProfileHandler extends ActionHandler {
         }
 
         try {
-            List<DataPoint> dp = getService().getTerrainProfile(points, numPoints, scaleFactor);
-            if (transform != null) {
-                // we transformed input so we must transform for output by inversing input/output srs
-                transformInPlace(dp, transform.inverse());
+            Map<String, TerrainProfileService> others = getCoverages(requestedCoverages);
+            if (spacing > 0) {
+                // Segments unchanged since an earlier request are served from the
+                // segment cache, which makes these cheap enough to not need lod
+                writeSpacedProfile(params, points, spacing, scaleFactor, others, transform, deadline,
+                        maxCoords, ndjson ? null : cacheKey);
+                return;
+            }
+            double coarseScaleFactor = coarse ? getService().getCoarseScaleFactor(points, scaleFactor) : 0.0;
+            if (ndjson) {
+                writeNDJSONResponse(params, points, numPoints, scaleFactor, coarseScaleFactor, others,
+                        transform, deadline);
+                return;
+            }
+            if (coarseScaleFactor > 0) {
+                // Answer quickly from a coarser level, the full profile is
+                // only computed if the client comes back for it
+                pendingRefinements.put(cacheKey, new Refinement(points, numPoints, scaleFactor, others, transform));
+                Map<String, String> properties = new LinkedHashMap<>();
+                properties.put(JSON_PROPERTY_LOD, LOD_COARSE);
+                properties.put(JSON_PROPERTY_REFINE_TOKEN, cacheKey);
+                try {
+                    writeProfile(params, points, numPoints, coarseScaleFactor, others, transform,
+                            deadline.sooner(coarseTimeoutMs), null, properties);
+                    return;
+                } catch (ServiceRuntimeException e) {
+                    HttpServletResponse response = params.getResponse();
+                    if (!isCoarseTimeout(e, deadline) || response.isCommitted()) {
+                        throw e;
+                    }
+                    // Not even the coarse level made it in time, answer with the full profile instead
+                    LOG.debug("Coarse profile timed out, responding with the full profile");
+                    pendingRefinements.remove(cacheKey);
+                    response.resetBuffer();
+                }
             }
-            writeResponse(params, dp);
+            writeFullProfile(params, points, numPoints, scaleFactor, others, transform, deadline, cacheKey);
         } catch (ServiceRuntimeException e) {
             throw new ActionCommonException(e.getMessage(), e);
         } catch (ServiceException e) {
@@ -166,75 +478,339 @@ public class TerrainProfileHandler extends ActionHandler {
         }
     }
 
-    private JsonNode getParamRoute(ActionParameters params) throws ActionParamsException {
+    /**
+     * @param coverages comma separated names of additional coverages
+     * @return the names in the order given, without duplicates
+     */
+    private Set<String> parseCoverages(String coverages) throws ActionParamsException {
+        Set<String> names = new LinkedHashSet<>();
+        for (String name : coverages.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (!coverageNames.contains(name)) {
+                throw new ActionParamsException(String.format("Invalid %s, unknown coverage '%s'",
+                        PARAM_COVERAGES, name));
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    private Map<String, TerrainProfileService> getCoverages(Set<String> names) throws ServiceException {
+        Map<String, TerrainProfileService> others = new LinkedHashMap<>();
+        for (String name : names) {
+            others.put(name, getCoverage(name));
+        }
+        return others;
+    }
+
+    /**
+     * Responds with the full profile a coarse response promised
+     */
+    private void handleRefinement(ActionParameters params, String token, Deadline deadline)
+            throws ActionException {
+        if (writeCached(params, token)) {
+            return;
+        }
+        Refinement pending = pendingRefinements.get(token);
+        if (pending == null) {
+            throw new ActionParamsException("Unknown or expired " + PARAM_REFINE_TOKEN);
+        }
         try {
-            String routeJson = params.getRequiredParam(PARAM_ROUTE);
-            return om.readTree(routeJson);
-        } catch (JsonProcessingException e) {
-            throw new ActionParamsException("Expected JSON object for param " + PARAM_ROUTE, e);
+            writeFullProfile(params, pending.coordinates, pending.numPoints, pending.scaleFactor,
+                    pending.others, pending.transform, deadline, token);
+        } catch (ServiceRuntimeException e) {
+            throw new ActionCommonException(e.getMessage(), e);
+        } catch (ServiceException e) {
+            throw new ActionException(e.getMessage(), e);
+        } catch (NoninvertibleTransformException e) {
+            throw new ActionParamsException("Coulnd't transform coordinates", e);
+        }
+    }
+
+    /**
+     * @return true if a response was found from the cache and written
+     */
+    private boolean writeCached(ActionParameters params, String cacheKey) {
+        ByteArrayOutputStream cached = responseCache.get(cacheKey);
+        if (cached == null) {
+            return false;
         }
+        String etag = '"' + cacheKey + '"';
+        if (isNotModified(params, etag)) {
+            params.getResponse().setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            params.getResponse().setHeader(HEADER_ETAG, etag);
+        } else {
+            writeResponse(params, etag, cached);
+        }
+        return true;
     }
 
-    protected double[] getRoutePoints(JsonNode route) throws ActionParamsException {
-        JsonNode geometry = route.get("geometry");
-        if (geometry == null || !geometry.isObject()) {
-            throw new ActionParamsException("Invalid input - expected GeoJSON feature");
+    /**
+     * Writes the full profile, asynchronously if enabled, supported by the
+     * request and the profile is short enough to not be chunked
+     */
+    private void writeFullProfile(ActionParameters params, double[] points, int numPoints, double scaleFactor,
+            Map<String, TerrainProfileService> others, MathTransform transform, Deadline deadline, String cacheKey)
+            throws ActionException, ServiceException, NoninvertibleTransformException {
+        HttpServletRequest request = params.getRequest();
+        if (async && request != null && request.isAsyncSupported()
+                && Math.max(numPoints, points.length / 2) <= chunkSize) {
+            writeProfileAsync(params, points, numPoints, scaleFactor, others, transform, deadline, cacheKey);
+            return;
         }
+        writeProfile(params, points, numPoints, scaleFactor, others, transform, deadline,
+                cacheKey, Collections.emptyMap());
+    }
+
+    /**
+     * Releases the container thread while the tiles are fetched. The profile
+     * is sampled and written from the stages of the future returned by
+     * {@link TerrainProfileService#getTerrainProfileAsync(double[], int, double, Deadline, List)}
+     * and the last one completes the request. Errors are responded to here
+     * as the container no longer sees them.
+     */
+    private void writeProfileAsync(ActionParameters params, double[] points, int numPoints, double scaleFactor,
+            Map<String, TerrainProfileService> others, MathTransform transform, Deadline deadline, String cacheKey)
+            throws ServiceException {
+        TerrainProfileService service = getService();
+        RequestMetrics metrics = RequestMetrics.current();
+        AsyncContext asyncContext = params.getRequest().startAsync();
+        AtomicBoolean done = new AtomicBoolean();
+        asyncContext.setTimeout(requestTimeoutMs > 0 ? requestTimeoutMs + ASYNC_TIMEOUT_MARGIN_MS : 0);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                complete(asyncContext, done, params, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Timeout");
+            }
+            @Override
+            public void onError(AsyncEvent event) {
+                complete(asyncContext, done, params, 0, null);
+            }
+            @Override
+            public void onComplete(AsyncEvent event) {}
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
 
-        JsonNode type = geometry.get("type");
-        if (type == null || !type.isTextual() || !"LineString".equals(type.textValue())) {
-            throw new ActionParamsException("Invalid input - expected LineString geometry");
+        CompletableFuture<List<DataPoint>> profile;
+        try {
+            profile = service.getTerrainProfileAsync(points, numPoints, scaleFactor, deadline,
+                    new ArrayList<>(others.values()));
+        } catch (RuntimeException e) {
+            profile = CompletableFuture.failedFuture(e);
         }
+        profile.thenAccept(dp -> {
+            RequestMetrics previous = RequestMetrics.bind(metrics);
+            try {
+                if (!done.get()) {
+                    writeProfile(params, dp, others, transform, cacheKey, Collections.emptyMap());
+                }
+            } catch (ActionException | NoninvertibleTransformException e) {
+                throw new CompletionException(e);
+            } finally {
+                RequestMetrics.bind(previous);
+            }
+        }).whenComplete((ignored, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause == null) {
+                complete(asyncContext, done, params, 0, null);
+            } else {
+                int status = getStatus(cause);
+                if (status != HttpServletResponse.SC_BAD_REQUEST) {
+                    LOG.warn("Failed to handle request:", cause.getMessage());
+                }
+                complete(asyncContext, done, params, status, cause.getMessage());
+            }
+            finish(params, metrics);
+        });
+    }
 
-        JsonNode coordinates = geometry.get("coordinates");
-        if (coordinates == null || !coordinates.isArray()) {
-            throw new ActionParamsException("Invalid input - expected LineString geometry");
+    /**
+     * @return status the container would have responded to e with
+     */
+    static int getStatus(Throwable e) {
+        if (e instanceof ActionParamsException || e instanceof NoninvertibleTransformException) {
+            return HttpServletResponse.SC_BAD_REQUEST;
         }
-        int len = coordinates.size();
-        if (len < 2) {
-            throw new ActionParamsException("Invalid input - expected LineString with atleast two coordinates");
-        } else if (len > NUM_POINTS_MAX) {
-            throw new ActionParamsException("Invalid input - too many coordinates, maximum is " + NUM_POINTS_MAX);
+        if (e instanceof ActionDeniedException) {
+            return HttpServletResponse.SC_FORBIDDEN;
         }
+        return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
 
-        double[] xy = new double[len * 2];
-        for (int i = 0; i < len; i++) {
-            JsonNode coordinate = coordinates.get(i);
-            if (coordinate == null || !coordinate.isArray()) {
-                throw new ActionParamsException("Invalid input - expected LineString geometry");
+    /**
+     * Completes the request once, whichever of the request and the
+     * container's timeout gets here first
+     *
+     * @param status error to respond with, 0 if none
+     */
+    private static void complete(AsyncContext asyncContext, AtomicBoolean done,
+            ActionParameters params, int status, String message) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            HttpServletResponse response = params.getResponse();
+            if (status != 0 && !response.isCommitted()) {
+                response.sendError(status, message);
             }
-            JsonNode x = coordinate.get(0);
-            JsonNode y = coordinate.get(1);
-            if (!x.isNumber() || !y.isNumber()) {
-                throw new ActionParamsException("Invalid input - expected LineString geometry");
+        } catch (IOException | IllegalStateException e) {
+            LOG.debug("Failed to write error response:", e.getMessage());
+        } finally {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                LOG.debug("Request already completed:", e.getMessage());
             }
-            xy[i * 2 + 0] = x.asDouble();
-            xy[i * 2 + 1] = y.asDouble();
         }
-        return xy;
     }
 
-    protected int getNumPoints(JsonNode props) throws ActionParamsException {
-        if (props == null || !props.has(JSON_PROPERTY_NUM_POINTS)) {
-            return 0;
+    /**
+     * @param others additional coverages to sample by name
+     * @param cacheKey key to cache the response with, null to not cache it
+     * @param properties additional properties written to the feature
+     */
+    private void writeProfile(ActionParameters params, double[] points, int numPoints, double scaleFactor,
+            Map<String, TerrainProfileService> others, MathTransform transform, Deadline deadline,
+            String cacheKey, Map<String, String> properties)
+            throws ActionException, ServiceException, NoninvertibleTransformException {
+        if (Math.max(numPoints, points.length / 2) > chunkSize) {
+            // Too long to hold in memory at once, write the response as the chunks are done
+            writeChunkedResponse(params, points, numPoints, scaleFactor, others, transform, deadline, properties);
+            return;
+        }
+        List<DataPoint> dp = new ArrayList<>(Math.max(numPoints, points.length / 2));
+        getService().getTerrainProfile(points, numPoints, scaleFactor, deadline, Integer.MAX_VALUE,
+                new ArrayList<>(others.values()), dp::addAll);
+        writeProfile(params, dp, others, transform, cacheKey, properties);
+    }
+
+    /**
+     * Samples each segment every spacing metres, see
+     * {@link TerrainProfileService#getSpacedProfile(double[], double, double, Deadline, List)}
+     *
+     * @param cacheKey key to cache the response with, null to stream it as ndjson
+     */
+    private void writeSpacedProfile(ActionParameters params, double[] points, double spacing, double scaleFactor,
+            Map<String, TerrainProfileService> others, MathTransform transform, Deadline deadline,
+            int maxPoints, String cacheKey)
+            throws ActionException, ServiceException, NoninvertibleTransformException {
+        if (TerrainProfileService.getNumSamples(points, spacing) > maxPoints) {
+            throw new ActionParamsException(String.format("Invalid property value '%s', "
+                    + "the route would have more than %d points", JSON_PROPERTY_SPACING, maxPoints));
         }
-        JsonNode numPoints = props.get(JSON_PROPERTY_NUM_POINTS);
-        if (!numPoints.isIntegralNumber()) {
-            throw new ActionParamsException(String.format(
-                    "Invalid property value '%s'", JSON_PROPERTY_NUM_POINTS));
+        List<DataPoint> dp = getService().getSpacedProfile(points, spacing, scaleFactor, deadline,
+                new ArrayList<>(others.values()));
+        if (cacheKey != null) {
+            writeProfile(params, dp, others, transform, cacheKey, Collections.emptyMap());
+            return;
+        }
+        MathTransform inverse = transform != null ? transform.inverse() : null;
+        HttpServletResponse response = params.getResponse();
+        response.setContentType(CONTENT_TYPE_NDJSON);
+        try (JsonGenerator json = om.getFactory().createGenerator(response.getOutputStream())) {
+            writeLine(dp, inverse, json, response, Collections.emptyMap(), getNames(others));
+            json.writeRaw('\n');
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
         }
-        return Math.min(numPoints.asInt(), NUM_POINTS_MAX);
     }
 
-    protected double getScaleFactor(JsonNode props) {
-        double fallback = 0.0;
-        if (props == null || !props.has(JSON_PROPERTY_SCALE_FACTOR)) {
-            return fallback;
+    private void writeProfile(ActionParameters params, List<DataPoint> dp,
+            Map<String, TerrainProfileService> others, MathTransform transform,
+            String cacheKey, Map<String, String> properties)
+            throws ActionException, NoninvertibleTransformException {
+        RequestMetrics metrics = RequestMetrics.current();
+        if (transform != null) {
+            // we transformed input so we must transform for output by inversing input/output srs
+            long transformBegin = metrics.begin();
+            transformInPlace(dp, transform.inverse());
+            metrics.end(RequestMetrics.Stage.TRANSFORM, transformBegin);
         }
-        return props.get(JSON_PROPERTY_SCALE_FACTOR).asDouble(fallback);
+        long encodeBegin = metrics.begin();
+        ByteArrayOutputStream response = encodeResponse(dp, properties, getNames(others));
+        metrics.end(RequestMetrics.Stage.ENCODE, encodeBegin);
+        if (cacheKey == null) {
+            writeServerTiming(params);
+            ResponseHelper.writeResponse(params, 200, IOHelper.CONTENT_TYPE_JSON, response);
+            return;
+        }
+        responseCache.put(cacheKey, response);
+        writeResponse(params, '"' + cacheKey + '"', response);
     }
 
-    private MathTransform getTransform(String input, String output) throws ActionParamsException {
+    private String getRouteFromBody(ActionParameters params) throws ActionException {
+        HttpServletRequest request = params.getRequest();
+        if (!"POST".equalsIgnoreCase(request.getMethod())) {
+            // reports the required parameter missing
+            return params.getRequiredParam(PARAM_ROUTE);
+        }
+        String body = new String(readBody(request, maxBodyBytes), StandardCharsets.UTF_8);
+        if (body.isBlank()) {
+            return params.getRequiredParam(PARAM_ROUTE);
+        }
+        return body;
+    }
+
+    /**
+     * Reads the request body, turning away ones declaring or turning out to
+     * be larger than maxBytes before reading any further
+     *
+     * @throws ActionParamsException if the body is larger than maxBytes
+     */
+    protected static byte[] readBody(HttpServletRequest request, int maxBytes) throws ActionException {
+        String tooLarge = "Request body too large, maximum is " + maxBytes + " bytes";
+        if (request.getContentLengthLong() > maxBytes) {
+            throw new ActionParamsException(tooLarge);
+        }
+        try (InputStream in = request.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                if (body.size() + n > maxBytes) {
+                    throw new ActionParamsException(tooLarge);
+                }
+                body.write(buf, 0, n);
+            }
+            return body.toByteArray();
+        } catch (IOException e) {
+            throw new ActionException("Failed to read request body", e);
+        }
+    }
+
+    private Route parseRoute(ActionParameters params, String encoding, String route, int maxCoords)
+            throws ActionException {
+        switch (encoding) {
+        case ENCODING_POLYLINE:
+            int precision = params.getHttpParam(PARAM_PRECISION, EncodedPolyline.DEFAULT_PRECISION);
+            double[] coordinates = EncodedPolyline.decode(route.trim(), precision, maxCoords);
+            return new Route(coordinates,
+                    params.getHttpParam(JSON_PROPERTY_NUM_POINTS, 0),
+                    params.getHttpParam(JSON_PROPERTY_SCALE_FACTOR, 0.0),
+                    params.getHttpParam(JSON_PROPERTY_SPACING, 0.0));
+        case ENCODING_GEOJSON:
+            return parseGeoJSONRoute(route, maxCoords);
+        default:
+            throw new ActionParamsException(String.format("Invalid %s, expected '%s' or '%s'",
+                    PARAM_ENCODING, ENCODING_GEOJSON, ENCODING_POLYLINE));
+        }
+    }
+
+    private Route parseGeoJSONRoute(String routeJson, int maxCoords) throws ActionException {
+        try (JsonParser json = om.getFactory().createParser(routeJson)) {
+            return new RouteParser(maxCoords).parse(json);
+        } catch (JsonProcessingException e) {
+            throw new ActionParamsException("Expected JSON object for param " + PARAM_ROUTE, e);
+        } catch (IOException e) {
+            throw new ActionException("Failed to read param " + PARAM_ROUTE, e);
+        }
+    }
+
+    static MathTransform getTransform(String input, String output) throws ActionParamsException {
         try {
             if (input.equals(output)) {
                 return null;
@@ -248,7 +824,7 @@ public class TerrainProfileHandler extends ActionHandler {
         }
     }
 
-    private void transformInPlace(double[] xy, MathTransform transform) throws ActionException {
+    static void transformInPlace(double[] xy, MathTransform transform) throws ActionException {
         try {
             transform.transform(xy, 0, xy, 0, xy.length / 2);
         } catch (TransformException e) {
@@ -256,7 +832,7 @@ public class TerrainProfileHandler extends ActionHandler {
         }
     }
 
-    private void transformInPlace(List<DataPoint> dp, MathTransform transform) throws ActionException {
+    private static void transformInPlace(List<DataPoint> dp, MathTransform transform) throws ActionException {
         try {
             double[] xy = new double[2];
             for (DataPoint cur : dp) {
@@ -271,18 +847,217 @@ public class TerrainProfileHandler extends ActionHandler {
         }
     }
 
-    protected void writeResponse(ActionParameters params, List<DataPoint> dp) throws ActionException {
+    /**
+     * Hash of the route with insignificant whitespace removed and the other request
+     * parameters affecting the response. With GeoJSON the properties of the route
+     * (numPoints, scaleFactor, spacing) are part of the route.
+     */
+    protected static String getCacheKey(String routeJson, String... params) {
+        StringBuilder normalized = new StringBuilder(routeJson.length() + 64);
+        for (String param : params) {
+            normalized.append(param).append('\n');
+        }
+        boolean inString = false;
+        boolean escaped = false;
+        for (int i = 0; i < routeJson.length(); i++) {
+            char c = routeJson.charAt(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (Character.isWhitespace(c)) {
+                continue;
+            }
+            normalized.append(c);
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(normalized.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new ServiceRuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    private boolean isNotModified(ActionParameters params, String etag) {
+        String ifNoneMatch = params.getRequest().getHeader(HEADER_IF_NONE_MATCH);
+        return ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"));
+    }
+
+    protected ByteArrayOutputStream encodeResponse(List<DataPoint> dp) throws ActionException {
+        return encodeResponse(dp, Collections.emptyMap());
+    }
+
+    protected ByteArrayOutputStream encodeResponse(List<DataPoint> dp, Map<String, String> properties)
+            throws ActionException {
+        return encodeResponse(dp, properties, new String[0]);
+    }
+
+    /**
+     * @param coverageNames names of the additional coverages in the order
+     *        their altitudes are in {@link DataPoint#getAltitudes()}
+     */
+    protected ByteArrayOutputStream encodeResponse(List<DataPoint> dp, Map<String, String> properties,
+            String[] coverageNames) throws ActionException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (JsonGenerator json = om.getFactory().createGenerator(baos)) {
-            writeMultiPointFeature(dp, json);
+            writeMultiPointFeature(dp, json, properties, coverageNames);
         } catch (IOException e) {
             throw new ActionException("Failed to encode GeoJSON", e);
         }
-        ResponseHelper.writeResponse(params, 200, IOHelper.CONTENT_TYPE_JSON, baos);
+        return baos;
+    }
+
+    protected void writeResponse(ActionParameters params, String etag, ByteArrayOutputStream response) {
+        writeServerTiming(params);
+        params.getResponse().setHeader(HEADER_ETAG, etag);
+        ResponseHelper.writeResponse(params, 200, IOHelper.CONTENT_TYPE_JSON, response);
+    }
+
+    /**
+     * Adds the time spent so far per stage as a Server-Timing header, if enabled.
+     * Streamed responses go without as their headers are sent before the work is done.
+     */
+    private void writeServerTiming(ActionParameters params) {
+        if (serverTiming) {
+            params.getResponse().setHeader(HEADER_SERVER_TIMING, RequestMetrics.current().toServerTiming());
+        }
+    }
+
+    private static String[] getNames(Map<String, TerrainProfileService> coverages) {
+        return coverages.keySet().toArray(new String[0]);
+    }
+
+    private void writeChunkedResponse(ActionParameters params, double[] points, int numPoints,
+            double scaleFactor, Map<String, TerrainProfileService> others, MathTransform transform,
+            Deadline deadline, Map<String, String> properties)
+            throws ActionException, ServiceException, NoninvertibleTransformException {
+        MathTransform inverse = transform != null ? transform.inverse() : null;
+        HttpServletResponse response = params.getResponse();
+        response.setContentType(IOHelper.CONTENT_TYPE_JSON);
+        try (JsonGenerator json = om.getFactory().createGenerator(response.getOutputStream())) {
+            ChunkedFeatureWriter writer = new ChunkedFeatureWriter(json, inverse, getNames(others));
+            getService().getTerrainProfile(points, numPoints, scaleFactor, deadline, chunkSize,
+                    new ArrayList<>(others.values()), writer);
+            writer.end(properties);
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
+        }
+    }
+
+    /**
+     * Writes each piece of the profile as soon as it's done as a MultiPoint
+     * feature of its own on a separate line (newline delimited JSON).
+     * With a coarse scale factor the whole profile is first written from
+     * the coarse level and then again at full resolution, the lines are
+     * told apart by their lod property.
+     *
+     * @param coarseScaleFactor non-positive for the full profile only
+     */
+    private void writeNDJSONResponse(ActionParameters params, double[] points, int numPoints,
+            double scaleFactor, double coarseScaleFactor, Map<String, TerrainProfileService> others,
+            MathTransform transform, Deadline deadline)
+            throws ActionException, ServiceException, NoninvertibleTransformException {
+        MathTransform inverse = transform != null ? transform.inverse() : null;
+        HttpServletResponse response = params.getResponse();
+        response.setContentType(CONTENT_TYPE_NDJSON);
+        String[] names = getNames(others);
+        List<TerrainProfileService> services = new ArrayList<>(others.values());
+        try (JsonGenerator json = om.getFactory().createGenerator(response.getOutputStream())) {
+            json.setRootValueSeparator(new SerializedString("\n"));
+            Map<String, String> properties = Collections.emptyMap();
+            if (coarseScaleFactor > 0) {
+                try {
+                    getService().getTerrainProfile(points, numPoints, coarseScaleFactor,
+                            deadline.sooner(coarseTimeoutMs), chunkSize, services,
+                            piece -> writeLine(piece, inverse, json, response,
+                                    Collections.singletonMap(JSON_PROPERTY_LOD, LOD_COARSE), names));
+                } catch (ServiceRuntimeException e) {
+                    if (!isCoarseTimeout(e, deadline)) {
+                        throw e;
+                    }
+                    // The lines of the coarse level written so far stand, the full profile follows
+                    LOG.debug("Coarse profile timed out, continuing with the full profile");
+                }
+                properties = Collections.singletonMap(JSON_PROPERTY_LOD, LOD_FULL);
+            }
+            Map<String, String> fullProperties = properties;
+            getService().getTerrainProfile(points, numPoints, scaleFactor, deadline, chunkSize, services,
+                    piece -> writeLine(piece, inverse, json, response, fullProperties, names));
+            json.writeRaw('\n');
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
+        }
+    }
+
+    /**
+     * @return true if e is the coarse level running out of its own time
+     *         while there is still time left for the full profile
+     */
+    private static boolean isCoarseTimeout(ServiceRuntimeException e, Deadline deadline) {
+        return e instanceof DeadlineExceededException && !deadline.isExpired();
+    }
+
+    private static void writeLine(List<DataPoint> piece, MathTransform inverse, JsonGenerator json,
+            HttpServletResponse response, Map<String, String> properties, String[] coverageNames)
+            throws ActionException {
+        RequestMetrics metrics = RequestMetrics.current();
+        if (inverse != null) {
+            long transformBegin = metrics.begin();
+            transformInPlace(piece, inverse);
+            metrics.end(RequestMetrics.Stage.TRANSFORM, transformBegin);
+        }
+        long encodeBegin = metrics.begin();
+        try {
+            writeMultiPointFeature(piece, json, properties, coverageNames);
+            json.flush();
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
+        } finally {
+            metrics.end(RequestMetrics.Stage.ENCODE, encodeBegin);
+        }
     }
 
     protected static void writeMultiPointFeature(List<DataPoint> dp,
             JsonGenerator json) throws IOException {
+        writeMultiPointFeature(dp, json, Collections.emptyMap());
+    }
+
+    protected static void writeMultiPointFeature(List<DataPoint> dp,
+            JsonGenerator json, Map<String, String> properties) throws IOException {
+        writeMultiPointFeature(dp, json, properties, new String[0]);
+    }
+
+    protected static void writeMultiPointFeature(List<DataPoint> dp,
+            JsonGenerator json, Map<String, String> properties, String[] coverageNames) throws IOException {
+        writeMultiPointFeatureStart(json);
+        writeCoordinates(dp, json);
+        double[] distances = new double[dp.size()];
+        double[][] altitudes = new double[coverageNames.length][dp.size()];
+        for (int i = 0; i < distances.length; i++) {
+            DataPoint p = dp.get(i);
+            distances[i] = p.getDistFromStart();
+            for (int c = 0; c < coverageNames.length; c++) {
+                altitudes[c][i] = p.getAltitudes()[c];
+            }
+        }
+        writeMultiPointFeatureEnd(distances, coverageNames, altitudes, distances.length, json, properties);
+    }
+
+    private static void writeMultiPointFeatureStart(JsonGenerator json) throws IOException {
         json.writeStartObject();
         json.writeStringField("type", "Feature");
 
@@ -291,6 +1066,9 @@ public class TerrainProfileHandler extends ActionHandler {
         json.writeStringField("type", "MultiPoint");
         json.writeFieldName("coordinates");
         json.writeStartArray();
+    }
+
+    private static void writeCoordinates(List<DataPoint> dp, JsonGenerator json) throws IOException {
         for (DataPoint p : dp) {
             json.writeStartArray();
             json.writeNumber(p.getE());
@@ -303,21 +1081,126 @@ public class TerrainProfileHandler extends ActionHandler {
             }
             json.writeEndArray();
         }
+    }
+
+    private static void writeMultiPointFeatureEnd(double[] distances, String[] coverageNames,
+            double[][] altitudes, int numPoints, JsonGenerator json, Map<String, String> properties)
+            throws IOException {
         json.writeEndArray();
         json.writeEndObject();
 
         json.writeFieldName("properties");
         json.writeStartObject();
-        json.writeNumberField(JSON_PROPERTY_NUM_POINTS, dp.size());
+        json.writeNumberField(JSON_PROPERTY_NUM_POINTS, numPoints);
         json.writeFieldName(JSON_PROPERTY_DISTANCE_FROM_START);
-        json.writeStartArray();
-        for (DataPoint p : dp) {
-            json.writeNumber(p.getDistFromStart());
+        json.writeArray(distances, 0, numPoints);
+        if (coverageNames.length > 0) {
+            json.writeFieldName(JSON_PROPERTY_ALTITUDES);
+            json.writeStartObject();
+            for (int c = 0; c < coverageNames.length; c++) {
+                json.writeFieldName(coverageNames[c]);
+                json.writeStartArray();
+                for (int i = 0; i < numPoints; i++) {
+                    double alt = altitudes[c][i];
+                    if (Double.isNaN(alt)) {
+                        json.writeNull();
+                    } else {
+                        json.writeNumber(alt);
+                    }
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+        }
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            json.writeStringField(property.getKey(), property.getValue());
         }
-        json.writeEndArray();
         json.writeEndObject();
 
         json.writeEndObject();
     }
 
+    /**
+     * Writes the MultiPoint feature as the chunks of the profile arrive.
+     * Only the distances and the altitudes of additional coverages are kept
+     * until the end as they follow the coordinates.
+     */
+    private static class ChunkedFeatureWriter implements ProfileWriter<ActionException> {
+
+        private final JsonGenerator json;
+        private final MathTransform inverse;
+        private final String[] coverageNames;
+        private double[] distances = new double[DEFAULT_CHUNK_SIZE];
+        private double[][] altitudes;
+        private int numPoints;
+
+        private ChunkedFeatureWriter(JsonGenerator json, MathTransform inverse, String[] coverageNames)
+                throws IOException {
+            this.json = json;
+            this.inverse = inverse;
+            this.coverageNames = coverageNames;
+            this.altitudes = new double[coverageNames.length][DEFAULT_CHUNK_SIZE];
+            writeMultiPointFeatureStart(json);
+        }
+
+        @Override
+        public void write(List<DataPoint> points) throws ActionException {
+            RequestMetrics metrics = RequestMetrics.current();
+            if (inverse != null) {
+                long transformBegin = metrics.begin();
+                transformInPlace(points, inverse);
+                metrics.end(RequestMetrics.Stage.TRANSFORM, transformBegin);
+            }
+            long encodeBegin = metrics.begin();
+            try {
+                writeCoordinates(points, json);
+            } catch (IOException e) {
+                throw new ActionException("Failed to write response", e);
+            } finally {
+                metrics.end(RequestMetrics.Stage.ENCODE, encodeBegin);
+            }
+            if (numPoints + points.size() > distances.length) {
+                int capacity = Math.max(distances.length * 2, numPoints + points.size());
+                distances = Arrays.copyOf(distances, capacity);
+                for (int c = 0; c < altitudes.length; c++) {
+                    altitudes[c] = Arrays.copyOf(altitudes[c], capacity);
+                }
+            }
+            for (DataPoint p : points) {
+                for (int c = 0; c < altitudes.length; c++) {
+                    altitudes[c][numPoints] = p.getAltitudes()[c];
+                }
+                distances[numPoints++] = p.getDistFromStart();
+            }
+        }
+
+        private void end(Map<String, String> properties) throws IOException {
+            writeMultiPointFeatureEnd(distances, coverageNames, altitudes, numPoints, json, properties);
+        }
+
+    }
+
+    /**
+     * Everything needed to compute the full profile for a refine token,
+     * coordinates already in the projection of the service
+     */
+    private static class Refinement {
+
+        private final double[] coordinates;
+        private final int numPoints;
+        private final double scaleFactor;
+        private final Map<String, TerrainProfileService> others;
+        private final MathTransform transform;
+
+        private Refinement(double[] coordinates, int numPoints, double scaleFactor,
+                Map<String, TerrainProfileService> others, MathTransform transform) {
+            this.coordinates = coordinates;
+            this.numPoints = numPoints;
+            this.scaleFactor = scaleFactor;
+            this.others = others;
+            this.transform = transform;
+        }
+
+    }
+
 }
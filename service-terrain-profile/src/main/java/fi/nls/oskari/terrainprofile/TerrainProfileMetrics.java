@@ -0,0 +1,64 @@
+package fi.nls.oskari.terrainprofile;
+
+import fi.nls.oskari.cache.Cache;
+import fi.nls.oskari.log.LogFactory;
+import fi.nls.oskari.log.Logger;
+import fi.nls.oskari.util.PropertyUtil;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+
+/**
+ * Meter registry the terrain profile metrics are published to. That's the
+ * global registry of Micrometer so that the application can add its own
+ * registries to it, optionally with a JMX registry added to it.
+ */
+public class TerrainProfileMetrics {
+
+    private static final Logger LOG = LogFactory.getLogger(TerrainProfileMetrics.class);
+
+    protected static final String PROPERTY_JMX = "oskari.terrainprofile.metrics.jmx";
+    private static final String METRIC_PREFIX = "terrainprofile.cache";
+
+    private static boolean initialized;
+
+    private TerrainProfileMetrics() {}
+
+    /**
+     * @return registry to publish metrics to, the first call adds the JMX registry if enabled
+     */
+    public static synchronized MeterRegistry getRegistry() {
+        if (!initialized) {
+            initialized = true;
+            if (PropertyUtil.getOptional(PROPERTY_JMX, false)) {
+                Metrics.addRegistry(new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM));
+                LOG.info("Publishing terrain profile metrics with JMX");
+            }
+        }
+        return Metrics.globalRegistry;
+    }
+
+    /**
+     * Publishes the size, hits and misses of a cache as gauges tagged with
+     * the name of the cache. Only the first cache monitored by a name counts.
+     */
+    public static void monitor(Cache<?> cache, String name) {
+        MeterRegistry registry = getRegistry();
+        Gauge.builder(METRIC_PREFIX + ".size", cache, Cache::getSize)
+                .tag("cache", name)
+                .register(registry);
+        Gauge.builder(METRIC_PREFIX + ".limit", cache, Cache::getLimit)
+                .tag("cache", name)
+                .register(registry);
+        Gauge.builder(METRIC_PREFIX + ".hits", cache, Cache::getHitCount)
+                .tag("cache", name)
+                .register(registry);
+        Gauge.builder(METRIC_PREFIX + ".misses", cache, Cache::getMissCount)
+                .tag("cache", name)
+                .register(registry);
+    }
+
+}
@@ -1,27 +1,46 @@
 package fi.nls.oskari.terrainprofile;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import fi.nls.oskari.cache.Cache;
+import fi.nls.oskari.cache.CacheManager;
+import fi.nls.oskari.log.LogFactory;
+import fi.nls.oskari.log.Logger;
 import fi.nls.oskari.service.ServiceRuntimeException;
 import fi.nls.oskari.terrainprofile.dem.FloatAsIsValueExtractor;
 import fi.nls.oskari.terrainprofile.dem.TileValueExtractor;
+import fi.nls.oskari.terrainprofile.dem.DEM;
+import fi.nls.oskari.terrainprofile.dem.QuantizedDEM;
 import fi.nls.oskari.terrainprofile.dem.TiledTiffDEM;
 import org.oskari.wcs.capabilities.Capabilities;
 import org.oskari.wcs.coverage.CoverageDescription;
 import org.oskari.wcs.coverage.RectifiedGridCoverage;
 import org.oskari.wcs.extension.scaling.ScaleByFactor;
-import org.oskari.wcs.geotiff.TIFFReader;
 import org.oskari.wcs.gml.RectifiedGrid;
 import org.oskari.wcs.parser.CapabilitiesParser;
 import org.oskari.wcs.parser.CoverageDescriptionsParser;
@@ -32,13 +51,21 @@ import org.xml.sax.SAXException;
 
 import fi.nls.oskari.service.ServiceException;
 import fi.nls.oskari.util.IOHelper;
+import fi.nls.oskari.util.PropertyUtil;
 
-public class TerrainProfileService {
+public class TerrainProfileService implements AutoCloseable {
+
+    private static final Logger LOG = LogFactory.getLogger(TerrainProfileService.class);
 
     private static final String FORMAT_TIFF = "image/tiff";
     private static final int REQUEST_MAX_SIZE_METRES = 8192;
     private static final int REQUEST_SIZE_DEFAULT = 1024;
     private static final int SCALE_SIZE_THRESHOLD = 2048;
+    private static final int COARSE_MIN_SIZE_PX = 128;
+    // area operations read every cell, tiles of a cell each would be a GetCoverage per cell
+    private static final int AREA_MIN_TILE_SIZE = 128;
+    private static final int VISIBILITY_BATCH_SIZE = 64;
+    private static final double EFFECTIVE_EARTH_RADIUS_METRES = 6371000.0 * 4 / 3;
     private static final double[] SCALE_FACTORS = {
             1,
             0.5,
@@ -54,16 +81,52 @@ public class TerrainProfileService {
     private static final String PASSWORD = "";
     private static final int MAX_REDIRECTS = 5;
 
+    protected static final String PROPERTY_TILE_CACHE_LIMIT = "terrain.profile.tileCache.limit";
+    protected static final String PROPERTY_TILE_CACHE_EXPIRATION_MS = "terrain.profile.tileCache.expirationms";
+    protected static final String PROPERTY_TILE_CACHE_MAX_ERROR = "terrain.profile.tileCache.maxError";
+    private static final int DEFAULT_TILE_CACHE_EXPIRATION_MS = 60 * 60 * 1000;
+    protected static final String PROPERTY_SEGMENT_CACHE_LIMIT = "terrain.profile.segmentCache.limit";
+    protected static final String PROPERTY_SEGMENT_CACHE_EXPIRATION_MS = "terrain.profile.segmentCache.expirationms";
+    private static final int DEFAULT_SEGMENT_CACHE_LIMIT = 5000;
+    private static final int DEFAULT_SEGMENT_CACHE_EXPIRATION_MS = 10 * 60 * 1000;
+    protected static final String PROPERTY_COMPRESSION = "terrain.profile.wcs.compression";
+    protected static final String PROPERTY_PREDICTOR = "terrain.profile.wcs.predictor";
+    protected static final String GEOTIFF_EXTENSION = "http://www.opengis.net/spec/WCS_geotiff-coverages/1.0/conf/geotiff-coverage";
+    protected static final String PROPERTY_DECODE_PARALLELISM = "terrain.profile.decode.parallelism";
+    protected static final String PROPERTY_DECODE_POOL_SIZE = "terrain.profile.decode.poolSize";
+    protected static final String PROPERTY_MASK_BLOCK_SIZE = "terrain.profile.mask.blockSize";
+    protected static final String PROPERTY_VISIBILITY_POOL_SIZE = "terrain.profile.visibility.poolSize";
+    protected static final String PROPERTY_FETCH_POOL_SIZE = "terrain.profile.coverages.poolSize";
+    protected static final String PROPERTY_ASYNC_POOL_SIZE = "terrain.profile.async.poolSize";
+    private static final int DEFAULT_MASK_BLOCK_SIZE = 256;
+
+    private final TerrainProfileExecutors executors;
+    // executors were created for this service alone, shut down on close()
+    private final boolean ownsExecutors;
     private final CoverageLoader loader;
     private final String endPoint;
+    private final String coverageId;
     private final String apiKey;
     private final Supplier<TileValueExtractor> extractorGenerator;
+    private final CoverageMetadata metadata;
     private final Capabilities caps;
     private final RectifiedGridCoverage desc;
     private final double originEast;
     private final double originNorth;
     private final double offsetVectorX;
     private final double offsetVectorY;
+    private final Cache<byte[]> tileCache;
+    // tiles are kept quantized if their altitudes are within this of the original, 0 to keep them as fetched
+    private final double tileCacheMaxError;
+    // shared by all nodes behind tileCache, null if disabled
+    private final SharedTileCache sharedTileCache;
+    private final Cache<double[]> segmentCache;
+    private final Map<String, String[]> encodingParams;
+    private final int decodeParallelism;
+    private final ForkJoinPool decodePool;
+    private final CoverageMask mask;
+    // gml:GridEnvelope of the coverage as [lowX, lowY, highX, highY], null if unknown
+    private final int[] gridLimits;
 
     public TerrainProfileService(String endPoint, String coverageId) throws ServiceException {
         this(endPoint, coverageId, () -> new FloatAsIsValueExtractor(Float.NaN));
@@ -74,13 +137,42 @@ public class TerrainProfileService {
     }
 
     public TerrainProfileService(String endPoint, String coverageId, String apiKey, Supplier<TileValueExtractor> extractorGenerator) throws ServiceException {
-        loader = new CoverageLoader();
+        this(endPoint, coverageId, apiKey, extractorGenerator, null);
+    }
+
+    /**
+     * @param metadata
+     *      GetCapabilities and DescribeCoverage responses read earlier, for
+     *      example from a snapshot, null to request them from the service
+     */
+    public TerrainProfileService(String endPoint, String coverageId, String apiKey,
+            Supplier<TileValueExtractor> extractorGenerator, CoverageMetadata metadata) throws ServiceException {
+        this(endPoint, coverageId, apiKey, extractorGenerator, metadata, null);
+    }
+
+    /**
+     * @param executors
+     *      thread pools shared with other services of the coverage, closed by
+     *      their owner, null to use pools of this service's own shut down by {@link #close()}
+     */
+    public TerrainProfileService(String endPoint, String coverageId, String apiKey,
+            Supplier<TileValueExtractor> extractorGenerator, CoverageMetadata metadata,
+            TerrainProfileExecutors executors) throws ServiceException {
+        this.ownsExecutors = executors == null;
+        this.executors = executors != null ? executors : new TerrainProfileExecutors();
+        loader = new CoverageLoader(coverageId, this.executors.getScheduler());
         try {
             this.endPoint = endPoint;
+            this.coverageId = coverageId;
             this.apiKey = apiKey;
             this.extractorGenerator = extractorGenerator;
-            caps = getCapabilities(endPoint);
-            CoverageDescription tmp = describeCoverage(endPoint, coverageId);
+            this.metadata = metadata != null ? metadata : new CoverageMetadata(endPoint, coverageId,
+                    getCapabilities(endPoint), describeCoverage(endPoint, coverageId));
+            byte[] capabilities = this.metadata.getCapabilities();
+            caps = CapabilitiesParser.parse(new ByteArrayInputStream(capabilities));
+            encodingParams = getEncodingParams(getProfiles(capabilities));
+            CoverageDescription tmp = CoverageDescriptionsParser.parse(
+                    new ByteArrayInputStream(this.metadata.getDescribeCoverage())).get(0);
             if (!(tmp instanceof RectifiedGridCoverage)) {
                 throw new ServiceException("Expected coverage of type RectifiedGridCoverage");
             }
@@ -90,41 +182,273 @@ public class TerrainProfileService {
             originNorth = grid.getOrigin().getPos()[1];
             offsetVectorX = grid.getOffsetVectors()[0].getPos()[0];
             offsetVectorY = grid.getOffsetVectors()[1].getPos()[1];
+            gridLimits = getGridLimits(this.metadata.getDescribeCoverage());
+            mask = createMask(gridLimits);
         } catch (IOException | ParserConfigurationException | SAXException e) {
             throw new ServiceException("Failed to initialize", e);
         }
+        tileCache = createTileCache();
+        tileCacheMaxError = Double.parseDouble(PropertyUtil.get(PROPERTY_TILE_CACHE_MAX_ERROR, "0"));
+        sharedTileCache = tileCache != null ? SharedTileCache.getInstance() : null;
+        segmentCache = createSegmentCache();
+        decodeParallelism = PropertyUtil.getOptional(PROPERTY_DECODE_PARALLELISM, 1);
+        decodePool = decodeParallelism > 1 ? this.executors.getDecodePool() : null;
+    }
+
+    /**
+     * Shuts down the thread pools of this service if it has pools of its own
+     */
+    @Override
+    public void close() {
+        if (ownsExecutors) {
+            executors.close();
+        }
     }
 
-    private Capabilities getCapabilities(String endPoint)
-            throws IOException, ParserConfigurationException, SAXException {
+    public CoverageMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return true if other has the same grid origin and resolution as this
+     *         coverage so that both can be sampled with the same plan
+     */
+    public boolean isSameGrid(TerrainProfileService other) {
+        return originEast == other.originEast
+                && originNorth == other.originNorth
+                && offsetVectorX == other.offsetVectorX
+                && offsetVectorY == other.offsetVectorY;
+    }
+
+    /**
+     * Decodes the TIFF tiles up front in parallel if enabled, otherwise
+     * they're decoded one by one as their values are read
+     */
+    private void decodeTiles(GridWindow window, BitSet tiles) {
+        if (decodePool != null) {
+            window.decodeTiles(tiles, decodePool, decodeParallelism);
+        }
+    }
+
+    /**
+     * @return cache for whole GetCoverage tiles, null if disabled (default)
+     */
+    private static Cache<byte[]> createTileCache() {
+        int limit = PropertyUtil.getOptional(PROPERTY_TILE_CACHE_LIMIT, 0);
+        if (limit <= 0) {
+            return null;
+        }
+        Cache<byte[]> cache = CacheManager.getCache(TerrainProfileService.class.getName() + ".tiles");
+        cache.setLimit(limit);
+        cache.setExpiration(PropertyUtil.getOptional(PROPERTY_TILE_CACHE_EXPIRATION_MS, DEFAULT_TILE_CACHE_EXPIRATION_MS));
+        TerrainProfileMetrics.monitor(cache, "tiles");
+        return cache;
+    }
+
+    /**
+     * @return cache for the altitudes of route segments sampled at a fixed spacing, null if disabled
+     */
+    private static Cache<double[]> createSegmentCache() {
+        int limit = PropertyUtil.getOptional(PROPERTY_SEGMENT_CACHE_LIMIT, DEFAULT_SEGMENT_CACHE_LIMIT);
+        if (limit <= 0) {
+            return null;
+        }
+        Cache<double[]> cache = CacheManager.getCache(TerrainProfileService.class.getName() + ".segments");
+        cache.setLimit(limit);
+        cache.setExpiration(PropertyUtil.getOptional(PROPERTY_SEGMENT_CACHE_EXPIRATION_MS,
+                DEFAULT_SEGMENT_CACHE_EXPIRATION_MS));
+        TerrainProfileMetrics.monitor(cache, "segments");
+        return cache;
+    }
+
+    /**
+     * @return GetCapabilities response as is
+     */
+    private byte[] getCapabilities(String endPoint) throws IOException {
         Map<String, String> params = GetCapabilities.toQueryParameters();
         String url = IOHelper.constructUrl(endPoint, params);
         HttpURLConnection conn = connectToService(url);
-        try (InputStream in = new BufferedInputStream(conn.getInputStream())) {
-            return CapabilitiesParser.parse(in);
+        try (InputStream in = CoverageLoader.getInputStream(conn)) {
+            return IOHelper.readBytes(in);
+        }
+    }
+
+    /**
+     * @return the conformance classes (ows:Profile) the service declares
+     */
+    protected static Set<String> getProfiles(byte[] capabilities) throws IOException {
+        Set<String> profiles = new HashSet<>();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLStreamReader xml = factory.createXMLStreamReader(new ByteArrayInputStream(capabilities));
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && "Profile".equals(xml.getLocalName())) {
+                    profiles.add(xml.getElementText().trim());
+                }
+            }
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to read profiles from capabilities", e);
+        }
+        return profiles;
+    }
+
+    /**
+     * @return limits of the grid (gml:GridEnvelope) as [lowX, lowY, highX, highY], null if not found
+     */
+    protected static int[] getGridLimits(byte[] describeCoverage) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLStreamReader xml = factory.createXMLStreamReader(new ByteArrayInputStream(describeCoverage));
+            String low = null;
+            String high = null;
+            boolean inGridEnvelope = false;
+            while (xml.hasNext() && (low == null || high == null)) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if ("GridEnvelope".equals(name)) {
+                        inGridEnvelope = true;
+                    } else if (inGridEnvelope && "low".equals(name)) {
+                        low = xml.getElementText().trim();
+                    } else if (inGridEnvelope && "high".equals(name)) {
+                        high = xml.getElementText().trim();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "GridEnvelope".equals(xml.getLocalName())) {
+                    inGridEnvelope = false;
+                }
+            }
+            xml.close();
+            if (low == null || high == null) {
+                return null;
+            }
+            String[] lows = low.split("\\s+");
+            String[] highs = high.split("\\s+");
+            return new int[] {
+                    Integer.parseInt(lows[0]), Integer.parseInt(lows[1]),
+                    Integer.parseInt(highs[0]), Integer.parseInt(highs[1])
+            };
+        } catch (XMLStreamException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Failed to read grid limits from coverage description", e);
+        }
+    }
+
+    private CoverageMask createMask(int[] limits) {
+        if (limits == null) {
+            LOG.info("No grid limits for", coverageId, "- requesting every tile");
+            return null;
         }
+        int blockSize = PropertyUtil.getOptional(PROPERTY_MASK_BLOCK_SIZE, DEFAULT_MASK_BLOCK_SIZE);
+        return new CoverageMask(limits[0], limits[1], limits[2], limits[3], blockSize);
+    }
+
+    /**
+     * @return true if the cell (gridX, gridY) at scaleFactor is known to have no data
+     */
+    private boolean isMasked(int gridX, int gridY, double scaleFactor) {
+        return isMasked(gridX, gridY, gridX, gridY, scaleFactor);
     }
 
-    private CoverageDescription describeCoverage(String endPoint, String coverageId)
-            throws IOException, ParserConfigurationException, SAXException {
+    /**
+     * @return true if none of the cells [minGridX, maxGridX] x [minGridY, maxGridY]
+     *         at scaleFactor can have data
+     */
+    private boolean isMasked(int minGridX, int minGridY, int maxGridX, int maxGridY, double scaleFactor) {
+        if (mask == null) {
+            return false;
+        }
+        int k = (int) Math.round(1 / scaleFactor);
+        if (k == 1) {
+            return mask.isEmpty(minGridX, minGridY, maxGridX, maxGridY);
+        }
+        // A cell of a coarser level covers k x k full resolution cells,
+        // allow for half a cell of misalignment between the levels
+        int x0 = minGridX * k - k / 2;
+        int y0 = minGridY * k - k / 2;
+        int x1 = maxGridX * k - k / 2 + 2 * k - 1;
+        int y1 = maxGridY * k - k / 2 + 2 * k - 1;
+        return mask.isEmpty(x0, y0, x1, y1);
+    }
+
+    /**
+     * Learns the all NODATA blocks of a window fetched at full resolution
+     */
+    private void learnNoData(GridWindow window, double scaleFactor) {
+        if (mask == null || scaleFactor != SCALE_FACTORS[0]) {
+            return;
+        }
+        int learned = mask.learn(window.getMinGridX(), window.getMinGridY(),
+                window.getMaxGridX(), window.getMaxGridY(), window::getValue);
+        if (learned > 0) {
+            LOG.debug("Learned", learned, "blocks without data in", coverageId);
+        }
+    }
+
+    /**
+     * Extra GetCoverage parameters asking for a more compact GeoTIFF, if
+     * configured and the service supports the GeoTIFF encoding extension
+     */
+    private Map<String, String[]> getEncodingParams(Set<String> profiles) {
+        Map<String, String[]> params = new LinkedHashMap<>();
+        String compression = PropertyUtil.getOptional(PROPERTY_COMPRESSION);
+        String predictor = PropertyUtil.getOptional(PROPERTY_PREDICTOR);
+        if (isEmpty(compression) && isEmpty(predictor)) {
+            return params;
+        }
+        if (!profiles.contains(GEOTIFF_EXTENSION)) {
+            LOG.warn("Service doesn't support the GeoTIFF extension, ignoring",
+                    PROPERTY_COMPRESSION, "and", PROPERTY_PREDICTOR);
+            return params;
+        }
+        if (!isEmpty(compression)) {
+            params.put("geotiff:compression", new String[] { compression });
+        }
+        if (!isEmpty(predictor)) {
+            params.put("geotiff:predictor", new String[] { predictor });
+        }
+        return params;
+    }
+
+    private static boolean isEmpty(String str) {
+        return str == null || str.trim().isEmpty();
+    }
+
+    /**
+     * @return DescribeCoverage response as is
+     */
+    private byte[] describeCoverage(String endPoint, String coverageId) throws IOException {
         Map<String, String> params = DescribeCoverage.toQueryParameters(coverageId);
         String url = IOHelper.constructUrl(endPoint, params);
         HttpURLConnection conn = connectToService(url);
-        try (InputStream in = new BufferedInputStream(conn.getInputStream())) {
-            return CoverageDescriptionsParser.parse(in).get(0);
+        try (InputStream in = CoverageLoader.getInputStream(conn)) {
+            return IOHelper.readBytes(in);
         }
     }
 
     private HttpURLConnection connectToService(String url) throws IOException {
+        return connectToService(url, Deadline.none());
+    }
+
+    private HttpURLConnection connectToService(String url, Deadline deadline) throws IOException {
         HttpURLConnection conn = IOHelper.getConnection(url, apiKey, PASSWORD);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        conn.setConnectTimeout(deadline.limit(conn.getConnectTimeout()));
+        conn.setReadTimeout(deadline.limit(conn.getReadTimeout()));
         IOHelper.addIdentifierHeaders(conn);
         return IOHelper.followRedirect(conn, apiKey, PASSWORD, MAX_REDIRECTS);
     }
 
-    private Supplier<HttpURLConnection> getConnectionSupplier(String url) {
+    private Supplier<HttpURLConnection> getConnectionSupplier(String url, Deadline deadline) {
+        // Called for every attempt, possibly on another thread
+        RequestMetrics metrics = RequestMetrics.current();
         return () -> {
+            metrics.attempt();
             try {
-                return connectToService(url);
+                return connectToService(url, deadline);
             } catch (IOException e) {
                 throw new ServiceRuntimeException("Error connecting to service", e);
             }
@@ -142,6 +466,62 @@ public class TerrainProfileService {
      */
     public List<DataPoint> getTerrainProfile(double[] coordinates, int numPoints, double scaleFactor)
             throws ServiceException {
+        return getTerrainProfile(coordinates, numPoints, scaleFactor, Deadline.none());
+    }
+
+    /**
+     * @param deadline
+     *      shared by every GetCoverage request made for this profile
+     * @see #getTerrainProfile(double[], int, double)
+     */
+    public List<DataPoint> getTerrainProfile(double[] coordinates, int numPoints, double scaleFactor,
+            Deadline deadline) throws ServiceException {
+        List<DataPoint> points = new ArrayList<>(Math.max(numPoints, coordinates.length / 2));
+        getTerrainProfile(coordinates, numPoints, scaleFactor, deadline, Integer.MAX_VALUE, points::addAll);
+        return points;
+    }
+
+    /**
+     * Processes the route in chunks along its length. Each chunk is planned,
+     * fetched, sampled and handed to the writer before the next one starts,
+     * so memory use is bounded by the chunk size rather than the route length.
+     * Within a chunk tiles are fetched in along-route order and the writer
+     * receives the points from the start of the route as soon as they're done.
+     *
+     * @param chunkSize
+     *      maximum number of points per chunk
+     * @param writer
+     *      receives consecutive pieces of the profile in order of distance from start
+     * @see #getTerrainProfile(double[], int, double, Deadline)
+     */
+    public <E extends Exception> void getTerrainProfile(double[] coordinates, int numPoints, double scaleFactor,
+            Deadline deadline, int chunkSize, ProfileWriter<E> writer) throws ServiceException, E {
+        getTerrainProfile(coordinates, numPoints, scaleFactor, deadline, chunkSize,
+                Collections.emptyList(), writer);
+    }
+
+    /**
+     * Samples the profile from this and the other coverages at once. The
+     * points, their grid cells and tiles are worked out once and shared,
+     * the other coverages are fetched concurrently with this one tile by tile.
+     * Their altitudes are set to {@link DataPoint#getAltitudes()} in the order
+     * of others.
+     *
+     * @param others
+     *      additional coverages, must be on the same grid as this one
+     * @see #getTerrainProfile(double[], int, double, Deadline, int, ProfileWriter)
+     */
+    public <E extends Exception> void getTerrainProfile(double[] coordinates, int numPoints, double scaleFactor,
+            Deadline deadline, int chunkSize, List<TerrainProfileService> others, ProfileWriter<E> writer)
+            throws ServiceException, E {
+        for (TerrainProfileService other : others) {
+            if (!isSameGrid(other)) {
+                throw new ServiceException("Coverage " + other.coverageId
+                        + " is not on the same grid as " + coverageId);
+            }
+        }
+
+        // Scale is determined from the whole route so that every chunk is sampled from the same grid
         double[] extent = GeomUtil.getEnvelope(coordinates);
 
         scaleFactor = determineScaleFactor(scaleFactor, extent);
@@ -149,26 +529,642 @@ public class TerrainProfileService {
         double dx = offsetVectorX / scaleFactor;
         double dy = offsetVectorY / scaleFactor;
 
-        int tileSize = getTileSize(extent, dx);
+        int tileSize = getTileSize(dx);
+
+        RouteSampler sampler = new RouteSampler(coordinates, numPoints);
+        // Distances continue from the last point of the previous chunk
+        double e0 = coordinates[0];
+        double n0 = coordinates[1];
+        double distFromStart = 0.0;
+        RequestMetrics metrics = RequestMetrics.current();
+        while (sampler.hasNext()) {
+            long planBegin = metrics.begin();
+            List<DataPoint> points = createDataPoints(sampler.next(chunkSize), e0, n0, distFromStart,
+                    tileSize, dx, dy, others.size());
+
+            // Read these before the writer gets to modify the points
+            DataPoint last = points.get(points.size() - 1);
+            e0 = last.getE();
+            n0 = last.getN();
+            distFromStart = last.getDistFromStart();
+
+            // Tiles in the order the route enters them
+            Map<GridTile, List<DataPoint>> pointsByTile = points.stream()
+                    .collect(Collectors.groupingBy(TerrainProfileService::getTile,
+                            LinkedHashMap::new, Collectors.toList()));
+            Map<GridTile, Integer> tileOrder = new HashMap<>();
+            for (GridTile tile : pointsByTile.keySet()) {
+                tileOrder.put(tile, tileOrder.size());
+            }
+            metrics.end(RequestMetrics.Stage.PLAN, planBegin);
 
-        if (coordinates.length < numPoints * 2) {
-            coordinates = interpolate(coordinates, numPoints);
+            // After each tile write out every point from the start that is done by now
+            int written = 0;
+            int tilesDone = 0;
+            for (List<DataPoint> pointsInTile : pointsByTile.values()) {
+                if (deadline.isExpired()) {
+                    throw new DeadlineExceededException();
+                }
+                setAltitudes(pointsInTile, scaleFactor, tileSize, dx, dy, deadline, others);
+                tilesDone++;
+
+                int done = written;
+                while (done < points.size() && tileOrder.get(getTile(points.get(done))) < tilesDone) {
+                    done++;
+                }
+                if (done > written) {
+                    writer.write(points.subList(written, done));
+                    written = done;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #getTerrainProfile(double[], int, double, Deadline)}
+     * sampling this and the other coverages at once, without blocking the
+     * calling thread. The route is planned on the calling thread, after that
+     * each tile is sampled once its GetCoverage requests have completed and
+     * the next tile is started from there.
+     *
+     * @return completes exceptionally with ServiceRuntimeException or
+     *         ServiceException wrapped in a CompletionException
+     */
+    public CompletableFuture<List<DataPoint>> getTerrainProfileAsync(double[] coordinates, int numPoints,
+            double scaleFactor, Deadline deadline, List<TerrainProfileService> others) {
+        for (TerrainProfileService other : others) {
+            if (!isSameGrid(other)) {
+                return CompletableFuture.failedFuture(new ServiceException("Coverage " + other.coverageId
+                        + " is not on the same grid as " + coverageId));
+            }
         }
 
-        List<DataPoint> points = createDataPoints(coordinates, tileSize, dx, dy);
+        double sf = determineScaleFactor(scaleFactor, GeomUtil.getEnvelope(coordinates));
+        double dx = offsetVectorX / sf;
+        double dy = offsetVectorY / sf;
+        int tileSize = getTileSize(dx);
 
+        RequestMetrics metrics = RequestMetrics.current();
+        long planBegin = metrics.begin();
+        RouteSampler sampler = new RouteSampler(coordinates, numPoints);
+        List<DataPoint> points = createDataPoints(sampler.next(Integer.MAX_VALUE),
+                coordinates[0], coordinates[1], 0.0, tileSize, dx, dy, others.size());
         Map<GridTile, List<DataPoint>> pointsByTile = points.stream()
-                .collect(Collectors.groupingBy(p -> new GridTile(p.getTileX(), p.getTileY())));
+                .collect(Collectors.groupingBy(TerrainProfileService::getTile,
+                        LinkedHashMap::new, Collectors.toList()));
+        metrics.end(RequestMetrics.Stage.PLAN, planBegin);
+
+        CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
         for (List<DataPoint> pointsInTile : pointsByTile.values()) {
-            setAltitudes(pointsInTile, scaleFactor, dx, dy);
+            done = done.thenCompose(v -> setAltitudesAsync(pointsInTile, sf, tileSize, dx, dy,
+                    deadline, others, metrics));
         }
+        return done.thenApply(v -> points);
+    }
 
-        points.sort(Comparator.comparingDouble(DataPoint::getDistFromStart));
+    /**
+     * Samples each segment of the route on its own, starting from its first
+     * vertex every spacing metres, and the last vertex of the route. The
+     * points of a segment only depend on its end points, the spacing and the
+     * scale factor, so their altitudes are remembered with those as the key.
+     * When a route is edited only the segments that changed are sampled
+     * again, the distances from the start are worked out anew for every
+     * point.
+     *
+     * @param coordinates
+     *      array of doubles [e1,n1,...,eN,nN]
+     * @param spacing
+     *      distance between the points within a segment in metres, must be positive
+     * @param scaleFactor
+     *      non-positive considered null, must be 1/2^n, where 0<=n<=8
+     * @param others
+     *      additional coverages, must be on the same grid as this one
+     * @see #getNumSamples(double[], double)
+     */
+    public List<DataPoint> getSpacedProfile(double[] coordinates, double spacing, double scaleFactor,
+            Deadline deadline, List<TerrainProfileService> others) throws ServiceException {
+        if (!(spacing > 0)) {
+            throw new IllegalArgumentException("spacing must be positive");
+        }
+        StringBuilder coverages = new StringBuilder(coverageId);
+        for (TerrainProfileService other : others) {
+            if (!isSameGrid(other)) {
+                throw new ServiceException("Coverage " + other.coverageId
+                        + " is not on the same grid as " + coverageId);
+            }
+            coverages.append(',').append(other.coverageId);
+        }
+
+        double[] extent = GeomUtil.getEnvelope(coordinates);
+        scaleFactor = determineScaleFactor(scaleFactor, extent);
+        double dx = offsetVectorX / scaleFactor;
+        double dy = offsetVectorY / scaleFactor;
+        int tileSize = getTileSize(dx);
+        String keyPrefix = coverages.toString() + '/' + scaleFactor + '/' + spacing + '/';
 
+        RequestMetrics metrics = RequestMetrics.current();
+        long planBegin = metrics.begin();
+        List<DataPoint> points = new ArrayList<>();
+        Map<String, List<DataPoint>> missing = new LinkedHashMap<>();
+        double distFromStart = 0.0;
+        int numVertices = coordinates.length / 2;
+        for (int i = 0; i < numVertices; i++) {
+            double e0 = coordinates[i * 2];
+            double n0 = coordinates[i * 2 + 1];
+            boolean last = i == numVertices - 1;
+            double e1 = last ? e0 : coordinates[i * 2 + 2];
+            double n1 = last ? n0 : coordinates[i * 2 + 3];
+            double length = GeomUtil.getDistance(e0, n0, e1, n1);
+            if (length == 0 && !last) {
+                continue;
+            }
+            int count = last ? 1 : getNumSamples(length, spacing);
+            List<DataPoint> segment = new ArrayList<>(count);
+            for (int k = 0; k < count; k++) {
+                double t = k * spacing / length;
+                DataPoint dp = createDataPoint(k == 0 ? e0 : e0 + t * (e1 - e0), k == 0 ? n0 : n0 + t * (n1 - n0),
+                        distFromStart + k * spacing, tileSize, dx, dy, others.size());
+                segment.add(dp);
+            }
+            String key = keyPrefix + e0 + ',' + n0 + ',' + e1 + ',' + n1;
+            double[] altitudes = segmentCache != null ? segmentCache.get(key) : null;
+            if (altitudes != null) {
+                setAltitudes(segment, altitudes);
+            } else {
+                missing.put(key, segment);
+            }
+            points.addAll(segment);
+            distFromStart += length;
+        }
+
+        Map<GridTile, List<DataPoint>> pointsByTile = missing.values().stream()
+                .flatMap(List::stream)
+                .collect(Collectors.groupingBy(TerrainProfileService::getTile,
+                        LinkedHashMap::new, Collectors.toList()));
+        metrics.end(RequestMetrics.Stage.PLAN, planBegin);
+
+        for (List<DataPoint> pointsInTile : pointsByTile.values()) {
+            if (deadline.isExpired()) {
+                throw new DeadlineExceededException();
+            }
+            setAltitudes(pointsInTile, scaleFactor, tileSize, dx, dy, deadline, others);
+        }
+        if (segmentCache != null) {
+            for (Map.Entry<String, List<DataPoint>> segment : missing.entrySet()) {
+                segmentCache.put(segment.getKey(), getAltitudes(segment.getValue(), others.size()));
+            }
+        }
         return points;
     }
 
-    private int getTileSize(double[] extent, double dx) {
+    /**
+     * @return number of points {@link #getSpacedProfile(double[], double, double, Deadline, List)}
+     *         samples the route with
+     */
+    public static long getNumSamples(double[] coordinates, double spacing) {
+        long count = 1;
+        for (int i = 2; i < coordinates.length; i += 2) {
+            double length = GeomUtil.getDistance(coordinates[i - 2], coordinates[i - 1],
+                    coordinates[i], coordinates[i + 1]);
+            if (length > 0) {
+                count += getNumSamples(length, spacing);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of points at 0, spacing, 2*spacing... short of length,
+     *         a point that would fall on the end within rounding error is left out
+     */
+    private static int getNumSamples(double length, double spacing) {
+        return (int) Math.min(Math.ceil(length / spacing - 1e-9), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return altitudes of the points followed by those of each additional coverage
+     */
+    private static double[] getAltitudes(List<DataPoint> segment, int numOthers) {
+        int n = segment.size();
+        double[] altitudes = new double[n * (1 + numOthers)];
+        for (int k = 0; k < n; k++) {
+            DataPoint dp = segment.get(k);
+            altitudes[k] = dp.getAltitude();
+            for (int i = 0; i < numOthers; i++) {
+                altitudes[(i + 1) * n + k] = dp.getAltitudes()[i];
+            }
+        }
+        return altitudes;
+    }
+
+    private static void setAltitudes(List<DataPoint> segment, double[] altitudes) {
+        int n = segment.size();
+        for (int k = 0; k < n; k++) {
+            DataPoint dp = segment.get(k);
+            dp.setAltitude(altitudes[k]);
+            double[] others = dp.getAltitudes();
+            if (others != null) {
+                for (int i = 0; i < others.length; i++) {
+                    others[i] = altitudes[(i + 1) * n + k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the altitude of each point as is, without interpolating
+     * between them. Points are grouped by tile so each tile is fetched once
+     * no matter how many points fall on it.
+     *
+     * @param coordinates
+     *      array of doubles [e1,n1,...,eN,nN]
+     * @param scaleFactor
+     *      must be 1/2^n, where 0<=n<=8, otherwise full resolution is used
+     * @return altitudes in the same order as the points, NaN where there's no data
+     */
+    public double[] getAltitudes(double[] coordinates, double scaleFactor, Deadline deadline)
+            throws ServiceException {
+        scaleFactor = isOnScaleLadder(scaleFactor) ? scaleFactor : SCALE_FACTORS[0];
+
+        double dx = offsetVectorX / scaleFactor;
+        double dy = offsetVectorY / scaleFactor;
+
+        int tileSize = getTileSize(dx);
+
+        int n = coordinates.length / 2;
+        int[] gridX = new int[n];
+        int[] gridY = new int[n];
+        int[] tileOf = new int[n];
+        Map<GridTile, Integer> tiles = new HashMap<>();
+        double[] altitudes = new double[n];
+        for (int i = 0; i < n; i++) {
+            gridX[i] = (int) Math.round(((coordinates[i * 2] - originEast) / dx));
+            gridY[i] = (int) Math.round(((coordinates[i * 2 + 1] - originNorth) / dy));
+            if (isMasked(gridX[i], gridY[i], scaleFactor)) {
+                // Known to have no data, don't fetch
+                altitudes[i] = Double.NaN;
+                tileOf[i] = -1;
+                continue;
+            }
+            GridTile tile = new GridTile(gridX[i] / tileSize, gridY[i] / tileSize);
+            tileOf[i] = tiles.computeIfAbsent(tile, k -> tiles.size());
+        }
+
+        // Point indices ordered by tile (counting sort), points of tile t
+        // are in byTile[start[t]] ... byTile[start[t + 1] - 1]
+        int[] start = new int[tiles.size() + 1];
+        for (int t : tileOf) {
+            if (t >= 0) {
+                start[t + 1]++;
+            }
+        }
+        for (int t = 0; t < tiles.size(); t++) {
+            start[t + 1] += start[t];
+        }
+        int[] next = Arrays.copyOf(start, tiles.size());
+        int[] byTile = new int[start[tiles.size()]];
+        for (int i = 0; i < n; i++) {
+            if (tileOf[i] >= 0) {
+                byTile[next[tileOf[i]]++] = i;
+            }
+        }
+
+        for (int t = 0; t < tiles.size(); t++) {
+            if (deadline.isExpired()) {
+                throw new DeadlineExceededException();
+            }
+            int minGridX = Integer.MAX_VALUE;
+            int minGridY = Integer.MAX_VALUE;
+            int maxGridX = Integer.MIN_VALUE;
+            int maxGridY = Integer.MIN_VALUE;
+            for (int j = start[t]; j < start[t + 1]; j++) {
+                int i = byTile[j];
+                minGridX = Math.min(minGridX, gridX[i]);
+                minGridY = Math.min(minGridY, gridY[i]);
+                maxGridX = Math.max(maxGridX, gridX[i]);
+                maxGridY = Math.max(maxGridY, gridY[i]);
+            }
+            int first = byTile[start[t]];
+            GridWindow window = getWindow(gridX[first] / tileSize, gridY[first] / tileSize, tileSize,
+                    minGridX, minGridY, maxGridX, maxGridY, scaleFactor, dx, dy, deadline);
+            if (decodePool != null) {
+                BitSet tiffTiles = new BitSet();
+                for (int j = start[t]; j < start[t + 1]; j++) {
+                    tiffTiles.set(window.getTileIndex(gridX[byTile[j]], gridY[byTile[j]]));
+                }
+                decodeTiles(window, tiffTiles);
+            }
+            boolean noData = false;
+            for (int j = start[t]; j < start[t + 1]; j++) {
+                int i = byTile[j];
+                altitudes[i] = window.getValue(gridX[i], gridY[i]);
+                noData |= Double.isNaN(altitudes[i]);
+            }
+            if (noData) {
+                learnNoData(window, scaleFactor);
+            }
+        }
+        return altitudes;
+    }
+
+    /**
+     * Statistics of the DEM cells whose centre falls inside the polygons.
+     * The polygons are planned onto the same tile grid as profiles. Tiles
+     * are fetched one at a time, only if some cell of theirs is inside, and
+     * their values are folded into the statistics right away so the raster
+     * is never held as a whole.
+     *
+     * @param polygons
+     *      each polygon as its rings [e1,n1,...,eN,nN], exterior ring first
+     * @param scaleFactor
+     *      non-positive considered null, must be 1/2^n, where 0<=n<=8
+     * @param maxCells
+     *      maximum number of cells within the extent of the polygons
+     * @throws IllegalArgumentException if the extent has more than maxCells cells
+     */
+    public ZonalStatistics getZonalStatistics(List<double[][]> polygons, double scaleFactor, long maxCells,
+            Deadline deadline) throws ServiceException {
+        double[] extent = null;
+        for (double[][] polygon : polygons) {
+            double[] e = GeomUtil.getEnvelope(polygon[0]);
+            extent = extent == null ? e : new double[] {
+                    Math.min(extent[0], e[0]), Math.min(extent[1], e[1]),
+                    Math.max(extent[2], e[2]), Math.max(extent[3], e[3]) };
+        }
+
+        scaleFactor = determineScaleFactor(scaleFactor, extent);
+
+        double dx = offsetVectorX / scaleFactor;
+        double dy = offsetVectorY / scaleFactor;
+
+        int tileSize = Math.max(getTileSize(dx), AREA_MIN_TILE_SIZE);
+
+        int gx1 = (int) Math.round((extent[0] - originEast) / dx);
+        int gx2 = (int) Math.round((extent[2] - originEast) / dx);
+        int gy1 = (int) Math.round((extent[1] - originNorth) / dy);
+        int gy2 = (int) Math.round((extent[3] - originNorth) / dy);
+        int minGridX = Math.min(gx1, gx2);
+        int maxGridX = Math.max(gx1, gx2);
+        int minGridY = Math.min(gy1, gy2);
+        int maxGridY = Math.max(gy1, gy2);
+        // as double, the product of two spans of int can overflow long
+        double cells = (maxGridX + 1.0 - minGridX) * (maxGridY + 1.0 - minGridY);
+        if (!(cells <= maxCells)) {
+            throw new IllegalArgumentException(String.format(
+                    "Area too large, %.0f cells at scale factor %s, maximum is %d",
+                    cells, scaleFactor, maxCells));
+        }
+
+        ZonalStatistics stats = new ZonalStatistics();
+        for (int tileY = minGridY / tileSize; tileY <= maxGridY / tileSize; tileY++) {
+            // Cells inside the polygons on each row of this band of tiles
+            int rowFrom = Math.max(minGridY, tileY * tileSize);
+            int rowTo = Math.min(maxGridY, tileY * tileSize + tileSize - 1);
+            int[][] spans = new int[rowTo - rowFrom + 1][];
+            for (int row = rowFrom; row <= rowTo; row++) {
+                spans[row - rowFrom] = getSpans(polygons, originNorth + row * dy, dx);
+            }
+
+            for (int tileX = minGridX / tileSize; tileX <= maxGridX / tileSize; tileX++) {
+                int colFrom = tileX * tileSize;
+                int colTo = colFrom + tileSize;
+
+                // Bounds of the cells inside within this tile, skip tiles with none
+                int wMinX = Integer.MAX_VALUE;
+                int wMaxX = Integer.MIN_VALUE;
+                int wMinY = Integer.MAX_VALUE;
+                int wMaxY = Integer.MIN_VALUE;
+                for (int r = 0; r < spans.length; r++) {
+                    int[] rowSpans = spans[r];
+                    for (int i = 0; i < rowSpans.length; i += 2) {
+                        int from = Math.max(rowSpans[i], colFrom);
+                        int to = Math.min(rowSpans[i + 1], colTo);
+                        if (from < to) {
+                            wMinX = Math.min(wMinX, from);
+                            wMaxX = Math.max(wMaxX, to - 1);
+                            wMinY = Math.min(wMinY, rowFrom + r);
+                            wMaxY = Math.max(wMaxY, rowFrom + r);
+                        }
+                    }
+                }
+                if (wMinX > wMaxX) {
+                    continue;
+                }
+
+                if (deadline.isExpired()) {
+                    throw new DeadlineExceededException();
+                }
+                GridWindow window = getWindow(tileX, tileY, tileSize,
+                        wMinX, wMinY, wMaxX, wMaxY, scaleFactor, dx, dy, deadline);
+                decodeTiles(window, window.getTileIndices(wMinX, wMinY, wMaxX, wMaxY));
+                for (int r = 0; r < spans.length; r++) {
+                    int[] rowSpans = spans[r];
+                    for (int i = 0; i < rowSpans.length; i += 2) {
+                        int from = Math.max(rowSpans[i], colFrom);
+                        int to = Math.min(rowSpans[i + 1], colTo);
+                        for (int x = from; x < to; x++) {
+                            stats.accept(window.getValue(x, rowFrom + r));
+                        }
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Scanline through the polygons at northing n, even-odd rule within each polygon
+     *
+     * @return ranges of grid columns whose cell centre is inside as [from1,to1,...,fromN,toN], to exclusive
+     */
+    private int[] getSpans(List<double[][]> polygons, double n, double dx) {
+        int[] spans = new int[0];
+        int numSpans = 0;
+        for (double[][] polygon : polygons) {
+            double[] crossings = GeomUtil.getCrossings(polygon, n);
+            if (spans.length < numSpans + crossings.length) {
+                spans = Arrays.copyOf(spans, numSpans + crossings.length);
+            }
+            for (int i = 0; i + 1 < crossings.length; i += 2) {
+                int from = (int) Math.ceil((crossings[i] - originEast) / dx);
+                int to = (int) Math.ceil((crossings[i + 1] - originEast) / dx);
+                if (from < to) {
+                    spans[numSpans++] = from;
+                    spans[numSpans++] = to;
+                }
+            }
+        }
+        return numSpans == spans.length ? spans : Arrays.copyOf(spans, numSpans);
+    }
+
+    /**
+     * Checks many lines of sight at once. The sight lines are planned onto
+     * the tile grid together so each tile is fetched and decoded only once
+     * however many lines cross it. The lines are then checked in batches in
+     * parallel against the decoded tiles, a tile is let go of once the last
+     * line crossing it is done. Curvature of the earth is taken into
+     * account with the effective radius used for radio propagation (k = 4/3).
+     *
+     * @param scaleFactor
+     *      non-positive considered null, must be 1/2^n, where 0<=n<=8
+     * @param maxSamples
+     *      maximum number of cells read along all the lines together
+     * @return visibility of each line in the same order
+     * @throws IllegalArgumentException if the lines have more than maxSamples cells
+     */
+    public List<Visibility> getVisibility(List<SightLine> lines, double scaleFactor, long maxSamples,
+            Deadline deadline) throws ServiceException {
+        double[] endPoints = new double[lines.size() * 4];
+        int k = 0;
+        for (SightLine line : lines) {
+            endPoints[k++] = line.getObserverE();
+            endPoints[k++] = line.getObserverN();
+            endPoints[k++] = line.getTargetE();
+            endPoints[k++] = line.getTargetN();
+        }
+        double[] extent = GeomUtil.getEnvelope(endPoints);
+
+        scaleFactor = determineScaleFactor(scaleFactor, extent);
+
+        double dx = offsetVectorX / scaleFactor;
+        double dy = offsetVectorY / scaleFactor;
+        double step = Math.min(Math.abs(dx), Math.abs(dy));
+
+        double samples = 0;
+        for (SightLine line : lines) {
+            samples += Math.ceil(line.getLength() / step) + 1;
+        }
+        if (!(samples <= maxSamples)) {
+            throw new IllegalArgumentException(String.format(
+                    "Sight lines too long, %.0f cells at scale factor %s, maximum is %d",
+                    samples, scaleFactor, maxSamples));
+        }
+
+        int tileSize = Math.max(getTileSize(dx), AREA_MIN_TILE_SIZE);
+
+        // Union of the cells of every line, as bounds per tile [minX, minY, maxX, maxY],
+        // the tiles each line crosses and the number of lines crossing each tile
+        Map<GridTile, int[]> boundsByTile = new HashMap<>();
+        List<Set<GridTile>> tilesByLine = new ArrayList<>(lines.size());
+        Map<GridTile, Integer> linesByTile = new HashMap<>();
+        for (SightLine line : lines) {
+            Set<GridTile> tiles = new HashSet<>();
+            int n = getNumSamples(line, step);
+            for (int i = 0; i <= n; i++) {
+                double t = (double) i / n;
+                int gridX = getGridX(line, t, dx);
+                int gridY = getGridY(line, t, dy);
+                GridTile tile = new GridTile(gridX / tileSize, gridY / tileSize);
+                int[] b = boundsByTile.computeIfAbsent(tile, x -> new int[] { gridX, gridY, gridX, gridY });
+                b[0] = Math.min(b[0], gridX);
+                b[1] = Math.min(b[1], gridY);
+                b[2] = Math.max(b[2], gridX);
+                b[3] = Math.max(b[3], gridY);
+                if (tiles.add(tile)) {
+                    linesByTile.merge(tile, 1, Integer::sum);
+                }
+            }
+            tilesByLine.add(tiles);
+        }
+
+        ExecutorService executor = executors.getVisibilityExecutor();
+        Map<GridTile, GridRaster> rasters = new HashMap<>();
+        Visibility[] results = new Visibility[lines.size()];
+        for (int from = 0; from < results.length; from += VISIBILITY_BATCH_SIZE) {
+            int to = Math.min(results.length, from + VISIBILITY_BATCH_SIZE);
+            for (int i = from; i < to; i++) {
+                for (GridTile tile : tilesByLine.get(i)) {
+                    if (rasters.containsKey(tile)) {
+                        continue;
+                    }
+                    if (deadline.isExpired()) {
+                        throw new DeadlineExceededException();
+                    }
+                    int[] b = boundsByTile.remove(tile);
+                    GridWindow window = getWindow(tile.getTileX(), tile.getTileY(), tileSize,
+                            b[0], b[1], b[2], b[3], scaleFactor, dx, dy, deadline);
+                    decodeTiles(window, window.getTileIndices(b[0], b[1], b[2], b[3]));
+                    rasters.put(tile, new GridRaster(window, b[0], b[1], b[2], b[3]));
+                }
+            }
+
+            // rasters is only read until every line of the batch is done
+            CompletableFuture<?>[] batch = new CompletableFuture<?>[to - from];
+            for (int i = from; i < to; i++) {
+                SightLine line = lines.get(i);
+                int j = i;
+                batch[i - from] = CompletableFuture.runAsync(() -> {
+                    results[j] = getVisibility(line, rasters, step, tileSize, dx, dy);
+                }, executor);
+            }
+            try {
+                CompletableFuture.allOf(batch).join();
+            } catch (CompletionException e) {
+                throw new ServiceException("Failed to check visibility", e.getCause());
+            }
+
+            for (int i = from; i < to; i++) {
+                for (GridTile tile : tilesByLine.set(i, null)) {
+                    if (linesByTile.merge(tile, -1, Integer::sum) == 0) {
+                        rasters.remove(tile);
+                    }
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private Visibility getVisibility(SightLine line, Map<GridTile, GridRaster> rasters,
+            double step, int tileSize, double dx, double dy) {
+        int samples = getNumSamples(line, step);
+        double observerGround = getValue(rasters, getGridX(line, 0, dx), getGridY(line, 0, dy), tileSize);
+        double targetGround = getValue(rasters, getGridX(line, 1, dx), getGridY(line, 1, dy), tileSize);
+        if (Double.isNaN(observerGround) || Double.isNaN(targetGround)) {
+            return Visibility.unknown();
+        }
+        double observerZ = observerGround + line.getObserverHeight();
+        double targetZ = targetGround + line.getTargetHeight();
+        double length = line.getLength();
+        for (int i = 1; i < samples; i++) {
+            double t = (double) i / samples;
+            double z = getValue(rasters, getGridX(line, t, dx), getGridY(line, t, dy), tileSize);
+            if (Double.isNaN(z)) {
+                continue;
+            }
+            double d = t * length;
+            // Ground rises towards the middle of the line as the earth curves away under it
+            double bulge = d * (length - d) / (2 * EFFECTIVE_EARTH_RADIUS_METRES);
+            if (z + bulge > observerZ + (targetZ - observerZ) * t) {
+                return Visibility.blocked(d);
+            }
+        }
+        return Visibility.visible();
+    }
+
+    private static int getNumSamples(SightLine line, double step) {
+        return Math.max(1, (int) Math.ceil(line.getLength() / step));
+    }
+
+    private int getGridX(SightLine line, double t, double dx) {
+        double e = line.getObserverE() + (line.getTargetE() - line.getObserverE()) * t;
+        return (int) Math.round(((e - originEast) / dx));
+    }
+
+    private int getGridY(SightLine line, double t, double dy) {
+        double n = line.getObserverN() + (line.getTargetN() - line.getObserverN()) * t;
+        return (int) Math.round(((n - originNorth) / dy));
+    }
+
+    private static double getValue(Map<GridTile, GridRaster> rasters, int gridX, int gridY, int tileSize) {
+        GridRaster raster = rasters.get(new GridTile(gridX / tileSize, gridY / tileSize));
+        return raster == null ? Double.NaN : raster.getValue(gridX, gridY);
+    }
+
+    private static GridTile getTile(DataPoint p) {
+        return new GridTile(p.getTileX(), p.getTileY());
+    }
+
+    private int getTileSize(double dx) {
         int tileSize = REQUEST_SIZE_DEFAULT;
         while (tileSize * dx > REQUEST_MAX_SIZE_METRES && tileSize > 32) {
             tileSize /= 2;
@@ -180,115 +1176,281 @@ public class TerrainProfileService {
     }
 
     private double determineScaleFactor(double scaleFactor, double[] extent) {
+        if (isOnScaleLadder(scaleFactor)) {
+            return scaleFactor;
+        }
+
+        for (double sf : SCALE_FACTORS) {
+            if (getSizePx(extent, sf) <= SCALE_SIZE_THRESHOLD) {
+                return sf;
+            }
+        }
+        return SCALE_FACTORS[SCALE_FACTORS.length - 1];
+    }
+
+    protected static boolean isOnScaleLadder(double scaleFactor) {
         if (scaleFactor > 0) {
             for (double temp : SCALE_FACTORS) {
                 if (scaleFactor == temp) {
-                    return scaleFactor;
+                    return true;
                 }
             }
         }
+        return false;
+    }
 
+    /**
+     * Scale factor for a quick first answer. Walks down the scale ladder from
+     * the level the full profile would use and stops at the coarsest level
+     * that still covers the route with COARSE_MIN_SIZE_PX pixels and doesn't
+     * degrade the GetCoverage requests into single pixels. Tiles at these
+     * levels cover the same ground with a fraction of the bytes.
+     *
+     * @param scaleFactor
+     *      scale factor the full profile is requested with (non-positive considered null)
+     * @return scale factor from the ladder, or 0.0 if the route is too short
+     *      to gain anything from going coarser than the full profile
+     */
+    public double getCoarseScaleFactor(double[] coordinates, double scaleFactor) {
+        double[] extent = GeomUtil.getEnvelope(coordinates);
+        double full = determineScaleFactor(scaleFactor, extent);
+        double coarse = 0.0;
+        for (double sf : SCALE_FACTORS) {
+            if (sf >= full) {
+                continue;
+            }
+            if (getSizePx(extent, sf) < COARSE_MIN_SIZE_PX
+                    || getTileSize(offsetVectorX / sf) == 1) {
+                break;
+            }
+            coarse = sf;
+        }
+        return coarse;
+    }
+
+    /**
+     * @return the larger dimension of the extent in pixels at scaleFactor
+     */
+    private int getSizePx(double[] extent, double scaleFactor) {
         double widthMetres = extent[2] - extent[0];
         double heightMetres = extent[3] - extent[1];
-        for (double sf : SCALE_FACTORS) {
-            double xPerPx = Math.abs(offsetVectorX / sf);
-            double yPerPx = Math.abs(offsetVectorY / sf);
-            int widthPx = (int) Math.round(widthMetres / xPerPx);
-            int heightPx = (int) Math.round(heightMetres / yPerPx);
-            if (widthPx <= SCALE_SIZE_THRESHOLD && heightPx <= SCALE_SIZE_THRESHOLD) {
-                return sf;
+        double xPerPx = Math.abs(offsetVectorX / scaleFactor);
+        double yPerPx = Math.abs(offsetVectorY / scaleFactor);
+        int widthPx = (int) Math.round(widthMetres / xPerPx);
+        int heightPx = (int) Math.round(heightMetres / yPerPx);
+        return Math.max(widthPx, heightPx);
+    }
+
+    /**
+     * @param e0 east of the point preceding coordinates (or the first point itself)
+     * @param n0 north of the point preceding coordinates (or the first point itself)
+     * @param distFromStart distance from start of (e0, n0)
+     * @param numOthers number of additional coverages sampled
+     */
+    private List<DataPoint> createDataPoints(double[] coordinates, double e0, double n0, double distFromStart,
+            int tileSize, double dx, double dy, int numOthers) {
+        int n = coordinates.length / 2;
+        double[] distances = GeomUtil.getCumulativeLengths(coordinates, e0, n0, distFromStart);
+        int[] gridX = new int[n];
+        int[] gridY = new int[n];
+        getGridCells(coordinates, originEast, originNorth, dx, dy, gridX, gridY);
+
+        List<DataPoint> points = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            points.add(createDataPoint(coordinates[i * 2], coordinates[i * 2 + 1], distances[i],
+                    gridX[i], gridY[i], tileSize, numOthers));
+        }
+        return points;
+    }
+
+    /**
+     * Grid cells of points [e1,n1,...,eN,nN] written to gridX and gridY, in
+     * a loop of its own so that the JIT can vectorize it
+     */
+    static void getGridCells(double[] points, double originEast, double originNorth,
+            double dx, double dy, int[] gridX, int[] gridY) {
+        for (int i = 0; i < gridX.length; i++) {
+            gridX[i] = (int) Math.round((points[i * 2] - originEast) / dx);
+            gridY[i] = (int) Math.round((points[i * 2 + 1] - originNorth) / dy);
+        }
+    }
+
+    private DataPoint createDataPoint(double e, double n, double distFromStart,
+            int tileSize, double dx, double dy, int numOthers) {
+        int gridX = (int) Math.round(((e - originEast) / dx));
+        int gridY = (int) Math.round(((n - originNorth) / dy));
+        return createDataPoint(e, n, distFromStart, gridX, gridY, tileSize, numOthers);
+    }
+
+    private static DataPoint createDataPoint(double e, double n, double distFromStart,
+            int gridX, int gridY, int tileSize, int numOthers) {
+        DataPoint dp = new DataPoint();
+        dp.setE(e);
+        dp.setN(n);
+        dp.setDistFromStart(distFromStart);
+        dp.setGridX(gridX);
+        dp.setGridY(gridY);
+        dp.setTileX(gridX / tileSize);
+        dp.setTileY(gridY / tileSize);
+        if (numOthers > 0) {
+            dp.setAltitudes(new double[numOthers]);
+        }
+        return dp;
+    }
+
+    private void setAltitudes(List<DataPoint> pointsInTile, double scaleFactor, int tileSize,
+            double dx, double dy, Deadline deadline, List<TerrainProfileService> others) throws ServiceException {
+        // Other coverages are fetched in the background while this one is fetched on this thread
+        RequestMetrics metrics = RequestMetrics.current();
+        List<CompletableFuture<GridWindow>> otherWindows = new ArrayList<>(others.size());
+        for (TerrainProfileService other : others) {
+            otherWindows.add(CompletableFuture.supplyAsync(() -> {
+                RequestMetrics previous = RequestMetrics.bind(metrics);
+                try {
+                    return other.getWindow(pointsInTile, scaleFactor, tileSize, dx, dy, deadline);
+                } catch (ServiceException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    RequestMetrics.bind(previous);
+                }
+            }, executors.getFetchExecutor()));
+        }
+
+        try {
+            GridWindow window = getWindow(pointsInTile, scaleFactor, tileSize, dx, dy, deadline);
+            setAltitudes(window, pointsInTile, scaleFactor, -1);
+            for (int i = 0; i < others.size(); i++) {
+                others.get(i).setAltitudes(join(otherWindows.get(i)), pointsInTile, scaleFactor, i);
             }
+        } finally {
+            otherWindows.forEach(f -> f.cancel(false));
+        }
+    }
+
+    private CompletableFuture<Void> setAltitudesAsync(List<DataPoint> pointsInTile, double scaleFactor,
+            int tileSize, double dx, double dy, Deadline deadline, List<TerrainProfileService> others,
+            RequestMetrics metrics) {
+        if (deadline.isExpired()) {
+            return CompletableFuture.failedFuture(new DeadlineExceededException());
+        }
+        RequestMetrics previous = RequestMetrics.bind(metrics);
+        try {
+            // This and the other coverages are fetched at once, sampled when all of them are done
+            List<TerrainProfileService> services = new ArrayList<>(others.size() + 1);
+            services.add(this);
+            services.addAll(others);
+            List<CompletableFuture<WindowReader>> windows = new ArrayList<>(services.size());
+            for (TerrainProfileService service : services) {
+                windows.add(service.getWindowAsync(pointsInTile, scaleFactor, tileSize, dx, dy, deadline));
+            }
+            return CompletableFuture.allOf(windows.toArray(new CompletableFuture[0])).thenRunAsync(() -> {
+                RequestMetrics outer = RequestMetrics.bind(metrics);
+                try {
+                    for (int i = 0; i < services.size(); i++) {
+                        GridWindow window = windows.get(i).join().read();
+                        services.get(i).setAltitudes(window, pointsInTile, scaleFactor, i - 1);
+                    }
+                } catch (ServiceException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    RequestMetrics.bind(outer);
+                }
+            }, executors.getAsyncExecutor());
+        } finally {
+            RequestMetrics.bind(previous);
         }
-        return SCALE_FACTORS[SCALE_FACTORS.length - 1];
     }
 
-    private double[] interpolate(double[] coordinates, int numDataPoints) {
-        double[] interpolated = new double[numDataPoints * 2];
-
-        double segmentLength = GeomUtil.getLength(coordinates) / (numDataPoints - 1);
-        double remainingSegmentLength = segmentLength;
-
-        int i = 0;
-        int j = 0;
-
-        double x0 = coordinates[j++];
-        double y0 = coordinates[j++];
-        double x1 = coordinates[j++];
-        double y1 = coordinates[j++];
-
-        double dx = x1 - x0;
-        double dy = y1 - y0;
-        double distanceToNextPoint = Math.sqrt(dx * dx + dy * dy);
-        double dxNormalized = dx / distanceToNextPoint;
-        double dyNormalized = dy / distanceToNextPoint;
-
-        // Add first point
-        interpolated[i++] = x0;
-        interpolated[i++] = y0;
-
-        while (i < interpolated.length - 2) {
-            if (distanceToNextPoint < remainingSegmentLength) {
-                remainingSegmentLength -= distanceToNextPoint;
-                x0 = x1;
-                y0 = y1;
-                x1 = coordinates[j++];
-                y1 = coordinates[j++];
-                dx = x1 - x0;
-                dy = y1 - y0;
-                distanceToNextPoint = Math.sqrt(dx * dx + dy * dy);
-                dxNormalized = dx / distanceToNextPoint;
-                dyNormalized = dy / distanceToNextPoint;
+    /**
+     * Sets the altitudes of points within the same tile from window
+     *
+     * @param other index of this coverage in {@link DataPoint#getAltitudes()},
+     *        negative to set {@link DataPoint#getAltitude()} instead
+     */
+    private void setAltitudes(GridWindow window, List<DataPoint> pointsInTile, double scaleFactor, int other) {
+        RequestMetrics metrics = RequestMetrics.current();
+        long decodeBegin = metrics.begin();
+        boolean noData = false;
+        for (DataPoint point : pointsInTile) {
+            double altitude = getValue(window, point, scaleFactor);
+            if (other < 0) {
+                point.setAltitude(altitude);
             } else {
-                x0 += remainingSegmentLength * dxNormalized;
-                y0 += remainingSegmentLength * dyNormalized;
-                interpolated[i++] = x0;
-                interpolated[i++] = y0;
-                distanceToNextPoint -= remainingSegmentLength;
-                remainingSegmentLength = segmentLength;
+                point.getAltitudes()[other] = altitude;
             }
+            noData |= Double.isNaN(altitude);
+        }
+        if (noData && window != null) {
+            learnNoData(window, scaleFactor);
         }
+        metrics.end(RequestMetrics.Stage.DECODE, decodeBegin);
+    }
 
-        // Add last point
-        interpolated[interpolated.length - 2] = coordinates[coordinates.length - 2];
-        interpolated[interpolated.length - 1] = coordinates[coordinates.length - 1];
+    /**
+     * Fetches the cells of points within the same tile, leaving out the
+     * points known to have no data
+     *
+     * @return null if none of the points can have data
+     */
+    private GridWindow getWindow(List<DataPoint> pointsInTile, double scaleFactor, int tileSize,
+            double dx, double dy, Deadline deadline) throws ServiceException {
+        List<DataPoint> unmasked = new ArrayList<>(pointsInTile.size());
+        int[] bounds = getUnmaskedBounds(pointsInTile, scaleFactor, unmasked);
+        if (bounds == null) {
+            return null;
+        }
 
-        return interpolated;
+        DataPoint first = unmasked.get(0);
+        GridWindow window = getWindow(first.getTileX(), first.getTileY(), tileSize,
+                bounds[0], bounds[1], bounds[2], bounds[3], scaleFactor, dx, dy, deadline);
+        RequestMetrics metrics = RequestMetrics.current();
+        long decodeBegin = metrics.begin();
+        decodeTiles(window, unmasked);
+        metrics.end(RequestMetrics.Stage.DECODE, decodeBegin);
+        return window;
     }
 
-    private List<DataPoint> createDataPoints(double[] coordinates, int tileSize, double dx, double dy) {
-        double e0 = coordinates[0];
-        double n0 = coordinates[1];
-        double distFromStart = 0.0;
+    /**
+     * Reads a window fetched by {@link #getWindowAsync(List, double, int, double, double, Deadline)},
+     * the TIFF is decoded in read() so that it happens on the thread sampling the tile
+     */
+    @FunctionalInterface
+    private interface WindowReader {
+        GridWindow read() throws ServiceException;
+    }
 
-        List<DataPoint> points = new ArrayList<>(coordinates.length / 2);
-        for (int i = 0; i < coordinates.length;) {
-            double e1 = coordinates[i++];
-            double n1 = coordinates[i++];
-            distFromStart += GeomUtil.getDistance(e1, n1, e0, n0);
-
-            int gridX = (int) Math.round(((e1 - originEast) / dx));
-            int gridY = (int) Math.round(((n1 - originNorth) / dy));
-            int tileX = gridX / tileSize;
-            int tileY = gridY / tileSize;
-
-            DataPoint dp = new DataPoint();
-            dp.setE(e1);
-            dp.setN(n1);
-            dp.setDistFromStart(distFromStart);
-            dp.setGridX(gridX);
-            dp.setGridY(gridY);
-            dp.setTileX(tileX);
-            dp.setTileY(tileY);
-            points.add(dp);
-
-            e0 = e1;
-            n0 = n1;
+    /**
+     * Same as {@link #getWindow(List, double, int, double, double, Deadline)}
+     * without blocking the calling thread
+     */
+    private CompletableFuture<WindowReader> getWindowAsync(List<DataPoint> pointsInTile, double scaleFactor,
+            int tileSize, double dx, double dy, Deadline deadline) {
+        List<DataPoint> unmasked = new ArrayList<>(pointsInTile.size());
+        int[] bounds = getUnmaskedBounds(pointsInTile, scaleFactor, unmasked);
+        if (bounds == null) {
+            return CompletableFuture.completedFuture(() -> null);
         }
-        return points;
+
+        DataPoint first = unmasked.get(0);
+        return getWindowAsync(first.getTileX(), first.getTileY(), tileSize,
+                bounds[0], bounds[1], bounds[2], bounds[3], scaleFactor, dx, dy, deadline)
+                .thenApply(reader -> () -> {
+                    GridWindow window = reader.read();
+                    RequestMetrics metrics = RequestMetrics.current();
+                    long decodeBegin = metrics.begin();
+                    decodeTiles(window, unmasked);
+                    metrics.end(RequestMetrics.Stage.DECODE, decodeBegin);
+                    return window;
+                });
     }
 
-    private void setAltitudes(List<DataPoint> pointsInTile, double scaleFactor, double dx, double dy)
-            throws ServiceException {
+    /**
+     * Collects the points of pointsInTile that can have data to unmasked
+     *
+     * @return grid cells the unmasked points fall in as [minGridX, minGridY, maxGridX, maxGridY],
+     *         null if none of the points can have data
+     */
+    private int[] getUnmaskedBounds(List<DataPoint> pointsInTile, double scaleFactor, List<DataPoint> unmasked) {
         int minGridX = Integer.MAX_VALUE;
         int minGridY = Integer.MAX_VALUE;
         int maxGridX = Integer.MIN_VALUE;
@@ -296,13 +1458,17 @@ public class TerrainProfileService {
 
         for (DataPoint p : pointsInTile)  {
             int gridX = p.getGridX();
+            int gridY = p.getGridY();
+            if (isMasked(gridX, gridY, scaleFactor)) {
+                continue;
+            }
+            unmasked.add(p);
             if (gridX < minGridX) {
                 minGridX = gridX;
             }
             if (gridX > maxGridX) {
                 maxGridX = gridX;
             }
-            int gridY = p.getGridY();
             if (gridY < minGridY) {
                 minGridY = gridY;
             }
@@ -310,7 +1476,294 @@ public class TerrainProfileService {
                 maxGridY = gridY;
             }
         }
+        if (unmasked.isEmpty()) {
+            return null;
+        }
+        return new int[] { minGridX, minGridY, maxGridX, maxGridY };
+    }
+
+    private double getValue(GridWindow window, DataPoint point, double scaleFactor) {
+        if (window == null || isMasked(point.getGridX(), point.getGridY(), scaleFactor)) {
+            return Double.NaN;
+        }
+        return window.getValue(point.getGridX(), point.getGridY());
+    }
+
+    private void decodeTiles(GridWindow window, List<DataPoint> points) {
+        if (decodePool != null) {
+            BitSet tiles = new BitSet();
+            for (DataPoint point : points) {
+                tiles.set(window.getTileIndex(point.getGridX(), point.getGridY()));
+            }
+            decodeTiles(window, tiles);
+        }
+    }
 
+    private static GridWindow join(CompletableFuture<GridWindow> future) throws ServiceException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ServiceException("Failed to fetch coverage", cause);
+        }
+    }
+
+    /**
+     * Grid cells [minGridX, maxGridX] x [minGridY, maxGridY] within tile (tileX, tileY).
+     * With the tile cache enabled the whole tile is fetched instead, once, and
+     * served from the cache from then on.
+     */
+    private GridWindow getWindow(int tileX, int tileY, int tileSize,
+            int minGridX, int minGridY, int maxGridX, int maxGridY,
+            double scaleFactor, double dx, double dy, Deadline deadline) throws ServiceException {
+        RequestMetrics metrics = RequestMetrics.current();
+        if (tileCache == null) {
+            byte[] tiff = getCoverage(minGridX, minGridY, maxGridX, maxGridY, scaleFactor, dx, dy, deadline);
+            metrics.tile(false);
+            return new GridWindow(readDEM(tiff), minGridX, minGridY, maxGridX, maxGridY);
+        }
+        int x0 = tileX * tileSize;
+        int y0 = tileY * tileSize;
+        String key = getTileKey(tileX, tileY, tileSize, scaleFactor);
+        byte[] cached = tileCache.get(key);
+        metrics.tile(cached != null);
+        DEM dem;
+        if (cached != null) {
+            dem = readCachedDEM(cached);
+        } else {
+            byte[] tiff = getTile(key, x0, y0, tileSize, scaleFactor, dx, dy, deadline);
+            TiledTiffDEM tiffDEM = readDEM(tiff);
+            putTile(key, tiff, tiffDEM);
+            dem = tiffDEM;
+        }
+        return new GridWindow(dem, x0, y0, x0 + tileSize - 1, y0 + tileSize - 1);
+    }
+
+    /**
+     * Whole tile starting from grid cell (x0, y0), from the shared tile cache
+     * if enabled, otherwise from the WCS
+     */
+    private byte[] getTile(String key, int x0, int y0, int tileSize,
+            double scaleFactor, double dx, double dy, Deadline deadline) throws ServiceException {
+        int x1 = x0 + tileSize - 1;
+        int y1 = y0 + tileSize - 1;
+        if (sharedTileCache == null) {
+            return getCoverage(x0, y0, x1, y1, scaleFactor, dx, dy, deadline);
+        }
+        return sharedTileCache.get(key, () -> getCoverage(x0, y0, x1, y1, scaleFactor, dx, dy, deadline), deadline);
+    }
+
+    /**
+     * Same as {@link #getWindow(int, int, int, int, int, int, int, double, double, double, Deadline)}
+     * without blocking the calling thread
+     */
+    private CompletableFuture<WindowReader> getWindowAsync(int tileX, int tileY, int tileSize,
+            int minGridX, int minGridY, int maxGridX, int maxGridY,
+            double scaleFactor, double dx, double dy, Deadline deadline) {
+        RequestMetrics metrics = RequestMetrics.current();
+        if (tileCache == null) {
+            metrics.tile(false);
+            return getCoverageAsync(minGridX, minGridY, maxGridX, maxGridY, scaleFactor, dx, dy, deadline)
+                    .thenApply(tiff -> () -> new GridWindow(readDEM(tiff), minGridX, minGridY, maxGridX, maxGridY));
+        }
+        int x0 = tileX * tileSize;
+        int y0 = tileY * tileSize;
+        int x1 = x0 + tileSize - 1;
+        int y1 = y0 + tileSize - 1;
+        String key = getTileKey(tileX, tileY, tileSize, scaleFactor);
+        byte[] cached = tileCache.get(key);
+        metrics.tile(cached != null);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(() -> new GridWindow(readCachedDEM(cached), x0, y0, x1, y1));
+        }
+        CompletableFuture<byte[]> tile;
+        if (sharedTileCache == null) {
+            tile = getCoverageAsync(x0, y0, x1, y1, scaleFactor, dx, dy, deadline);
+        } else {
+            // The shared tile cache waits for other nodes fetching the same tile, so that is done on the pool
+            tile = CompletableFuture.supplyAsync(() -> {
+                RequestMetrics previous = RequestMetrics.bind(metrics);
+                try {
+                    return getTile(key, x0, y0, tileSize, scaleFactor, dx, dy, deadline);
+                } catch (ServiceException e) {
+                    throw new CompletionException(e);
+                } finally {
+                    RequestMetrics.bind(previous);
+                }
+            }, executors.getAsyncExecutor());
+        }
+        return tile.thenApply(tiff -> () -> {
+            TiledTiffDEM dem = readDEM(tiff);
+            putTile(key, tiff, dem);
+            return new GridWindow(dem, x0, y0, x1, y1);
+        });
+    }
+
+    /**
+     * Caches the tile quantized if configured and the altitudes of the tile
+     * fit within the error allowed, otherwise as fetched
+     */
+    private void putTile(String key, byte[] tiff, TiledTiffDEM dem) {
+        if (tileCacheMaxError > 0) {
+            RequestMetrics metrics = RequestMetrics.current();
+            long begin = metrics.begin();
+            if (decodePool != null) {
+                dem.decodeTiles(dem.getTileIndices(0, 0, dem.getWidth() - 1, dem.getHeight() - 1),
+                        decodePool, decodeParallelism);
+            }
+            byte[] quantized = QuantizedDEM.encode(dem, dem.getWidth(), dem.getHeight(), tileCacheMaxError);
+            metrics.end(RequestMetrics.Stage.DECODE, begin);
+            if (quantized != null) {
+                tileCache.put(key, quantized);
+                return;
+            }
+            LOG.debug("Range of altitudes too large to quantize tile", key, "- caching it as fetched");
+        }
+        tileCache.put(key, tiff);
+    }
+
+    private DEM readCachedDEM(byte[] cached) throws ServiceException {
+        if (QuantizedDEM.isQuantized(cached)) {
+            try {
+                return new QuantizedDEM(cached);
+            } catch (IllegalArgumentException e) {
+                throw new ServiceException("Unexpected cached tile", e);
+            }
+        }
+        return readDEM(cached);
+    }
+
+    private String getTileKey(int tileX, int tileY, int tileSize, double scaleFactor) {
+        return coverageId + '/' + scaleFactor + '/' + tileSize + '/' + tileX + '/' + tileY;
+    }
+
+    public boolean isTileCacheEnabled() {
+        return tileCache != null;
+    }
+
+    /**
+     * Tiles of the tile cache covering extent, leaving out the ones known
+     * to have no data
+     *
+     * @param extent [eastMin,northMin,eastMax,northMax]
+     * @param scaleFactor must be 1/2^n, where 0<=n<=7
+     */
+    public List<GridTile> getTiles(double[] extent, double scaleFactor) {
+        if (!isOnScaleLadder(scaleFactor)) {
+            throw new IllegalArgumentException("Unsupported scale factor " + scaleFactor);
+        }
+        double dx = offsetVectorX / scaleFactor;
+        double dy = offsetVectorY / scaleFactor;
+        int tileSize = getTileSize(dx);
+
+        int gx1 = (int) Math.round((extent[0] - originEast) / dx);
+        int gx2 = (int) Math.round((extent[2] - originEast) / dx);
+        int gy1 = (int) Math.round((extent[1] - originNorth) / dy);
+        int gy2 = (int) Math.round((extent[3] - originNorth) / dy);
+        int minGridX = Math.max(0, Math.min(gx1, gx2));
+        int maxGridX = Math.max(gx1, gx2);
+        int minGridY = Math.max(0, Math.min(gy1, gy2));
+        int maxGridY = Math.max(gy1, gy2);
+        if (gridLimits != null) {
+            // The limits are at full resolution, a cell of a coarser level covers 1/scaleFactor of them
+            minGridX = Math.max(minGridX, (int) Math.floor(gridLimits[0] * scaleFactor));
+            minGridY = Math.max(minGridY, (int) Math.floor(gridLimits[1] * scaleFactor));
+            maxGridX = Math.min(maxGridX, (int) Math.ceil(gridLimits[2] * scaleFactor));
+            maxGridY = Math.min(maxGridY, (int) Math.ceil(gridLimits[3] * scaleFactor));
+        }
+
+        List<GridTile> tiles = new ArrayList<>();
+        if (minGridX > maxGridX || minGridY > maxGridY) {
+            // entirely outside the coverage
+            return tiles;
+        }
+        for (int tileY = minGridY / tileSize; tileY <= maxGridY / tileSize; tileY++) {
+            for (int tileX = minGridX / tileSize; tileX <= maxGridX / tileSize; tileX++) {
+                int x0 = tileX * tileSize;
+                int y0 = tileY * tileSize;
+                if (!isMasked(x0, y0, x0 + tileSize - 1, y0 + tileSize - 1, scaleFactor)) {
+                    tiles.add(new GridTile(tileX, tileY));
+                }
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return true if the tile is in the tile cache, false if not or if the cache is disabled
+     */
+    public boolean isTileCached(GridTile tile, double scaleFactor) {
+        if (tileCache == null) {
+            return false;
+        }
+        int tileSize = getTileSize(offsetVectorX / scaleFactor);
+        return tileCache.get(getTileKey(tile.getTileX(), tile.getTileY(), tileSize, scaleFactor)) != null;
+    }
+
+    /**
+     * Fetches a tile returned by {@link #getTiles(double[], double)} into
+     * the tile cache unless it's there already. With the shared tile cache
+     * enabled the tile is taken from there if another node has fetched it.
+     *
+     * @return true if the tile was fetched, false if it was in the cache already
+     * @throws IllegalStateException if the tile cache is disabled
+     */
+    public boolean warmTile(GridTile tile, double scaleFactor, Deadline deadline) throws ServiceException {
+        if (tileCache == null) {
+            throw new IllegalStateException("Tile cache is disabled");
+        }
+        double dx = offsetVectorX / scaleFactor;
+        double dy = offsetVectorY / scaleFactor;
+        int tileSize = getTileSize(dx);
+        String key = getTileKey(tile.getTileX(), tile.getTileY(), tileSize, scaleFactor);
+        if (tileCache.get(key) != null) {
+            return false;
+        }
+        int x0 = tile.getTileX() * tileSize;
+        int y0 = tile.getTileY() * tileSize;
+        byte[] tiff = getTile(key, x0, y0, tileSize, scaleFactor, dx, dy, deadline);
+        putTile(key, tiff, readDEM(tiff));
+        return true;
+    }
+
+    /**
+     * Fetches the grid cells [minGridX, maxGridX] x [minGridY, maxGridY] with a single GetCoverage request
+     */
+    private byte[] getCoverage(int minGridX, int minGridY, int maxGridX, int maxGridY,
+            double scaleFactor, double dx, double dy, Deadline deadline) throws ServiceException {
+        String request = getCoverageUrl(minGridX, minGridY, maxGridX, maxGridY, scaleFactor, dx, dy);
+        RequestMetrics metrics = RequestMetrics.current();
+        long begin = metrics.begin();
+        byte[] tiff = loader.getCoverage(getConnectionSupplier(request, deadline), deadline);
+        metrics.end(RequestMetrics.Stage.WCS, begin);
+        metrics.request(tiff.length);
+        return tiff;
+    }
+
+    /**
+     * Same as {@link #getCoverage(int, int, int, int, double, double, double, Deadline)}
+     * without blocking the calling thread
+     */
+    private CompletableFuture<byte[]> getCoverageAsync(int minGridX, int minGridY, int maxGridX, int maxGridY,
+            double scaleFactor, double dx, double dy, Deadline deadline) {
+        String request = getCoverageUrl(minGridX, minGridY, maxGridX, maxGridY, scaleFactor, dx, dy);
+        RequestMetrics metrics = RequestMetrics.current();
+        long begin = metrics.begin();
+        return loader.getCoverageAsync(getConnectionSupplier(request, deadline), deadline).thenApply(tiff -> {
+            metrics.end(RequestMetrics.Stage.WCS, begin);
+            metrics.request(tiff.length);
+            return tiff;
+        });
+    }
+
+    private String getCoverageUrl(int minGridX, int minGridY, int maxGridX, int maxGridY,
+            double scaleFactor, double dx, double dy) {
         double eastMin = originEast + minGridX * dx;
         double eastMax;
         if (minGridX == maxGridX) {
@@ -333,24 +1786,21 @@ public class TerrainProfileService {
         getCoverage.scaling(new ScaleByFactor(scaleFactor));
         Map<String, String[]> getCoverageKVP = getCoverage.toKVP();
         getCoverageKVP.put("tiling", TILING_PARAM);
+        getCoverageKVP.putAll(encodingParams);
 
         String queryString = IOHelper.getParamsMultiValue(getCoverageKVP);
-        String request = IOHelper.addQueryString(endPoint, queryString);
-        byte[] response = loader.getCoverage(getConnectionSupplier(request));
+        return IOHelper.addQueryString(endPoint, queryString);
+    }
+
+    private TiledTiffDEM readDEM(byte[] tiff) throws ServiceException {
+        RequestMetrics metrics = RequestMetrics.current();
+        long begin = metrics.begin();
         try {
-            TIFFReader r = new TIFFReader(response);
-            TiledTiffDEM tiff = new TiledTiffDEM(r, extractorGenerator.get());
-            setAltitudes(pointsInTile, tiff, minGridX, minGridY);
+            return new TiledTiffDEM(tiff, extractorGenerator.get());
         } catch (IllegalArgumentException e) {
             throw new ServiceException("Unexpected TIFF file", e);
-        }
-    }
-
-    private void setAltitudes(List<DataPoint> pointsInTile, TiledTiffDEM tiff, int minGridX, int minGridY) {
-        for (DataPoint point : pointsInTile) {
-            int x = point.getGridX() - minGridX;
-            int y = point.getGridY() - minGridY;
-            point.setAltitude(tiff.getValue(x, y));
+        } finally {
+            metrics.end(RequestMetrics.Stage.DECODE, begin);
         }
     }
 
@@ -0,0 +1,167 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import fi.nls.oskari.log.LogFactory;
+import fi.nls.oskari.log.Logger;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.terrainprofile.dem.TileValueExtractor;
+
+/**
+ * Holds the TerrainProfileService of a coverage. If there's a snapshot of the
+ * coverage metadata the service is started from it straight away, meanwhile
+ * the metadata is loaded from the WCS in the background and the snapshot is
+ * replaced with it. Requests never wait on each other, the ones arriving
+ * before any service is available wait for the same load to finish.
+ */
+public class TerrainProfileServiceProvider implements AutoCloseable {
+
+    private static final Logger LOG = LogFactory.getLogger(TerrainProfileServiceProvider.class);
+
+    private final String endPoint;
+    private final String coverageId;
+    private final String apiKey;
+    private final Supplier<TileValueExtractor> extractorGenerator;
+    private final Path snapshot;
+    // shared by every service loaded for the coverage, outlives reloads
+    private final TerrainProfileExecutors executors = new TerrainProfileExecutors();
+
+    private volatile TerrainProfileService service;
+    private CompletableFuture<TerrainProfileService> loading;
+    private boolean started;
+
+    /**
+     * @param snapshot file to start from and to save the metadata to, null for none
+     */
+    public TerrainProfileServiceProvider(String endPoint, String coverageId, String apiKey,
+            Supplier<TileValueExtractor> extractorGenerator, Path snapshot) {
+        this.endPoint = endPoint;
+        this.coverageId = coverageId;
+        this.apiKey = apiKey;
+        this.extractorGenerator = extractorGenerator;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Starts the service from the snapshot if there is one and starts
+     * loading the metadata in the background. Only the first call does anything.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        service = fromSnapshot();
+        reload();
+    }
+
+    /**
+     * @return the service, if none is available yet waits for it to be loaded
+     * @throws ServiceException if loading the service failed, the next call tries again
+     */
+    public TerrainProfileService get() throws ServiceException {
+        TerrainProfileService current = service;
+        if (current != null) {
+            return current;
+        }
+        try {
+            return reload().join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ServiceException("Failed to init TerrainProfileService", cause);
+        }
+    }
+
+    /**
+     * Loads the metadata from the WCS in the background unless already loading
+     */
+    public synchronized CompletableFuture<TerrainProfileService> reload() {
+        if (loading != null) {
+            return loading;
+        }
+        CompletableFuture<TerrainProfileService> load = CompletableFuture.supplyAsync(() -> {
+            try {
+                return load();
+            } catch (ServiceException e) {
+                throw new CompletionException(e);
+            }
+        }, executors.getInitExecutor());
+        loading = load;
+        load.whenComplete((s, e) -> loaded(load, e));
+        return load;
+    }
+
+    /**
+     * Shuts down the thread pools of the coverage, the services loaded so
+     * far finish what they are doing but can't be used after this
+     */
+    @Override
+    public void close() {
+        executors.close();
+    }
+
+    private synchronized void loaded(CompletableFuture<TerrainProfileService> load, Throwable e) {
+        if (loading == load) {
+            loading = null;
+        }
+        if (e != null) {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            LOG.error("Failed to init TerrainProfileService for", coverageId, ":", cause.getMessage());
+        }
+    }
+
+    private TerrainProfileService load() throws ServiceException {
+        TerrainProfileService fresh = new TerrainProfileService(endPoint, coverageId, apiKey,
+                extractorGenerator, null, executors);
+        TerrainProfileService current = service;
+        if (current != null && !current.isSameGrid(fresh)) {
+            LOG.warn("Grid of", coverageId, "differs from the snapshot, switching to the current one");
+        }
+        service = fresh;
+        writeSnapshot(fresh.getMetadata());
+        return fresh;
+    }
+
+    private TerrainProfileService fromSnapshot() {
+        if (snapshot == null || !Files.exists(snapshot)) {
+            return null;
+        }
+        try {
+            CoverageMetadata metadata = CoverageMetadata.read(snapshot);
+            if (!metadata.isFor(endPoint, coverageId)) {
+                LOG.info("Snapshot", snapshot, "is for another coverage, ignoring it");
+                return null;
+            }
+            TerrainProfileService fromSnapshot = new TerrainProfileService(endPoint, coverageId, apiKey,
+                    extractorGenerator, metadata, executors);
+            LOG.info("Started", coverageId, "from snapshot", snapshot);
+            return fromSnapshot;
+        } catch (IOException | ServiceException e) {
+            LOG.warn("Failed to read snapshot", snapshot, ":", e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeSnapshot(CoverageMetadata metadata) {
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            metadata.write(snapshot);
+        } catch (IOException e) {
+            LOG.warn("Failed to write snapshot", snapshot, ":", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+package fi.nls.oskari.terrainprofile;
+
+import fi.nls.oskari.log.LogFactory;
+import fi.nls.oskari.log.Logger;
+import fi.nls.oskari.search.util.TM35MapSheetDivision;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.util.PropertyUtil;
+
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the DEM tiles covering TM35 map sheets or bounding boxes into the
+ * tile cache of a TerrainProfileService ahead of the requests needing them.
+ * Tiles are fetched one at a time with at most requestsPerSecond GetCoverage
+ * requests a second. Tiles already in the cache and tiles known to have no
+ * data cost nothing.
+ *
+ * Runs at startup if terrain.profile.prewarm.sheets or terrain.profile.prewarm.bbox
+ * is configured, or when an admin asks for it with {@link TileCacheWarmerHandler}.
+ * The tile cache is local to each node so every node warms up its own.
+ */
+public class TileCacheWarmer {
+
+    private static final Logger LOG = LogFactory.getLogger(TileCacheWarmer.class);
+
+    protected static final String PROPERTY_SHEETS = "terrain.profile.prewarm.sheets";
+    protected static final String PROPERTY_BBOX = "terrain.profile.prewarm.bbox";
+    protected static final String PROPERTY_SCALE_FACTORS = "terrain.profile.prewarm.scaleFactors";
+    protected static final String PROPERTY_REQUESTS_PER_SECOND = "terrain.profile.prewarm.requestsPerSecond";
+    protected static final String PROPERTY_TIMEOUT_MS = "terrain.profile.prewarm.timeoutms";
+
+    protected static final String DEFAULT_SCALE_FACTORS = "1";
+    private static final int DEFAULT_REQUESTS_PER_SECOND = 2;
+    private static final int DEFAULT_TIMEOUT_MS = 60000;
+
+    // the warm-up started last, one at a time
+    private static TileCacheWarmer latest;
+
+    private final List<double[]> extents;
+    private final double[] scaleFactors;
+    private final RateLimiter rateLimiter;
+    private final int timeoutMs;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger fetched = new AtomicInteger();
+    private final AtomicInteger cached = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean running;
+    private volatile boolean cancelled;
+
+    /**
+     * @param extents [eastMin,northMin,eastMax,northMax] in the CRS of the coverage
+     * @param scaleFactors each must be 1/2^n, where 0<=n<=7
+     * @param timeoutMs timeout of each GetCoverage request
+     */
+    public TileCacheWarmer(List<double[]> extents, double[] scaleFactors, int requestsPerSecond, int timeoutMs) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("requestsPerSecond must be positive");
+        }
+        for (double scaleFactor : scaleFactors) {
+            if (!TerrainProfileService.isOnScaleLadder(scaleFactor)) {
+                throw new IllegalArgumentException("Unsupported scale factor " + scaleFactor);
+            }
+        }
+        this.extents = extents;
+        this.scaleFactors = scaleFactors;
+        this.timeoutMs = timeoutMs;
+        // a permit is waited for as long as it takes, the limit is there to spare the WCS
+        this.rateLimiter = RateLimiter.of("terrainprofile-prewarm", RateLimiterConfig.custom()
+                .limitForPeriod(requestsPerSecond)
+                .limitRefreshPeriod(Duration.ofSeconds(1))
+                .timeoutDuration(Duration.ofSeconds(1))
+                .build());
+    }
+
+    /**
+     * Starts warming up the tile cache of the default coverage in the
+     * background if anything to warm up is configured
+     */
+    public static void startIfConfigured() {
+        String[] sheets = PropertyUtil.getCommaSeparatedList(PROPERTY_SHEETS);
+        String bbox = PropertyUtil.getOptional(PROPERTY_BBOX);
+        if (sheets.length == 0 && (bbox == null || bbox.trim().isEmpty())) {
+            return;
+        }
+        try {
+            start(create(sheets, bbox, PropertyUtil.get(PROPERTY_SCALE_FACTORS, DEFAULT_SCALE_FACTORS)));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid tile cache warm-up configuration:", e.getMessage());
+        }
+    }
+
+    /**
+     * Rate limit and timeout are read from properties
+     *
+     * @param sheets TM35 map sheet codes
+     * @param bbox bounding boxes as accepted by {@link #parseExtents(String)}, may be null
+     * @param scaleFactors as accepted by {@link #parseScaleFactors(String)}
+     * @throws IllegalArgumentException if any of the parameters is invalid
+     */
+    public static TileCacheWarmer create(String[] sheets, String bbox, String scaleFactors) {
+        List<double[]> extents = new ArrayList<>(getSheetExtents(sheets));
+        extents.addAll(parseExtents(bbox));
+        return new TileCacheWarmer(extents, parseScaleFactors(scaleFactors),
+                PropertyUtil.getOptional(PROPERTY_REQUESTS_PER_SECOND, DEFAULT_REQUESTS_PER_SECOND),
+                PropertyUtil.getOptional(PROPERTY_TIMEOUT_MS, DEFAULT_TIMEOUT_MS));
+    }
+
+    /**
+     * Warms up the default coverage with warmer on a background thread
+     *
+     * @return false if the previous warm-up is still running
+     */
+    public static synchronized boolean start(TileCacheWarmer warmer) {
+        if (latest != null && latest.isRunning()) {
+            return false;
+        }
+        latest = warmer;
+        warmer.running = true;
+        Thread t = new Thread(() -> {
+            try {
+                warmer.warm(TerrainProfileHandler.getDefaultProvider().get());
+            } catch (Exception e) {
+                LOG.warn("Tile cache warm-up failed:", e.getMessage());
+            } finally {
+                warmer.running = false;
+            }
+        }, "terrainprofile-prewarm");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    /**
+     * @return the warm-up started last, null if none
+     */
+    public static synchronized TileCacheWarmer getLatest() {
+        return latest;
+    }
+
+    /**
+     * @param sheets TM35 map sheet codes, for example "L4" or "L4133"
+     * @return extents of the map sheets in EPSG:3067
+     * @throws IllegalArgumentException if a code is not a valid map sheet
+     */
+    public static List<double[]> getSheetExtents(String[] sheets) {
+        List<double[]> extents = new ArrayList<>(sheets.length);
+        for (String sheet : sheets) {
+            String code = sheet.trim().toUpperCase();
+            if (code.isEmpty()) {
+                continue;
+            }
+            if (!TM35MapSheetDivision.validate(code)) {
+                throw new IllegalArgumentException("Invalid map sheet " + sheet);
+            }
+            int[] bbox = TM35MapSheetDivision.getBoundingBox(code);
+            extents.add(new double[] { bbox[0], bbox[1], bbox[2], bbox[3] });
+        }
+        return extents;
+    }
+
+    /**
+     * @param str bounding boxes eastMin,northMin,eastMax,northMax separated by semicolons
+     * @throws IllegalArgumentException if a bounding box is not four numbers
+     */
+    public static List<double[]> parseExtents(String str) {
+        List<double[]> extents = new ArrayList<>();
+        if (str == null) {
+            return extents;
+        }
+        for (String bbox : str.split(";")) {
+            if (bbox.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = bbox.split(",");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Invalid bounding box " + bbox
+                        + ", expected eastMin,northMin,eastMax,northMax");
+            }
+            double[] extent = new double[4];
+            for (int i = 0; i < 4; i++) {
+                try {
+                    extent[i] = Double.parseDouble(parts[i].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid bounding box " + bbox);
+                }
+            }
+            if (!(extent[0] <= extent[2] && extent[1] <= extent[3])) {
+                throw new IllegalArgumentException("Invalid bounding box " + bbox);
+            }
+            extents.add(extent);
+        }
+        return extents;
+    }
+
+    /**
+     * @param str comma separated scale factors, for example "1,0.125"
+     * @throws IllegalArgumentException if a scale factor is not a number
+     */
+    public static double[] parseScaleFactors(String str) {
+        String[] parts = str.split(",");
+        double[] scaleFactors = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                scaleFactors[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid scale factor " + parts[i]);
+            }
+        }
+        return scaleFactors;
+    }
+
+    /**
+     * Fetches the tiles into the tile cache of tps, blocks until done or cancelled.
+     * Failing tiles are logged and skipped.
+     */
+    public void warm(TerrainProfileService tps) {
+        if (!tps.isTileCacheEnabled()) {
+            LOG.warn("Tile cache is disabled, set", TerrainProfileService.PROPERTY_TILE_CACHE_LIMIT,
+                    "to warm it up");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        for (double scaleFactor : scaleFactors) {
+            List<List<GridTile>> tilesByExtent = new ArrayList<>(extents.size());
+            for (double[] extent : extents) {
+                List<GridTile> tiles = tps.getTiles(extent, scaleFactor);
+                tilesByExtent.add(tiles);
+                total.addAndGet(tiles.size());
+            }
+            for (List<GridTile> tiles : tilesByExtent) {
+                for (GridTile tile : tiles) {
+                    if (cancelled) {
+                        LOG.info("Tile cache warm-up cancelled", this);
+                        return;
+                    }
+                    warm(tps, tile, scaleFactor);
+                }
+            }
+        }
+        LOG.info("Tile cache warm-up done in", System.currentTimeMillis() - start, "ms", this);
+    }
+
+    private void warm(TerrainProfileService tps, GridTile tile, double scaleFactor) {
+        if (tps.isTileCached(tile, scaleFactor)) {
+            cached.incrementAndGet();
+            return;
+        }
+        while (!rateLimiter.acquirePermission()) {
+            if (cancelled) {
+                return;
+            }
+        }
+        try {
+            if (tps.warmTile(tile, scaleFactor, Deadline.after(timeoutMs))) {
+                fetched.incrementAndGet();
+            } else {
+                cached.incrementAndGet();
+            }
+        } catch (ServiceException | RuntimeException e) {
+            failed.incrementAndGet();
+            LOG.info("Failed to warm up tile", tile.getTileX(), tile.getTileY(),
+                    "at scale factor", scaleFactor, ":", e.getMessage());
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return number of tiles to warm up so far, grows as each scale factor is started
+     */
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getFetched() {
+        return fetched.get();
+    }
+
+    /**
+     * @return number of tiles that were in the cache already
+     */
+    public int getCached() {
+        return cached.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "total=" + getTotal() + " fetched=" + getFetched() + " cached=" + getCached() + " failed=" + getFailed();
+    }
+
+}
@@ -0,0 +1,89 @@
+package fi.nls.oskari.terrainprofile;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.nls.oskari.annotation.OskariActionRoute;
+import fi.nls.oskari.control.*;
+import fi.nls.oskari.util.IOHelper;
+
+import java.io.IOException;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Lets an admin warm up the tile cache of the default coverage on the node
+ * handling the request. With sheets (comma separated TM35 map sheet codes)
+ * and/or bbox (eastMin,northMin,eastMax,northMax separated by semicolons)
+ * starts a warm-up in the background at the given scaleFactors, with cancel=true
+ * cancels the one running. Responds with the state of the latest warm-up.
+ */
+@OskariActionRoute("TerrainProfileWarmUp")
+public class TileCacheWarmerHandler extends ActionHandler {
+
+    protected static final String PARAM_SHEETS = "sheets";
+    protected static final String PARAM_BBOX = "bbox";
+    protected static final String PARAM_SCALE_FACTORS = "scaleFactors";
+    protected static final String PARAM_CANCEL = "cancel";
+
+    private final ObjectMapper om;
+
+    public TileCacheWarmerHandler() {
+        this(new ObjectMapper());
+    }
+
+    public TileCacheWarmerHandler(ObjectMapper om) {
+        this.om = om;
+    }
+
+    @Override
+    public void handleAction(ActionParameters params) throws ActionException {
+        params.requireAdminUser();
+
+        if (params.getHttpParam(PARAM_CANCEL, false)) {
+            TileCacheWarmer latest = TileCacheWarmer.getLatest();
+            if (latest != null) {
+                latest.cancel();
+            }
+        }
+
+        String sheets = params.getHttpParam(PARAM_SHEETS, "");
+        String bbox = params.getHttpParam(PARAM_BBOX, "");
+        if (!sheets.trim().isEmpty() || !bbox.trim().isEmpty()) {
+            TileCacheWarmer warmer = createWarmer(sheets, bbox,
+                    params.getHttpParam(PARAM_SCALE_FACTORS, TileCacheWarmer.DEFAULT_SCALE_FACTORS));
+            if (!TileCacheWarmer.start(warmer)) {
+                throw new ActionParamsException("Previous warm-up is still running");
+            }
+        }
+        writeResponse(params, TileCacheWarmer.getLatest());
+    }
+
+    private static TileCacheWarmer createWarmer(String sheets, String bbox, String scaleFactors)
+            throws ActionParamsException {
+        try {
+            return TileCacheWarmer.create(sheets.split(","), bbox, scaleFactors);
+        } catch (IllegalArgumentException e) {
+            throw new ActionParamsException(e.getMessage());
+        }
+    }
+
+    private void writeResponse(ActionParameters params, TileCacheWarmer warmer) throws ActionException {
+        HttpServletResponse response = params.getResponse();
+        response.setContentType(IOHelper.CONTENT_TYPE_JSON);
+        try (JsonGenerator json = om.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartObject();
+            if (warmer != null) {
+                json.writeBooleanField("running", warmer.isRunning());
+                json.writeNumberField("total", warmer.getTotal());
+                json.writeNumberField("fetched", warmer.getFetched());
+                json.writeNumberField("cached", warmer.getCached());
+                json.writeNumberField("failed", warmer.getFailed());
+            }
+            json.writeEndObject();
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
+        }
+    }
+
+}
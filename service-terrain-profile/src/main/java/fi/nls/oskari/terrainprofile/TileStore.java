@@ -0,0 +1,31 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Storage for whole GetCoverage tiles shared by every node running the
+ * service. The lock lets the node that needs a tile first fetch it while the
+ * others wait for it to appear in the store. Implementations must be thread safe.
+ *
+ * @see SharedTileCache
+ */
+public interface TileStore {
+
+    /**
+     * @return the tile, null if not stored or expired
+     */
+    public byte[] get(String key);
+
+    public void put(String key, byte[] tile, long expirationMs);
+
+    /**
+     * @param owner tells the holder of the lock apart from others
+     * @param ttlMs time after which the lock is released even if unlock is never called
+     * @return true if the lock was acquired, false if someone else holds it
+     */
+    public boolean tryLock(String key, String owner, long ttlMs);
+
+    /**
+     * Releases the lock if owner still holds it
+     */
+    public void unlock(String key, String owner);
+
+}
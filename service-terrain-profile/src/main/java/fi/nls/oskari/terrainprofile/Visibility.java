@@ -0,0 +1,51 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Result of a line of sight check
+ */
+public class Visibility {
+
+    private static final Visibility VISIBLE = new Visibility(Boolean.TRUE, Double.NaN);
+    private static final Visibility UNKNOWN = new Visibility(null, Double.NaN);
+
+    private final Boolean visible;
+    private final double obstructionDistance;
+
+    private Visibility(Boolean visible, double obstructionDistance) {
+        this.visible = visible;
+        this.obstructionDistance = obstructionDistance;
+    }
+
+    public static Visibility visible() {
+        return VISIBLE;
+    }
+
+    /**
+     * @param distance from the observer to the first point blocking the view
+     */
+    public static Visibility blocked(double distance) {
+        return new Visibility(Boolean.FALSE, distance);
+    }
+
+    /**
+     * Altitude of the observer or the target is not known
+     */
+    public static Visibility unknown() {
+        return UNKNOWN;
+    }
+
+    /**
+     * @return null if unknown
+     */
+    public Boolean getVisible() {
+        return visible;
+    }
+
+    /**
+     * @return distance from the observer to the first point blocking the view, NaN if not blocked
+     */
+    public double getObstructionDistance() {
+        return obstructionDistance;
+    }
+
+}
@@ -0,0 +1,164 @@
+package fi.nls.oskari.terrainprofile;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.nls.oskari.annotation.OskariActionRoute;
+import fi.nls.oskari.control.*;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.service.ServiceRuntimeException;
+import fi.nls.oskari.util.IOHelper;
+import fi.nls.oskari.util.PropertyUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.geotools.api.referencing.operation.MathTransform;
+
+/**
+ * Line of sight for many observer-target pairs at once. Pairs are sent as
+ * the body of a POST request (or in the pairs parameter):
+ * <pre>
+ * {
+ *   "observerHeight": 2, "targetHeight": 0,
+ *   "pairs": [{ "observer": [e, n], "target": [e, n], "observerHeight": 30 }, ...]
+ * }
+ * </pre>
+ * Heights are metres above the ground, top level values are defaults for
+ * pairs that don't have their own.
+ */
+@OskariActionRoute("TerrainVisibility")
+public class VisibilityHandler extends AbstractTerrainHandler {
+
+    protected static final String PARAM_PAIRS = "pairs";
+
+    protected static final String PROPERTY_MAX_PAIRS = "terrain.profile.visibility.maxPairs";
+    protected static final String PROPERTY_MAX_SAMPLES = "terrain.profile.visibility.maxSamples";
+
+    protected static final String JSON_PROPERTY_OBSERVER = "observer";
+    protected static final String JSON_PROPERTY_TARGET = "target";
+    protected static final String JSON_PROPERTY_OBSERVER_HEIGHT = "observerHeight";
+    protected static final String JSON_PROPERTY_TARGET_HEIGHT = "targetHeight";
+
+    private static final int DEFAULT_MAX_PAIRS = 1000;
+    private static final int DEFAULT_MAX_SAMPLES = 10000000;
+
+    private int maxPairs = DEFAULT_MAX_PAIRS;
+    private int maxSamples = DEFAULT_MAX_SAMPLES;
+
+    public VisibilityHandler() {
+        this(new ObjectMapper(), null);
+    }
+
+    public VisibilityHandler(ObjectMapper om, TerrainProfileService tps) {
+        super(om, tps);
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        maxPairs = PropertyUtil.getOptional(PROPERTY_MAX_PAIRS, DEFAULT_MAX_PAIRS);
+        maxSamples = PropertyUtil.getOptional(PROPERTY_MAX_SAMPLES, DEFAULT_MAX_SAMPLES);
+    }
+
+    @Override
+    public void handleAction(ActionParameters params) throws ActionException {
+        Deadline deadline = Deadline.after(requestTimeoutMs);
+        String clientSRS = params.getHttpParam(ActionConstants.PARAM_SRS, TerrainProfileHandler.DEFAULT_SRS);
+        double scaleFactor = params.getHttpParam(TerrainProfileHandler.JSON_PROPERTY_SCALE_FACTOR, 0.0);
+        MathTransform transform = TerrainProfileHandler.getTransform(clientSRS, serviceSrs);
+        List<SightLine> lines = parseSightLines(readJson(params, PARAM_PAIRS), maxPairs, transform);
+
+        List<Visibility> visibility;
+        try {
+            visibility = getService().getVisibility(lines, scaleFactor, maxSamples, deadline);
+        } catch (IllegalArgumentException e) {
+            throw new ActionParamsException(e.getMessage());
+        } catch (ServiceRuntimeException e) {
+            throw new ActionCommonException(e.getMessage(), e);
+        } catch (ServiceException e) {
+            throw new ActionException(e.getMessage(), e);
+        }
+        writeResponse(params, visibility);
+    }
+
+    /**
+     * @param transform from the projection of the request to that of the service, null if the same
+     */
+    protected static List<SightLine> parseSightLines(JsonNode root, int maxPairs, MathTransform transform)
+            throws ActionException {
+        JsonNode pairs = root == null ? null : root.get(PARAM_PAIRS);
+        if (pairs == null || !pairs.isArray() || pairs.size() == 0) {
+            throw new ActionParamsException("Invalid input - expected non-empty array '" + PARAM_PAIRS + "'");
+        }
+        if (pairs.size() > maxPairs) {
+            throw new ActionParamsException("Invalid input - too many pairs, maximum is " + maxPairs);
+        }
+        double defaultObserverHeight = getHeight(root, JSON_PROPERTY_OBSERVER_HEIGHT, 0.0);
+        double defaultTargetHeight = getHeight(root, JSON_PROPERTY_TARGET_HEIGHT, 0.0);
+
+        List<SightLine> lines = new ArrayList<>(pairs.size());
+        double[] xy = new double[4];
+        for (JsonNode pair : pairs) {
+            readPosition(pair, JSON_PROPERTY_OBSERVER, xy, 0);
+            readPosition(pair, JSON_PROPERTY_TARGET, xy, 2);
+            if (transform != null) {
+                TerrainProfileHandler.transformInPlace(xy, transform);
+            }
+            lines.add(new SightLine(xy[0], xy[1], getHeight(pair, JSON_PROPERTY_OBSERVER_HEIGHT, defaultObserverHeight),
+                    xy[2], xy[3], getHeight(pair, JSON_PROPERTY_TARGET_HEIGHT, defaultTargetHeight)));
+        }
+        return lines;
+    }
+
+    private static void readPosition(JsonNode pair, String field, double[] xy, int offset)
+            throws ActionParamsException {
+        JsonNode position = pair.get(field);
+        if (position == null || !position.isArray() || position.size() < 2
+                || !position.get(0).isNumber() || !position.get(1).isNumber()) {
+            throw new ActionParamsException("Invalid input - expected coordinates [x, y] for '" + field + "'");
+        }
+        xy[offset] = position.get(0).asDouble();
+        xy[offset + 1] = position.get(1).asDouble();
+    }
+
+    private static double getHeight(JsonNode node, String field, double defaultValue)
+            throws ActionParamsException {
+        JsonNode height = node.get(field);
+        if (height == null || height.isNull()) {
+            return defaultValue;
+        }
+        if (!height.isNumber()) {
+            throw new ActionParamsException(String.format("Invalid property value '%s'", field));
+        }
+        return height.asDouble();
+    }
+
+    private void writeResponse(ActionParameters params, List<Visibility> visibility) throws ActionException {
+        HttpServletResponse response = params.getResponse();
+        response.setContentType(IOHelper.CONTENT_TYPE_JSON);
+        try (JsonGenerator json = om.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartArray();
+            for (Visibility v : visibility) {
+                json.writeStartObject();
+                if (v.getVisible() == null) {
+                    json.writeNullField("visible");
+                } else {
+                    json.writeBooleanField("visible", v.getVisible());
+                }
+                if (!Double.isNaN(v.getObstructionDistance())) {
+                    json.writeNumberField("obstructionDistance", v.getObstructionDistance());
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package fi.nls.oskari.terrainprofile;
+
+/**
+ * Summary of the DEM values inside an area, accumulated one value at a
+ * time. Percentiles come from a histogram with HISTOGRAM_BIN_SIZE wide bins
+ * so memory use depends on the range of the values, not their number.
+ * Values outside MIN_VALUE..MAX_VALUE, such as a NO_DATA value the coverage
+ * doesn't declare, count as NO_DATA so the range and the histogram stay
+ * within what altitudes on earth can be.
+ */
+public class ZonalStatistics {
+
+    public static final double HISTOGRAM_BIN_SIZE = 0.1;
+    public static final double MIN_VALUE = -12000.0;
+    public static final double MAX_VALUE = 10000.0;
+    private static final int MAX_BINS = (int) Math.ceil((MAX_VALUE - MIN_VALUE) / HISTOGRAM_BIN_SIZE) + 1;
+
+    private long count;
+    private long noDataCount;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum;
+
+    // counts[i] is the number of values in bin (firstBin + i)
+    private long[] counts = new long[0];
+    private long firstBin;
+
+    /**
+     * @param value Double.NaN for NO_DATA
+     */
+    public void accept(double value) {
+        // also NaN and infinities
+        if (!(value >= MIN_VALUE && value <= MAX_VALUE)) {
+            noDataCount++;
+            return;
+        }
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        count++;
+        sum += value;
+
+        long bin = (long) Math.floor(value / HISTOGRAM_BIN_SIZE);
+        if (counts.length == 0) {
+            counts = new long[64];
+            firstBin = bin - counts.length / 2;
+        } else if (bin < firstBin || bin >= firstBin + counts.length) {
+            grow(bin);
+        }
+        counts[(int) (bin - firstBin)]++;
+    }
+
+    private void grow(long bin) {
+        long lo = Math.min(firstBin, bin);
+        long hi = Math.max(firstBin + counts.length, bin + 1);
+        // at least double so that adding values one by one stays cheap
+        // the range of accepted values has at most MAX_BINS bins
+        int size = (int) Math.max(hi - lo, Math.min(counts.length * 2L, MAX_BINS));
+        long newFirst = bin < firstBin ? hi - size : lo;
+        long[] grown = new long[size];
+        System.arraycopy(counts, 0, grown, (int) (firstBin - newFirst), counts.length);
+        counts = grown;
+        firstBin = newFirst;
+    }
+
+    /**
+     * @return number of cells with data
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getNoDataCount() {
+        return noDataCount;
+    }
+
+    /**
+     * @return smallest value, NaN if there were no values
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return largest value, NaN if there were no values
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return mean of the values, NaN if there were no values
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * @param p percentile between 0 and 100 (nearest-rank)
+     * @return middle of the histogram bin the percentile falls into, clamped
+     *         between min and max, NaN if there were no values
+     */
+    public double getPercentile(double p) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                double mid = (firstBin + i + 0.5) * HISTOGRAM_BIN_SIZE;
+                return Math.max(min, Math.min(max, mid));
+            }
+        }
+        return max;
+    }
+
+}
@@ -0,0 +1,210 @@
+package fi.nls.oskari.terrainprofile;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.nls.oskari.annotation.OskariActionRoute;
+import fi.nls.oskari.control.*;
+import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.service.ServiceRuntimeException;
+import fi.nls.oskari.util.IOHelper;
+import fi.nls.oskari.util.PropertyUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.geotools.api.referencing.operation.MathTransform;
+
+/**
+ * Statistics of the DEM inside a GeoJSON Polygon or MultiPolygon (or a
+ * Feature with one) sent as the body of a POST request or in the geometry
+ * parameter. Responds with the number of cells, min, max, mean and the
+ * requested percentiles of the altitudes.
+ */
+@OskariActionRoute("TerrainStatistics")
+public class ZonalStatisticsHandler extends AbstractTerrainHandler {
+
+    protected static final String PARAM_GEOMETRY = "geometry";
+    protected static final String PARAM_PERCENTILES = "percentiles";
+
+    protected static final String PROPERTY_MAX_CELLS = "terrain.profile.statistics.maxCells";
+
+    private static final String DEFAULT_PERCENTILES = "5,25,50,75,95";
+    private static final int DEFAULT_MAX_CELLS = 4096 * 4096;
+
+    private static final String ERR_GEOMETRY = "Invalid input - expected Polygon or MultiPolygon geometry";
+
+    private int maxCoordinates = TerrainProfileHandler.DEFAULT_MAX_COORDINATES;
+    private int maxCells = DEFAULT_MAX_CELLS;
+
+    public ZonalStatisticsHandler() {
+        this(new ObjectMapper(), null);
+    }
+
+    public ZonalStatisticsHandler(ObjectMapper om, TerrainProfileService tps) {
+        super(om, tps);
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        maxCoordinates = PropertyUtil.getOptional(TerrainProfileHandler.PROPERTY_MAX_COORDINATES,
+                TerrainProfileHandler.DEFAULT_MAX_COORDINATES);
+        maxCells = PropertyUtil.getOptional(PROPERTY_MAX_CELLS, DEFAULT_MAX_CELLS);
+    }
+
+    @Override
+    public void handleAction(ActionParameters params) throws ActionException {
+        Deadline deadline = Deadline.after(requestTimeoutMs);
+        String clientSRS = params.getHttpParam(ActionConstants.PARAM_SRS, TerrainProfileHandler.DEFAULT_SRS);
+        double scaleFactor = params.getHttpParam(TerrainProfileHandler.JSON_PROPERTY_SCALE_FACTOR, 0.0);
+        double[] percentiles = parsePercentiles(params.getHttpParam(PARAM_PERCENTILES, DEFAULT_PERCENTILES));
+        List<double[][]> polygons = parsePolygons(readJson(params, PARAM_GEOMETRY), maxCoordinates);
+
+        MathTransform transform = TerrainProfileHandler.getTransform(clientSRS, serviceSrs);
+        if (transform != null) {
+            for (double[][] polygon : polygons) {
+                for (double[] ring : polygon) {
+                    TerrainProfileHandler.transformInPlace(ring, transform);
+                }
+            }
+        }
+
+        ZonalStatistics stats;
+        try {
+            stats = getService().getZonalStatistics(polygons, scaleFactor, maxCells, deadline);
+        } catch (IllegalArgumentException e) {
+            throw new ActionParamsException(e.getMessage());
+        } catch (ServiceRuntimeException e) {
+            throw new ActionCommonException(e.getMessage(), e);
+        } catch (ServiceException e) {
+            throw new ActionException(e.getMessage(), e);
+        }
+        writeResponse(params, stats, percentiles);
+    }
+
+    /**
+     * @return each polygon as its rings [x1,y1,...,xN,yN]
+     */
+    protected static List<double[][]> parsePolygons(JsonNode geoJson, int maxCoordinates)
+            throws ActionParamsException {
+        if (geoJson == null || !geoJson.isObject()) {
+            throw new ActionParamsException(ERR_GEOMETRY);
+        }
+        JsonNode geometry = "Feature".equals(geoJson.path("type").asText())
+                ? geoJson.path("geometry")
+                : geoJson;
+        String type = geometry.path("type").asText();
+        JsonNode coordinates = geometry.path("coordinates");
+        if (!coordinates.isArray()) {
+            throw new ActionParamsException(ERR_GEOMETRY);
+        }
+
+        List<double[][]> polygons = new ArrayList<>();
+        int[] remaining = { maxCoordinates };
+        switch (type) {
+        case "Polygon":
+            polygons.add(parsePolygon(coordinates, remaining));
+            break;
+        case "MultiPolygon":
+            for (JsonNode polygon : coordinates) {
+                polygons.add(parsePolygon(polygon, remaining));
+            }
+            break;
+        default:
+            throw new ActionParamsException(ERR_GEOMETRY);
+        }
+        if (polygons.isEmpty()) {
+            throw new ActionParamsException(ERR_GEOMETRY);
+        }
+        return polygons;
+    }
+
+    private static double[][] parsePolygon(JsonNode polygon, int[] remaining) throws ActionParamsException {
+        if (!polygon.isArray() || polygon.size() == 0) {
+            throw new ActionParamsException(ERR_GEOMETRY);
+        }
+        double[][] rings = new double[polygon.size()][];
+        for (int r = 0; r < rings.length; r++) {
+            JsonNode ring = polygon.get(r);
+            if (!ring.isArray() || ring.size() < 3) {
+                throw new ActionParamsException("Invalid input - expected rings with atleast three coordinates");
+            }
+            remaining[0] -= ring.size();
+            if (remaining[0] < 0) {
+                throw new ActionParamsException("Invalid input - too many coordinates, maximum is "
+                        + (remaining[0] + ring.size()));
+            }
+            double[] xy = new double[ring.size() * 2];
+            int i = 0;
+            for (JsonNode position : ring) {
+                JsonNode x = position.get(0);
+                JsonNode y = position.get(1);
+                if (x == null || y == null || !x.isNumber() || !y.isNumber()) {
+                    throw new ActionParamsException(ERR_GEOMETRY);
+                }
+                xy[i++] = x.asDouble();
+                xy[i++] = y.asDouble();
+            }
+            rings[r] = xy;
+        }
+        return rings;
+    }
+
+    protected static double[] parsePercentiles(String str) throws ActionParamsException {
+        if (str.trim().isEmpty()) {
+            return new double[0];
+        }
+        String[] parts = str.split(",");
+        double[] percentiles = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                percentiles[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                percentiles[i] = Double.NaN;
+            }
+            if (!(percentiles[i] >= 0 && percentiles[i] <= 100)) {
+                throw new ActionParamsException("Invalid " + PARAM_PERCENTILES
+                        + ", expected comma separated numbers between 0 and 100");
+            }
+        }
+        return percentiles;
+    }
+
+    private void writeResponse(ActionParameters params, ZonalStatistics stats, double[] percentiles)
+            throws ActionException {
+        HttpServletResponse response = params.getResponse();
+        response.setContentType(IOHelper.CONTENT_TYPE_JSON);
+        try (JsonGenerator json = om.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartObject();
+            json.writeNumberField("count", stats.getCount());
+            json.writeNumberField("noDataCount", stats.getNoDataCount());
+            writeNumberOrNull(json, "min", stats.getMin());
+            writeNumberOrNull(json, "max", stats.getMax());
+            writeNumberOrNull(json, "mean", stats.getMean());
+            json.writeFieldName(PARAM_PERCENTILES);
+            json.writeStartObject();
+            for (double p : percentiles) {
+                String key = p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p);
+                writeNumberOrNull(json, key, stats.getPercentile(p));
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        } catch (IOException e) {
+            throw new ActionException("Failed to write response", e);
+        }
+    }
+
+    private static void writeNumberOrNull(JsonGenerator json, String field, double value) throws IOException {
+        if (Double.isNaN(value)) {
+            json.writeNullField(field);
+        } else {
+            json.writeNumberField(field, value);
+        }
+    }
+
+}
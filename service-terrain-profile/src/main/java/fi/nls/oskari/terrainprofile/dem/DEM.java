@@ -0,0 +1,33 @@
+package fi.nls.oskari.terrainprofile.dem;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Grid of altitudes addressed with cell coordinates (x, y) from the top
+ * left corner, stored in one or more tiles
+ */
+public interface DEM {
+
+    /**
+     * @return altitude of the cell or Double.NaN if the value is NO_DATA
+     */
+    public double getValue(int x, int y);
+
+    /**
+     * @return index of the tile (x, y) is in
+     */
+    public int getTileIndex(int x, int y);
+
+    /**
+     * @return indices of the tiles intersecting [minX, maxX] x [minY, maxY]
+     */
+    public BitSet getTileIndices(int minX, int minY, int maxX, int maxY);
+
+    /**
+     * Decodes the given tiles up front instead of one by one as values are
+     * read, if the tiles need decoding
+     */
+    public default void decodeTiles(BitSet tiles, ForkJoinPool pool, int parallelism) {}
+
+}
@@ -1,7 +1,7 @@
 package fi.nls.oskari.terrainprofile.dem;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.oskari.wcs.geotiff.IFD;
 import org.oskari.wcs.geotiff.TIFFReader;
@@ -11,7 +11,7 @@ public class FloatAsIsValueExtractor implements TileValueExtractor {
     public static final String ID = "FLOAT";
 
     private final float noData;
-    private final Map<Integer, float[]> tileCache = new HashMap<>();
+    private final Map<Integer, float[]> tileCache = new ConcurrentHashMap<>();
 
     public FloatAsIsValueExtractor(float noData) {
         this.noData = noData;
@@ -32,4 +32,12 @@ public class FloatAsIsValueExtractor implements TileValueExtractor {
         return (value == noData) ? Double.NaN : value;
     }
 
+    @Override
+    public void decodeTile(TIFFReader r, IFD ifd, int ifdIdx, int tileIndex) {
+        if (!tileCache.containsKey(tileIndex)) {
+            int n = ifd.getTileWidth() * ifd.getTileHeight();
+            tileCache.putIfAbsent(tileIndex, r.readTile(ifdIdx, tileIndex, new float[n]));
+        }
+    }
+
 }
@@ -0,0 +1,143 @@
+package fi.nls.oskari.terrainprofile.dem;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * Altitudes of a DEM quantized to 16 bits, half the size of float32. Each
+ * altitude is stored as q, the altitude being offset + q * scale. offset is
+ * the smallest altitude and scale as small as the range of altitudes allows,
+ * q = 65535 stands for NO_DATA. Values are read straight from the encoded
+ * bytes, so a DEM kept in a cache in this form is used as is.
+ *
+ * Layout, little-endian: magic "QDEM", width, height (int32), offset,
+ * scale (float64), then q (uint16) row by row.
+ */
+public class QuantizedDEM implements DEM {
+
+    private static final byte[] MAGIC = { 'Q', 'D', 'E', 'M' };
+    private static final int HEADER_SIZE = 28;
+    private static final int NO_DATA = 0xFFFF;
+    private static final int MAX_Q = NO_DATA - 1;
+
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    private final double offset;
+    private final double scale;
+
+    /**
+     * @param data bytes returned by {@link #encode(DEM, int, int, double)}
+     */
+    public QuantizedDEM(byte[] data) throws IllegalArgumentException {
+        if (!isQuantized(data)) {
+            throw new IllegalArgumentException("Not a quantized DEM");
+        }
+        ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.position(MAGIC.length);
+        this.data = data;
+        this.width = header.getInt();
+        this.height = header.getInt();
+        this.offset = header.getDouble();
+        this.scale = header.getDouble();
+        if (data.length != HEADER_SIZE + 2L * width * height) {
+            throw new IllegalArgumentException("Unexpected size of a quantized DEM");
+        }
+    }
+
+    /**
+     * @return true if data starts like {@link #encode(DEM, int, int, double)} output
+     */
+    public static boolean isQuantized(byte[] data) {
+        if (data.length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Quantizes the cells [0, width-1] x [0, height-1] of dem
+     *
+     * @param maxError largest difference allowed between an altitude and its quantized value
+     * @return the encoded DEM, null if the range of altitudes is too large to keep within maxError
+     */
+    public static byte[] encode(DEM dem, int width, int height, double maxError) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double value = dem.getValue(x, y);
+                if (!Double.isNaN(value)) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+        }
+        double offset = min <= max ? min : 0.0;
+        double scale = max > min ? (max - min) / MAX_Q : 1.0;
+        if (max > min && scale / 2 > maxError) {
+            return null;
+        }
+
+        byte[] data = new byte[HEADER_SIZE + 2 * width * height];
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC);
+        buf.putInt(width);
+        buf.putInt(height);
+        buf.putDouble(offset);
+        buf.putDouble(scale);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double value = dem.getValue(x, y);
+                int q = Double.isNaN(value)
+                        ? NO_DATA
+                        : (int) Math.max(0, Math.min(MAX_Q, Math.round((value - offset) / scale)));
+                buf.putShort((short) q);
+            }
+        }
+        return data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return altitude of the cell, Double.NaN if the value is NO_DATA or outside the DEM
+     */
+    @Override
+    public double getValue(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return Double.NaN;
+        }
+        int i = HEADER_SIZE + 2 * (y * width + x);
+        int q = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8;
+        return q == NO_DATA ? Double.NaN : offset + q * scale;
+    }
+
+    /**
+     * @return 0, the whole DEM is a single tile
+     */
+    @Override
+    public int getTileIndex(int x, int y) {
+        return 0;
+    }
+
+    @Override
+    public BitSet getTileIndices(int minX, int minY, int maxX, int maxY) {
+        BitSet tiles = new BitSet();
+        tiles.set(0);
+        return tiles;
+    }
+
+}
@@ -1,7 +1,7 @@
 package fi.nls.oskari.terrainprofile.dem;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.oskari.wcs.geotiff.IFD;
 import org.oskari.wcs.geotiff.TIFFReader;
@@ -14,7 +14,7 @@ public class ScaledGrayscaleValueExtractor implements TileValueExtractor {
     private final double negatedOffset;
     private final int noData;
 
-    private final Map<Integer, short[]> tileCache = new HashMap<>();
+    private final Map<Integer, short[]> tileCache = new ConcurrentHashMap<>();
 
     private boolean unsigned;
 
@@ -46,4 +46,12 @@ public class ScaledGrayscaleValueExtractor implements TileValueExtractor {
         return value == noData ? Double.NaN : (value + negatedOffset) * scaleInv;
     }
 
+    @Override
+    public void decodeTile(TIFFReader r, IFD ifd, int ifdIdx, int tileIndex) {
+        if (!tileCache.containsKey(tileIndex)) {
+            int n = ifd.getTileWidth() * ifd.getTileHeight();
+            tileCache.putIfAbsent(tileIndex, r.readTile(ifdIdx, tileIndex, new short[n]));
+        }
+    }
+
 }
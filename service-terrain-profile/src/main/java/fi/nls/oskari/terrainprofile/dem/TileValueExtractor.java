@@ -12,5 +12,11 @@ public interface TileValueExtractor {
      */
     public double getTileValue(TIFFReader r, IFD ifd, int ifdIdx, int tileIndex, int tileOffset);
 
+    /**
+     * Decodes the tile ahead of time so that getTileValue doesn't have to.
+     * May be called concurrently for different tiles, each caller with a
+     * TIFFReader of its own.
+     */
+    public default void decodeTile(TIFFReader r, IFD ifd, int ifdIdx, int tileIndex) {}
 
 }
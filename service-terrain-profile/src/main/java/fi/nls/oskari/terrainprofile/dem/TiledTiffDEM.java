@@ -1,12 +1,18 @@
 package fi.nls.oskari.terrainprofile.dem;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import org.oskari.wcs.geotiff.IFD;
 import org.oskari.wcs.geotiff.TIFFReader;
 
 import fi.nls.oskari.log.LogFactory;
 import fi.nls.oskari.log.Logger;
 
-public class TiledTiffDEM {
+public class TiledTiffDEM implements DEM {
 
     private static final Logger LOG = LogFactory.getLogger(TiledTiffDEM.class);
 
@@ -16,9 +22,20 @@ public class TiledTiffDEM {
     private final IFD ifd;
     private final int tilesAcross;
     private final TileValueExtractor extractor;
+    // Needed to decode in parallel, null if constructed from a reader
+    private final byte[] tiff;
+
+    public TiledTiffDEM(byte[] tiff, TileValueExtractor extractor) throws IllegalArgumentException {
+        this(new TIFFReader(tiff), extractor, tiff);
+    }
 
     public TiledTiffDEM(TIFFReader r, TileValueExtractor extractor) throws IllegalArgumentException {
+        this(r, extractor, null);
+    }
+
+    private TiledTiffDEM(TIFFReader r, TileValueExtractor extractor, byte[] tiff) throws IllegalArgumentException {
         this.r = r;
+        this.tiff = tiff;
         this.ifd = r.getIFD(IFD_IDX);
         this.extractor = extractor;
 
@@ -47,6 +64,73 @@ public class TiledTiffDEM {
                 "NumTiles:", ifd.getTileOffsets().length);
     }
 
+    public int getWidth() {
+        return ifd.getWidth();
+    }
+
+    public int getHeight() {
+        return ifd.getHeight();
+    }
+
+    /**
+     * @return index of the TIFF tile (x, y) is in
+     */
+    @Override
+    public int getTileIndex(int x, int y) {
+        return (y / ifd.getTileHeight()) * tilesAcross + x / ifd.getTileWidth();
+    }
+
+    /**
+     * @return indices of the TIFF tiles intersecting [minX, maxX] x [minY, maxY]
+     */
+    @Override
+    public BitSet getTileIndices(int minX, int minY, int maxX, int maxY) {
+        BitSet tiles = new BitSet();
+        int tw = ifd.getTileWidth();
+        int th = ifd.getTileHeight();
+        for (int tileY = minY / th; tileY <= maxY / th; tileY++) {
+            for (int tileX = minX / tw; tileX <= maxX / tw; tileX++) {
+                tiles.set(tileY * tilesAcross + tileX);
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Decodes the given TIFF tiles up front instead of one by one as values
+     * are read. The tiles are split between at most parallelism tasks, the
+     * calling thread runs one and the rest run in the pool. Each task reads
+     * with a TIFFReader of its own.
+     */
+    @Override
+    public void decodeTiles(BitSet tiles, ForkJoinPool pool, int parallelism) {
+        int[] indices = tiles.stream().toArray();
+        int tasks = Math.min(parallelism, indices.length);
+        if (tiff == null || tasks <= 1) {
+            for (int tileIndex : indices) {
+                extractor.decodeTile(r, ifd, IFD_IDX, tileIndex);
+            }
+            return;
+        }
+        List<ForkJoinTask<?>> submitted = new ArrayList<>(tasks - 1);
+        for (int t = 1; t < tasks; t++) {
+            int task = t;
+            submitted.add(pool.submit(() -> decodeTiles(new TIFFReader(tiff), indices, task, tasks)));
+        }
+        decodeTiles(r, indices, 0, tasks);
+        for (ForkJoinTask<?> task : submitted) {
+            task.join();
+        }
+    }
+
+    private void decodeTiles(TIFFReader reader, int[] indices, int task, int tasks) {
+        IFD readerIfd = reader.getIFD(IFD_IDX);
+        for (int i = task; i < indices.length; i += tasks) {
+            extractor.decodeTile(reader, readerIfd, IFD_IDX, indices[i]);
+        }
+    }
+
+    @Override
     public double getValue(int x, int y) {
         int tileX = x / ifd.getTileWidth();
         int offX = x % ifd.getTileWidth();
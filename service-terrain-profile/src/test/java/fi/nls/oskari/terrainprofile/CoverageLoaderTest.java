@@ -0,0 +1,52 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.net.HttpURLConnection;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class CoverageLoaderTest {
+
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void addRegistry() {
+        registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    public void removeRegistry() {
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    public void getCoverageIsMeasured() throws Exception {
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[42]));
+
+        try (TerrainProfileExecutors executors = new TerrainProfileExecutors()) {
+            CoverageLoader loader = new CoverageLoader("measured", executors.getScheduler());
+            assertEquals(42, loader.getCoverage(() -> conn).length);
+        }
+
+        assertEquals(1, registry.get("terrainprofile.getcoverage")
+                .tag("name", "measured").tag("outcome", "success").timer().count());
+        assertEquals(42.0, registry.get("terrainprofile.getcoverage.size")
+                .tag("name", "measured").summary().totalAmount());
+        // resilience4j components are published by the same name
+        assertNotNull(registry.find("resilience4j.circuitbreaker.state").tag("name", "measured").gauge());
+        assertNotNull(registry.find("resilience4j.bulkhead.queue.depth").tag("name", "measured").gauge());
+    }
+
+}
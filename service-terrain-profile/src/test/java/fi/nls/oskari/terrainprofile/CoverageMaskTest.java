@@ -0,0 +1,61 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class CoverageMaskTest {
+
+    @Test
+    public void cellsOutsideLimitsAreEmpty() {
+        CoverageMask mask = new CoverageMask(0, 0, 999, 499, 0);
+        assertTrue(mask.isEmpty(-1, 0, -1, 0));
+        assertTrue(mask.isEmpty(1000, 10, 1000, 10));
+        assertTrue(mask.isEmpty(10, 500, 20, 600));
+        assertFalse(mask.isEmpty(999, 499, 999, 499));
+        assertFalse(mask.isEmpty(-10, -10, 0, 0));
+        // Not learning
+        assertEquals(0, mask.learn(0, 0, 999, 499, (x, y) -> Double.NaN));
+        assertFalse(mask.isEmpty(0, 0, 0, 0));
+    }
+
+    @Test
+    public void learnsBlocksWithoutData() {
+        CoverageMask mask = new CoverageMask(0, 0, 999, 499, 100);
+        // Data only in the west half
+        CoverageMask.CellValues values = (x, y) -> x < 500 ? 100.0 : Double.NaN;
+
+        // Only blocks wholly inside the window are learned: x 500...699
+        assertEquals(2, mask.learn(450, 0, 749, 99, values));
+        assertTrue(mask.isEmpty(500, 0, 699, 99));
+        assertFalse(mask.isEmpty(700, 0, 700, 0));
+        assertFalse(mask.isEmpty(450, 0, 450, 0));
+        assertFalse(mask.isEmpty(499, 0, 500, 0));
+
+        // Window reaching past the limits learns the last block too
+        assertEquals(3, mask.learn(700, 0, 1100, 99, values));
+        assertTrue(mask.isEmpty(500, 0, 2000, 99));
+        // Already learned blocks are not scanned again
+        assertEquals(0, mask.learn(500, 0, 999, 99, (x, y) -> fail()));
+    }
+
+    @Test
+    public void readsGridLimitsFromDescribeCoverage() throws IOException {
+        String describeCoverage = "<wcs:CoverageDescriptions xmlns:wcs=\"http://www.opengis.net/wcs/2.0\""
+                + " xmlns:gml=\"http://www.opengis.net/gml/3.2\"><wcs:CoverageDescription>"
+                + "<gml:boundedBy><gml:Envelope><gml:lowerCorner>0 0</gml:lowerCorner>"
+                + "<gml:upperCorner>10 10</gml:upperCorner></gml:Envelope></gml:boundedBy>"
+                + "<gml:domainSet><gml:RectifiedGrid dimension=\"2\"><gml:limits><gml:GridEnvelope>"
+                + "<gml:low>0 0</gml:low><gml:high>399999  599999</gml:high>"
+                + "</gml:GridEnvelope></gml:limits></gml:RectifiedGrid></gml:domainSet>"
+                + "</wcs:CoverageDescription></wcs:CoverageDescriptions>";
+        int[] limits = TerrainProfileService.getGridLimits(describeCoverage.getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals(new int[] { 0, 0, 399999, 599999 }, limits);
+
+        assertNull(TerrainProfileService.getGridLimits("<a/>".getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
@@ -0,0 +1,48 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CoverageMetadataTest {
+
+    private static final String END_POINT = "https://example.com/wcs";
+    private static final String COVERAGE_ID = "korkeusmalli_2m";
+
+    private static CoverageMetadata metadata() {
+        return new CoverageMetadata(END_POINT, COVERAGE_ID,
+                "<Capabilities/>".getBytes(StandardCharsets.UTF_8),
+                "<CoverageDescriptions/>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void snapshotCanBeReadBack(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("snapshots").resolve(COVERAGE_ID + ".wcs");
+        metadata().write(file);
+        metadata().write(file);
+
+        CoverageMetadata read = CoverageMetadata.read(file);
+        assertTrue(read.isFor(END_POINT, COVERAGE_ID));
+        assertFalse(read.isFor(END_POINT, "korkeusmalli_10m"));
+        assertArrayEquals(metadata().getCapabilities(), read.getCapabilities());
+        assertArrayEquals(metadata().getDescribeCoverage(), read.getDescribeCoverage());
+        // No temporary files left behind
+        try (var files = Files.list(file.getParent())) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void otherFilesAreRejected() {
+        byte[] notSnapshot = "<Capabilities/>".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> CoverageMetadata.read(new ByteArrayInputStream(notSnapshot)));
+    }
+
+}
@@ -0,0 +1,39 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import fi.nls.oskari.control.ActionParamsException;
+
+public class EncodedPolylineTest {
+
+    @Test
+    public void decodesToXYOrder() throws ActionParamsException {
+        // Example from the Encoded Polyline Algorithm Format documentation
+        double[] xy = EncodedPolyline.decode("_p~iF~ps|U_ulLnnqC_mqNvxq`@", 5, 1000);
+        assertArrayEquals(new double[] { -120.2, 38.5, -120.95, 40.7, -126.453, 43.252 }, xy, 1e-9);
+    }
+
+    @Test
+    public void metricCoordinatesWithZeroPrecision() throws ActionParamsException {
+        // (6822000, 500000), (6823000, 501000) encoded with precision 0
+        double[] xy = EncodedPolyline.decode("_fk_L_qo]o}@o}@", 0, 1000);
+        assertArrayEquals(new double[] { 500000, 6822000, 501000, 6823000 }, xy, 0.0);
+    }
+
+    @Test
+    public void truncatedInputThrows() {
+        ActionParamsException e = assertThrows(ActionParamsException.class,
+                () -> EncodedPolyline.decode("_p~iF~ps|U_ulLnnqC_mqNvxq", 5, 1000));
+        assertEquals("Invalid input - malformed encoded polyline", e.getMessage());
+    }
+
+    @Test
+    public void tooManyCoordinatesThrows() {
+        ActionParamsException e = assertThrows(ActionParamsException.class,
+                () -> EncodedPolyline.decode("_p~iF~ps|U_ulLnnqC_mqNvxq`@", 5, 2));
+        assertEquals("Invalid input - too many coordinates, maximum is 2", e.getMessage());
+    }
+
+}
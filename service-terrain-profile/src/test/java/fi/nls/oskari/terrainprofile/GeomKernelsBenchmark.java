@@ -0,0 +1,144 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the geometry kernels profiles are planned with, each
+ * next to the scalar loop it replaced. Run only when asked for, for example:
+ *
+ * mvn test -Dtest=GeomKernelsBenchmark -Dbenchmark=true
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeomKernelsBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int numPoints;
+
+    private double[] route;
+    private double[] points;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        route = new double[2 * 200];
+        double e = 500000;
+        double n = 6822000;
+        for (int i = 0; i < route.length; i += 2) {
+            e += r.nextDouble() * 200 - 100;
+            n += r.nextDouble() * 200 - 100;
+            route[i] = e;
+            route[i + 1] = n;
+        }
+        points = new RouteSampler(route, numPoints).next(numPoints);
+    }
+
+    @Benchmark
+    public double[] sampleRoute() {
+        return new RouteSampler(route, numPoints).next(numPoints);
+    }
+
+    @Benchmark
+    public double[] sampleRouteScalar() {
+        return sampleScalar(route, numPoints);
+    }
+
+    @Benchmark
+    public double[] cumulativeLengths() {
+        return GeomUtil.getCumulativeLengths(points, points[0], points[1], 0.0);
+    }
+
+    @Benchmark
+    public double[] cumulativeLengthsScalar() {
+        double[] distances = new double[points.length / 2];
+        double x0 = points[0];
+        double y0 = points[1];
+        double sum = 0.0;
+        for (int i = 0; i < points.length; i += 2) {
+            sum += GeomUtil.getDistance(points[i], points[i + 1], x0, y0);
+            distances[i / 2] = sum;
+            x0 = points[i];
+            y0 = points[i + 1];
+        }
+        return distances;
+    }
+
+    @Benchmark
+    public int[] gridCells() {
+        int[] gridX = new int[points.length / 2];
+        int[] gridY = new int[points.length / 2];
+        TerrainProfileService.getGridCells(points, 0.0, 7800000.0, 2.0, -2.0, gridX, gridY);
+        return gridY;
+    }
+
+    /**
+     * Evenly spaced points as they were computed before, one step along the
+     * current segment at a time, dividing the length of the route and each
+     * segment anew
+     */
+    private static double[] sampleScalar(double[] coordinates, int numPoints) {
+        double[] out = new double[numPoints * 2];
+        double segmentLength = GeomUtil.getLength(coordinates) / (numPoints - 1);
+        double remaining = segmentLength;
+        int j = 2;
+        double x0 = coordinates[0];
+        double y0 = coordinates[1];
+        double x1 = coordinates[j++];
+        double y1 = coordinates[j++];
+        double toNext = GeomUtil.getDistance(x0, y0, x1, y1);
+        out[0] = x0;
+        out[1] = y0;
+        int i = 2;
+        while (i < out.length - 2) {
+            if (toNext < remaining && j < coordinates.length) {
+                remaining -= toNext;
+                x0 = x1;
+                y0 = y1;
+                x1 = coordinates[j++];
+                y1 = coordinates[j++];
+                toNext = GeomUtil.getDistance(x0, y0, x1, y1);
+            } else {
+                double t = remaining / toNext;
+                x0 += t * (x1 - x0);
+                y0 += t * (y1 - y0);
+                out[i++] = x0;
+                out[i++] = y0;
+                toNext -= remaining;
+                remaining = segmentLength;
+            }
+        }
+        out[i++] = coordinates[coordinates.length - 2];
+        out[i] = coordinates[coordinates.length - 1];
+        return out;
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void runBenchmarks() throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(GeomKernelsBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
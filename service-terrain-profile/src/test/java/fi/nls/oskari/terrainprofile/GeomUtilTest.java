@@ -0,0 +1,33 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class GeomUtilTest {
+
+    @Test
+    public void cumulativeLengthsEndWithLength() {
+        double[] line = { 0, 0, 3, 4, 3, 4, 3, 10 };
+        double[] lengths = GeomUtil.getCumulativeLengths(line);
+        assertArrayEquals(new double[] { 0, 5, 5, 11 }, lengths, 0.0);
+        assertEquals(GeomUtil.getLength(line), lengths[lengths.length - 1], 0.0);
+    }
+
+    @Test
+    public void cumulativeLengthsContinueFromPreviousPoint() {
+        double[] lengths = GeomUtil.getCumulativeLengths(new double[] { 3, 4, 3, 10 }, 0, 0, 100);
+        assertArrayEquals(new double[] { 105, 111 }, lengths, 0.0);
+        assertEquals(0, GeomUtil.getCumulativeLengths(new double[0], 0, 0, 100).length);
+    }
+
+    @Test
+    public void gridCellsAreRounded() {
+        int[] gridX = new int[2];
+        int[] gridY = new int[2];
+        TerrainProfileService.getGridCells(new double[] { 10.9, 99.1, 13.1, 94.9 }, 0, 100, 2, -2, gridX, gridY);
+        assertArrayEquals(new int[] { 5, 7 }, gridX);
+        assertArrayEquals(new int[] { 0, 3 }, gridY);
+    }
+
+}
@@ -0,0 +1,55 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import fi.nls.oskari.control.ActionParamsException;
+
+public class MultiPointParserTest {
+
+    private static double[] parse(String json, int maxPoints) throws ActionParamsException, IOException {
+        try (JsonParser parser = new JsonFactory().createParser(json)) {
+            return new MultiPointParser(maxPoints).parse(parser);
+        }
+    }
+
+    @Test
+    public void readsFlatArray() throws ActionParamsException, IOException {
+        assertArrayEquals(new double[] { 1, 2, 3.5, 4 }, parse("[1,2,3.5,4]", 10), 0.0);
+    }
+
+    @Test
+    public void readsMultiPointAndFeature() throws ActionParamsException, IOException {
+        String multiPoint = "{\"coordinates\":[[1,2,100],[3.5,4]],\"type\":\"MultiPoint\"}";
+        assertArrayEquals(new double[] { 1, 2, 3.5, 4 }, parse(multiPoint, 10), 0.0);
+        String feature = "{\"type\":\"Feature\",\"properties\":{\"name\":\"a\"},\"geometry\":" + multiPoint + "}";
+        assertArrayEquals(new double[] { 1, 2, 3.5, 4 }, parse(feature, 10), 0.0);
+    }
+
+    @Test
+    public void rejectsOtherGeometries() {
+        String json = "{\"type\":\"LineString\",\"coordinates\":[[1,2],[3,4]]}";
+        ActionParamsException e = assertThrows(ActionParamsException.class, () -> parse(json, 10));
+        assertEquals(MultiPointParser.ERR_INPUT, e.getMessage());
+    }
+
+    @Test
+    public void rejectsOddNumberOfValues() {
+        ActionParamsException e = assertThrows(ActionParamsException.class, () -> parse("[1,2,3]", 10));
+        assertEquals(MultiPointParser.ERR_ODD, e.getMessage());
+    }
+
+    @Test
+    public void rejectsTooManyPoints() {
+        ActionParamsException e = assertThrows(ActionParamsException.class, () -> parse("[1,2,3,4,5,6]", 2));
+        assertEquals("Invalid input - too many points, maximum is 2", e.getMessage());
+        assertDoesNotThrow(() -> parse("[1,2,3,4]", 2));
+    }
+
+}
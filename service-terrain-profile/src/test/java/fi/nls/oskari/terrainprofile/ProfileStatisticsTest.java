@@ -0,0 +1,52 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ProfileStatisticsTest {
+
+    private static List<DataPoint> points(double... altitudes) {
+        List<DataPoint> points = new ArrayList<>();
+        for (int i = 0; i < altitudes.length; i++) {
+            DataPoint p = new DataPoint();
+            p.setDistFromStart(i * 10.0);
+            p.setAltitude(altitudes[i]);
+            points.add(p);
+        }
+        return points;
+    }
+
+    @Test
+    public void ascentAndDescentSkipNoData() {
+        ProfileStatistics stats = new ProfileStatistics();
+        List<DataPoint> points = points(100, 110, Double.NaN, 105, 120, 90);
+        stats.accept(points.subList(0, 3));
+        stats.accept(points.subList(3, 6));
+
+        assertEquals(5, stats.getCount());
+        assertEquals(1, stats.getNoDataCount());
+        assertEquals(50.0, stats.getLength(), 0.0);
+        assertEquals(90.0, stats.getMin(), 0.0);
+        assertEquals(120.0, stats.getMax(), 0.0);
+        assertEquals(105.0, stats.getMean(), 1e-9);
+        // 100 -> 110 -> (no data) -> 105 -> 120 -> 90
+        assertEquals(25.0, stats.getAscent(), 1e-9);
+        assertEquals(35.0, stats.getDescent(), 1e-9);
+    }
+
+    @Test
+    public void withoutDataAltitudesAreNaN() {
+        ProfileStatistics stats = new ProfileStatistics();
+        stats.accept(points(Double.NaN, Double.NaN));
+        assertEquals(0, stats.getCount());
+        assertTrue(Double.isNaN(stats.getMin()));
+        assertTrue(Double.isNaN(stats.getMax()));
+        assertTrue(Double.isNaN(stats.getMean()));
+        assertEquals(0.0, stats.getAscent(), 0.0);
+    }
+
+}
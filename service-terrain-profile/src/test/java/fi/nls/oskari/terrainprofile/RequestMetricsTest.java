@@ -0,0 +1,72 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class RequestMetricsTest {
+
+    @Test
+    public void nothingIsRecordedOutsideRequests() {
+        RequestMetrics none = RequestMetrics.current();
+        assertFalse(none.isEnabled());
+        assertEquals(0L, none.begin());
+        none.end(RequestMetrics.Stage.WCS, 0L);
+        assertEquals(0L, none.getStageMillis(RequestMetrics.Stage.WCS));
+    }
+
+    @Test
+    public void stagesAndRetriesAreCounted() throws InterruptedException {
+        RequestMetrics metrics = RequestMetrics.start("Test");
+        try {
+            assertSame(metrics, RequestMetrics.current());
+            long begin = metrics.begin();
+            Thread.sleep(5);
+            metrics.end(RequestMetrics.Stage.WCS, begin);
+
+            // Two GetCoverage requests, one of them retried twice
+            metrics.attempt();
+            metrics.request(100);
+            metrics.attempt();
+            metrics.attempt();
+            metrics.attempt();
+            metrics.request(200);
+            metrics.tile(false);
+            metrics.tile(true);
+
+            assertEquals(2L, metrics.getRetries());
+            assertTrue(metrics.getStageMillis(RequestMetrics.Stage.WCS) >= 5);
+            String serverTiming = metrics.toServerTiming();
+            assertTrue(serverTiming.startsWith("wcs;dur="), serverTiming);
+            assertTrue(serverTiming.contains(", total;dur="), serverTiming);
+            assertFalse(serverTiming.contains("parse"), serverTiming);
+            String log = metrics.toString();
+            assertTrue(log.contains("tiles=2 tile_cache_hits=1 wcs_requests=2 retries=2 bytes=300"), log);
+        } finally {
+            metrics.finish();
+        }
+        assertFalse(RequestMetrics.current().isEnabled());
+    }
+
+    @Test
+    public void metricsCanBeBoundToOtherThreads() throws InterruptedException {
+        RequestMetrics metrics = RequestMetrics.start("Test");
+        try {
+            Thread t = new Thread(() -> {
+                RequestMetrics previous = RequestMetrics.bind(metrics);
+                try {
+                    RequestMetrics.current().request(10);
+                } finally {
+                    RequestMetrics.bind(previous);
+                }
+                assertFalse(RequestMetrics.current().isEnabled());
+            });
+            t.start();
+            t.join();
+            assertTrue(metrics.toString().contains("bytes=10"));
+        } finally {
+            metrics.finish();
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void budgetStartsFull() {
+        RetryBudget budget = new RetryBudget(10, 3);
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+    }
+
+    @Test
+    public void retriesAreCappedToPercentageOfRequests() {
+        RetryBudget budget = new RetryBudget(10, 1);
+        assertTrue(budget.tryAcquire());
+        for (int i = 0; i < 9; i++) {
+            budget.onRequest();
+            assertFalse(budget.tryAcquire());
+        }
+        budget.onRequest();
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+    }
+
+    @Test
+    public void balanceNeverExceedsMax() {
+        RetryBudget budget = new RetryBudget(50, 2);
+        for (int i = 0; i < 100; i++) {
+            budget.onRequest();
+        }
+        assertEquals(2.0, budget.getBalance(), 0.0);
+    }
+
+}
@@ -0,0 +1,56 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import fi.nls.oskari.control.ActionParamsException;
+
+public class RouteParserTest {
+
+    private static Route parse(String json, int maxCoordinates) throws ActionParamsException, IOException {
+        try (JsonParser parser = new JsonFactory().createParser(json)) {
+            return new RouteParser(maxCoordinates).parse(parser);
+        }
+    }
+
+    @Test
+    public void readsCoordinatesAndPropertiesInAnyOrder() throws ActionParamsException, IOException {
+        String json = "{\"properties\":{\"numPoints\":50,\"other\":{\"a\":[1]},\"scaleFactor\":0.5},"
+                + "\"geometry\":{\"coordinates\":[[1,2,100],[3.5,4]],\"type\":\"LineString\"},"
+                + "\"type\":\"Feature\"}";
+        Route route = parse(json, 1000);
+        assertArrayEquals(new double[] { 1, 2, 3.5, 4 }, route.getCoordinates(), 0.0);
+        assertEquals(50, route.getNumPoints());
+        assertEquals(0.5, route.getScaleFactor(), 0.0);
+        assertEquals(0.0, route.getSpacing(), 0.0);
+    }
+
+    @Test
+    public void readsSpacing() throws ActionParamsException, IOException {
+        String json = "{\"properties\":{\"spacing\":\"2.5\"},"
+                + "\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[1,2],[3,4]]}}";
+        assertEquals(2.5, parse(json, 2).getSpacing(), 0.0);
+    }
+
+    @Test
+    public void wrongGeometryTypeIsReportedBeforeTooManyCoordinates() throws IOException {
+        String json = "{\"geometry\":{\"coordinates\":[[1,2],[3,4],[5,6]],\"type\":\"MultiPoint\"}}";
+        ActionParamsException e = assertThrows(ActionParamsException.class, () -> parse(json, 2));
+        assertEquals("Invalid input - expected LineString geometry", e.getMessage());
+    }
+
+    @Test
+    public void invalidNumPointsIsReportedAfterGeometry() throws IOException {
+        String json = "{\"properties\":{\"numPoints\":1.5},"
+                + "\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[1,2],[3,4]]}}";
+        ActionParamsException e = assertThrows(ActionParamsException.class, () -> parse(json, 2));
+        assertEquals("Invalid property value 'numPoints'", e.getMessage());
+    }
+
+}
@@ -0,0 +1,77 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class RouteSamplerTest {
+
+    private static final double[] LINE = {
+            500000, 6822000,
+            501000, 6822000,
+            501000, 6823000,
+            500200, 6822400
+    };
+
+    @Test
+    public void coordinatesAreReturnedAsIsWhenThereAreEnough() {
+        RouteSampler sampler = new RouteSampler(LINE, 3);
+        assertEquals(4, sampler.getTotal());
+        assertArrayEquals(LINE, sampler.next(100), 0.0);
+        assertFalse(sampler.hasNext());
+    }
+
+    @Test
+    public void interpolatedPointsAreEvenlySpaced() {
+        RouteSampler sampler = new RouteSampler(new double[] { 0, 0, 100, 0, 100, 100 }, 5);
+        double[] xy = sampler.next(100);
+        assertArrayEquals(new double[] { 0, 0, 50, 0, 100, 0, 100, 50, 100, 100 }, xy, 1e-9);
+        assertFalse(sampler.hasNext());
+    }
+
+    @Test
+    public void chunksAddUpToTheWholeProfile() {
+        double[] expected = new RouteSampler(LINE, 101).next(Integer.MAX_VALUE);
+
+        RouteSampler sampler = new RouteSampler(LINE, 101);
+        double[] actual = new double[0];
+        while (sampler.hasNext()) {
+            double[] chunk = sampler.next(7);
+            int len = actual.length;
+            actual = Arrays.copyOf(actual, len + chunk.length);
+            System.arraycopy(chunk, 0, actual, len, chunk.length);
+        }
+        assertArrayEquals(expected, actual, 0.0);
+    }
+
+    @Test
+    public void interpolatedPointsFollowTheRoute() {
+        double[] xy = new RouteSampler(LINE, 11).next(100);
+        // 3000 m route, every point 300 m further along it
+        assertArrayEquals(new double[] { 500300, 6822000 }, new double[] { xy[2], xy[3] }, 1e-9);
+        assertArrayEquals(new double[] { 501000, 6822200 }, new double[] { xy[8], xy[9] }, 1e-9);
+        assertArrayEquals(new double[] { 500200, 6822400 }, new double[] { xy[20], xy[21] }, 0.0);
+    }
+
+    @Test
+    public void zeroLengthSegmentsAreSkipped() {
+        double[] xy = new RouteSampler(new double[] { 0, 0, 0, 0, 100, 0, 100, 0, 100, 100 }, 6).next(100);
+        assertArrayEquals(new double[] { 0, 0, 40, 0, 80, 0, 100, 20, 100, 60, 100, 100 }, xy, 1e-9);
+    }
+
+    @Test
+    public void routeOfZeroLengthIsSampledAtItsStart() {
+        double[] xy = new RouteSampler(new double[] { 10, 20, 10, 20 }, 4).next(100);
+        assertArrayEquals(new double[] { 10, 20, 10, 20, 10, 20, 10, 20 }, xy, 0.0);
+
+        RouteSampler sampler = new RouteSampler(new double[] { 10, 20, 10, 20, 10, 20 }, 5);
+        double[] first = sampler.next(2);
+        double[] rest = sampler.next(100);
+        assertArrayEquals(new double[] { 10, 20, 10, 20 }, first, 0.0);
+        assertArrayEquals(new double[] { 10, 20, 10, 20, 10, 20 }, rest, 0.0);
+        assertFalse(sampler.hasNext());
+    }
+
+}
@@ -0,0 +1,111 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import fi.nls.oskari.service.ServiceRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class SharedTileCacheTest {
+
+    private static byte[] createTile() {
+        byte[] tile = new byte[10000];
+        for (int i = 0; i < tile.length; i++) {
+            tile[i] = (byte) (i / 100);
+        }
+        return tile;
+    }
+
+    @Test
+    public void tileIsLoadedOnceAndStoredDeflated() throws Exception {
+        MemoryTileStore store = new MemoryTileStore();
+        SharedTileCache cache = new SharedTileCache(store, 60000, 1000);
+        AtomicInteger loads = new AtomicInteger();
+        byte[] tile = createTile();
+
+        assertArrayEquals(tile, cache.get("a", () -> { loads.incrementAndGet(); return tile; }, Deadline.none()));
+        assertArrayEquals(tile, cache.get("a", () -> { loads.incrementAndGet(); return tile; }, Deadline.none()));
+        assertEquals(1, loads.get());
+        assertEquals(1, store.size());
+        assertTrue(store.get("a").length < tile.length);
+    }
+
+    @Test
+    public void onlyFirstNodeLoadsTile() throws Exception {
+        MemoryTileStore store = new MemoryTileStore();
+        // every node has its own SharedTileCache on the same store
+        List<SharedTileCache> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(new SharedTileCache(store, 60000, 5000));
+        }
+        AtomicInteger loads = new AtomicInteger();
+        byte[] tile = createTile();
+        SharedTileCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return tile;
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                SharedTileCache node = nodes.get(i % nodes.size());
+                results.add(executor.submit(() -> node.get("a", loader, Deadline.after(5000))));
+            }
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(tile, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void waitingForAnotherNodeTimesOut() {
+        MemoryTileStore store = new MemoryTileStore();
+        assertTrue(store.tryLock("a", "other", 60000));
+        SharedTileCache cache = new SharedTileCache(store, 60000, 1000);
+        assertThrows(ServiceRuntimeException.class,
+                () -> cache.get("a", () -> createTile(), Deadline.after(150)));
+    }
+
+    @Test
+    public void failingStoreFallsBackToLoader() throws Exception {
+        TileStore broken = new MemoryTileStore() {
+            @Override
+            public byte[] get(String key) {
+                throw new IllegalStateException("Connection refused");
+            }
+        };
+        SharedTileCache cache = new SharedTileCache(broken, 60000, 1000);
+        byte[] tile = createTile();
+        assertArrayEquals(tile, cache.get("a", () -> tile, Deadline.none()));
+    }
+
+    @Test
+    public void lockIsReleasedByOwnerOrExpiration() throws Exception {
+        MemoryTileStore store = new MemoryTileStore();
+        assertTrue(store.tryLock("a", "owner", 60000));
+        assertFalse(store.tryLock("a", "other", 60000));
+        store.unlock("a", "other");
+        assertFalse(store.tryLock("a", "other", 60000));
+        store.unlock("a", "owner");
+        assertTrue(store.tryLock("a", "other", 50));
+        Thread.sleep(100);
+        assertTrue(store.tryLock("a", "owner", 60000));
+    }
+
+}
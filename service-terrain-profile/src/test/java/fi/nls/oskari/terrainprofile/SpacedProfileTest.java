@@ -0,0 +1,57 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class SpacedProfileTest {
+
+    @Test
+    public void numSamples() {
+        // 25 m -> 0, 10, 20; duplicate vertex skipped; 10 m -> 0; last vertex
+        double[] route = { 0, 0, 25, 0, 25, 0, 25, 10 };
+        assertEquals(5, TerrainProfileService.getNumSamples(route, 10));
+        assertEquals(1, TerrainProfileService.getNumSamples(new double[] { 1, 1 }, 10));
+    }
+
+    @Test
+    public void onlyEditedSegmentsAreSampledAgain() throws Exception {
+        double e = StubWCS.ORIGIN_E + 60000;
+        double n = StubWCS.ORIGIN_N - 60000;
+        double[] route = { e, n, e + 1000, n, e + 1000, n - 500 };
+        double[] edited = { e, n, e + 1000, n, e + 1200, n - 500 };
+        try (StubWCS wcs = new StubWCS()) {
+            TerrainProfileService tps = new TerrainProfileService(wcs.getEndPoint(), StubWCS.COVERAGE_ID);
+            List<TerrainProfileService> none = Collections.emptyList();
+
+            List<DataPoint> profile = tps.getSpacedProfile(route, 10, 1, Deadline.none(), none);
+            assertEquals(TerrainProfileService.getNumSamples(route, 10), profile.size());
+            assertEquals(151, profile.size());
+            assertEquals(1000.0, profile.get(100).getDistFromStart(), 1e-9);
+            assertEquals(e + 1000, profile.get(100).getE(), 0.0);
+            assertEquals(1500.0, profile.get(150).getDistFromStart(), 1e-9);
+            long requests = wcs.getGetCoverageRequests();
+            assertTrue(requests > 0);
+
+            // Same route again comes from the segment cache
+            List<DataPoint> again = tps.getSpacedProfile(route, 10, 1, Deadline.none(), none);
+            assertEquals(requests, wcs.getGetCoverageRequests());
+            for (int i = 0; i < profile.size(); i++) {
+                assertEquals(profile.get(i).getAltitude(), again.get(i).getAltitude(), 0.0);
+            }
+
+            // Moving the last vertex leaves the first segment as it was
+            List<DataPoint> moved = tps.getSpacedProfile(edited, 10, 1, Deadline.none(), none);
+            assertTrue(wcs.getGetCoverageRequests() > requests);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(profile.get(i).getAltitude(), moved.get(i).getAltitude(), 0.0);
+            }
+            double length = 1000 + Math.hypot(200, 500);
+            assertEquals(length, moved.get(moved.size() - 1).getDistFromStart(), 1e-9);
+        }
+    }
+
+}
@@ -0,0 +1,370 @@
+package fi.nls.oskari.terrainprofile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * WCS 2.0 answering GetCapabilities, DescribeCoverage and GetCoverage of a
+ * single synthetic DEM, for running the service without the real WCS.
+ * GetCoverage responses are uncompressed tiled float32 GeoTIFFs, gzipped if
+ * the client accepts it, optionally delayed and failed at random.
+ */
+public class StubWCS implements AutoCloseable {
+
+    public static final String COVERAGE_ID = "stub_dem";
+    public static final String SRS = "http://www.opengis.net/def/crs/EPSG/0/3067";
+    // 400 km x 400 km of 2 m cells, the origin is the centre of the first cell
+    public static final double ORIGIN_E = 300000;
+    public static final double ORIGIN_N = 7100000;
+    public static final double RESOLUTION = 2;
+    public static final int GRID_SIZE = 200000;
+    public static final float NO_DATA = -9999f;
+
+    private static final int TIFF_TILE_SIZE = 256;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile int latencyMs;
+    private volatile int jitterMs;
+    private volatile double failureRate;
+    private volatile boolean gzip = true;
+
+    private final AtomicLong getCoverageRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public StubWCS() throws IOException {
+        this(16);
+    }
+
+    /**
+     * Starts serving on a free port of the loopback address
+     *
+     * @param threads number of requests served concurrently
+     */
+    public StubWCS(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/wcs", this::handle);
+        server.start();
+    }
+
+    public String getEndPoint() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ':' + address.getPort() + "/wcs";
+    }
+
+    /**
+     * @param latencyMs added to every GetCoverage response
+     * @param jitterMs at most this much more added at random
+     */
+    public void setLatency(int latencyMs, int jitterMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+    }
+
+    /**
+     * @param failureRate share of GetCoverage requests answered with 503, 0...1
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public long getGetCoverageRequests() {
+        return getCoverageRequests.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    /**
+     * @return bytes of response bodies sent, after compression
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return altitude of the synthetic DEM at (e, n), rolling hills with some detail on top
+     */
+    public static double getAltitude(double e, double n) {
+        return 120
+                + 80 * Math.sin(e / 3100) * Math.cos(n / 4700)
+                + 15 * Math.sin(e / 310 + n / 470)
+                + 2 * Math.cos(e / 37 - n / 53);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String request = getFirst(params, "request");
+            if ("GetCapabilities".equalsIgnoreCase(request)) {
+                send(exchange, 200, "application/xml", getCapabilities().getBytes(StandardCharsets.UTF_8));
+            } else if ("DescribeCoverage".equalsIgnoreCase(request)) {
+                send(exchange, 200, "application/xml", describeCoverage().getBytes(StandardCharsets.UTF_8));
+            } else if ("GetCoverage".equalsIgnoreCase(request)) {
+                getCoverage(exchange, params);
+            } else {
+                send(exchange, 400, "text/plain", "Unknown request".getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (RuntimeException e) {
+            send(exchange, 400, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void getCoverage(HttpExchange exchange, Map<String, List<String>> params) throws IOException {
+        getCoverageRequests.incrementAndGet();
+        sleep(latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextInt(jitterMs + 1) : 0));
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            failedRequests.incrementAndGet();
+            send(exchange, 503, "text/plain", "Injected failure".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        double[] e = null;
+        double[] n = null;
+        for (String subset : params.getOrDefault("subset", List.of())) {
+            int open = subset.indexOf('(');
+            String axis = subset.substring(0, open).trim();
+            String[] range = subset.substring(open + 1, subset.length() - 1).split(",");
+            double[] minMax = { Double.parseDouble(range[0]), Double.parseDouble(range[1]) };
+            if ("E".equals(axis)) {
+                e = minMax;
+            } else if ("N".equals(axis)) {
+                n = minMax;
+            }
+        }
+        if (e == null || n == null) {
+            throw new IllegalArgumentException("Expected subsets E and N");
+        }
+        String scaleFactor = getFirst(params, "scalefactor");
+        double cellSize = RESOLUTION / (scaleFactor != null ? Double.parseDouble(scaleFactor) : 1);
+        int width = Math.max(1, (int) Math.round((e[1] - e[0]) / cellSize));
+        int height = Math.max(1, (int) Math.round((n[1] - n[0]) / cellSize));
+        byte[] tiff = writeTiff(width, height, e[0], n[1], cellSize);
+        send(exchange, 200, "image/tiff", tiff);
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (gzip && status == 200 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(baos)) {
+                out.write(body);
+            }
+            body = baos.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        bytesSent.addAndGet(body.length);
+    }
+
+    /**
+     * Uncompressed, little endian, tiled TIFF of float32 values, cells
+     * outside the grid are NO_DATA. Pixel (x, y) is the cell centred at
+     * (minE + x * cellSize, maxN - (y + 1) * cellSize), which is how
+     * TerrainProfileService subsets the grid.
+     */
+    static byte[] writeTiff(int width, int height, double minE, double maxN, double cellSize) {
+        int tilesAcross = (width + TIFF_TILE_SIZE - 1) / TIFF_TILE_SIZE;
+        int tilesDown = (height + TIFF_TILE_SIZE - 1) / TIFF_TILE_SIZE;
+        int numTiles = tilesAcross * tilesDown;
+        int tileBytes = TIFF_TILE_SIZE * TIFF_TILE_SIZE * Float.BYTES;
+        int numEntries = 12;
+        int offsetsAt = 8 + 2 + numEntries * 12 + 4;
+        int countsAt = offsetsAt + numTiles * 4;
+        int dataAt = countsAt + numTiles * 4;
+
+        ByteBuffer buf = ByteBuffer.allocate(dataAt + numTiles * tileBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        // Entries sorted by tag
+        buf.putShort((short) numEntries);
+        putEntry(buf, 256, 4, 1, width);            // ImageWidth
+        putEntry(buf, 257, 4, 1, height);           // ImageLength
+        putEntry(buf, 258, 3, 1, 32);               // BitsPerSample
+        putEntry(buf, 259, 3, 1, 1);                // Compression: none
+        putEntry(buf, 262, 3, 1, 1);                // PhotometricInterpretation: BlackIsZero
+        putEntry(buf, 277, 3, 1, 1);                // SamplesPerPixel
+        putEntry(buf, 284, 3, 1, 1);                // PlanarConfiguration: chunky
+        putEntry(buf, 322, 3, 1, TIFF_TILE_SIZE);   // TileWidth
+        putEntry(buf, 323, 3, 1, TIFF_TILE_SIZE);   // TileLength
+        // A single offset or count fits in the entry itself
+        putEntry(buf, 324, 4, numTiles, numTiles == 1 ? dataAt : offsetsAt);    // TileOffsets
+        putEntry(buf, 325, 4, numTiles, numTiles == 1 ? tileBytes : countsAt);  // TileByteCounts
+        putEntry(buf, 339, 3, 1, 3);                // SampleFormat: IEEE floating point
+        buf.putInt(0); // no next IFD
+        for (int t = 0; t < numTiles; t++) {
+            buf.putInt(offsetsAt + t * 4, dataAt + t * tileBytes);
+            buf.putInt(countsAt + t * 4, tileBytes);
+        }
+        buf.position(dataAt);
+        for (int t = 0; t < numTiles; t++) {
+            int x0 = (t % tilesAcross) * TIFF_TILE_SIZE;
+            int y0 = (t / tilesAcross) * TIFF_TILE_SIZE;
+            for (int y = y0; y < y0 + TIFF_TILE_SIZE; y++) {
+                double n = maxN - (y + 1) * cellSize;
+                for (int x = x0; x < x0 + TIFF_TILE_SIZE; x++) {
+                    double e = minE + x * cellSize;
+                    buf.putFloat(x < width && y < height ? getValue(e, n) : NO_DATA);
+                }
+            }
+        }
+        return buf.array();
+    }
+
+    private static float getValue(double e, double n) {
+        long gridX = Math.round((e - ORIGIN_E) / RESOLUTION);
+        long gridY = Math.round((ORIGIN_N - n) / RESOLUTION);
+        if (gridX < 0 || gridY < 0 || gridX >= GRID_SIZE || gridY >= GRID_SIZE) {
+            return NO_DATA;
+        }
+        return (float) getAltitude(e, n);
+    }
+
+    private static void putEntry(ByteBuffer buf, int tag, int type, int count, int value) {
+        buf.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3 && count == 1) {
+            buf.putShort((short) value).putShort((short) 0);
+        } else {
+            buf.putInt(value);
+        }
+    }
+
+    private String getCapabilities() {
+        String href = getEndPoint() + '?';
+        StringBuilder operations = new StringBuilder();
+        for (String op : new String[] { "GetCapabilities", "DescribeCoverage", "GetCoverage" }) {
+            operations.append("<ows:Operation name=\"").append(op).append("\"><ows:DCP><ows:HTTP>")
+                    .append("<ows:Get xlink:href=\"").append(href).append("\"/>")
+                    .append("</ows:HTTP></ows:DCP></ows:Operation>");
+        }
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<wcs:Capabilities version=\"2.0.1\" xmlns:wcs=\"http://www.opengis.net/wcs/2.0\""
+                + " xmlns:ows=\"http://www.opengis.net/ows/2.0\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">"
+                + "<ows:ServiceIdentification>"
+                + "<ows:Title>Stub WCS</ows:Title>"
+                + "<ows:ServiceType>urn:ogc:service:wcs</ows:ServiceType>"
+                + "<ows:ServiceTypeVersion>2.0.1</ows:ServiceTypeVersion>"
+                + "<ows:Profile>http://www.opengis.net/spec/WCS/2.0/conf/core</ows:Profile>"
+                + "<ows:Profile>http://www.opengis.net/spec/WCS_protocol-binding_get-kvp/1.0/conf/get-kvp</ows:Profile>"
+                + "<ows:Profile>http://www.opengis.net/spec/WCS_service-extension_scaling/1.0/conf/scaling</ows:Profile>"
+                + "<ows:Profile>http://www.opengis.net/spec/GMLCOV/1.0/conf/gml-coverage</ows:Profile>"
+                + "<ows:Profile>" + TerrainProfileService.GEOTIFF_EXTENSION + "</ows:Profile>"
+                + "</ows:ServiceIdentification>"
+                + "<ows:OperationsMetadata>" + operations + "</ows:OperationsMetadata>"
+                + "<wcs:ServiceMetadata><wcs:formatSupported>image/tiff</wcs:formatSupported></wcs:ServiceMetadata>"
+                + "<wcs:Contents><wcs:CoverageSummary>"
+                + "<wcs:CoverageId>" + COVERAGE_ID + "</wcs:CoverageId>"
+                + "<wcs:CoverageSubtype>RectifiedGridCoverage</wcs:CoverageSubtype>"
+                + "</wcs:CoverageSummary></wcs:Contents>"
+                + "</wcs:Capabilities>";
+    }
+
+    private static String describeCoverage() {
+        double minE = ORIGIN_E - RESOLUTION / 2;
+        double maxE = minE + GRID_SIZE * RESOLUTION;
+        double maxN = ORIGIN_N + RESOLUTION / 2;
+        double minN = maxN - GRID_SIZE * RESOLUTION;
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<wcs:CoverageDescriptions xmlns:wcs=\"http://www.opengis.net/wcs/2.0\""
+                + " xmlns:gml=\"http://www.opengis.net/gml/3.2\" xmlns:gmlcov=\"http://www.opengis.net/gmlcov/1.0\""
+                + " xmlns:swe=\"http://www.opengis.net/swe/2.0\">"
+                + "<wcs:CoverageDescription gml:id=\"" + COVERAGE_ID + "\">"
+                + "<gml:boundedBy><gml:Envelope srsName=\"" + SRS + "\" axisLabels=\"E N\" uomLabels=\"m m\" srsDimension=\"2\">"
+                + "<gml:lowerCorner>" + format(minE) + ' ' + format(minN) + "</gml:lowerCorner>"
+                + "<gml:upperCorner>" + format(maxE) + ' ' + format(maxN) + "</gml:upperCorner>"
+                + "</gml:Envelope></gml:boundedBy>"
+                + "<wcs:CoverageId>" + COVERAGE_ID + "</wcs:CoverageId>"
+                + "<gml:domainSet><gml:RectifiedGrid gml:id=\"grid_" + COVERAGE_ID + "\" dimension=\"2\">"
+                + "<gml:limits><gml:GridEnvelope>"
+                + "<gml:low>0 0</gml:low><gml:high>" + (GRID_SIZE - 1) + ' ' + (GRID_SIZE - 1) + "</gml:high>"
+                + "</gml:GridEnvelope></gml:limits>"
+                + "<gml:axisLabels>E N</gml:axisLabels>"
+                + "<gml:origin><gml:Point gml:id=\"origin_" + COVERAGE_ID + "\" srsName=\"" + SRS + "\">"
+                + "<gml:pos>" + format(ORIGIN_E) + ' ' + format(ORIGIN_N) + "</gml:pos></gml:Point></gml:origin>"
+                + "<gml:offsetVector srsName=\"" + SRS + "\">" + format(RESOLUTION) + " 0</gml:offsetVector>"
+                + "<gml:offsetVector srsName=\"" + SRS + "\">0 " + format(-RESOLUTION) + "</gml:offsetVector>"
+                + "</gml:RectifiedGrid></gml:domainSet>"
+                + "<gmlcov:rangeType><swe:DataRecord><swe:field name=\"height\"><swe:Quantity>"
+                + "<swe:nilValues><swe:NilValues><swe:nilValue reason=\"nodata\">" + format(NO_DATA) + "</swe:nilValue></swe:NilValues></swe:nilValues>"
+                + "<swe:uom code=\"m\"/></swe:Quantity></swe:field></swe:DataRecord></gmlcov:rangeType>"
+                + "<wcs:ServiceParameters><wcs:CoverageSubtype>RectifiedGridCoverage</wcs:CoverageSubtype>"
+                + "<wcs:nativeFormat>image/tiff</wcs:nativeFormat></wcs:ServiceParameters>"
+                + "</wcs:CoverageDescription></wcs:CoverageDescriptions>";
+    }
+
+    private static String format(double d) {
+        return String.format(Locale.ROOT, "%.1f", d);
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) {
+        Map<String, List<String>> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String key = URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+            String value = URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String getFirst(Map<String, List<String>> params, String key) {
+        List<String> values = params.get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static void sleep(int ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
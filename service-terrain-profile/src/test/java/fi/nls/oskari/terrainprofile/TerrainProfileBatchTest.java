@@ -0,0 +1,71 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TerrainProfileBatchTest {
+
+    private static final String DONE = "{\"id\":\"a\",\"type\":\"Feature\",\"geometry\":null,\"properties\":{}}\n";
+    private static final String INCOMPLETE = "{\"id\":\"c\",\"type\":\"Feat";
+
+    @Test
+    public void resumeSkipsDoneAndCutsOffIncompleteLine(@TempDir Path dir) throws Exception {
+        Path output = dir.resolve("out.ndjson");
+        Files.write(output, (DONE + INCOMPLETE).getBytes(StandardCharsets.UTF_8));
+        assertEquals(Set.of("a"), TerrainProfileBatch.resume(output));
+        assertEquals(DONE, Files.readString(output));
+
+        assertTrue(TerrainProfileBatch.resume(dir.resolve("missing.ndjson")).isEmpty());
+    }
+
+    @Test
+    public void profilesRoutesNotYetDone(@TempDir Path dir) throws Exception {
+        double e = StubWCS.ORIGIN_E + 50000;
+        double n = StubWCS.ORIGIN_N - 50000;
+        String input = "{\"type\":\"FeatureCollection\",\"features\":["
+                + lineString("\"a\"", e, n, e + 500, n)
+                + "," + lineString("\"b\"", e, n, e, n - 1000)
+                + ",{\"type\":\"Feature\",\"id\":\"p\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[0,0]}}"
+                + "]}";
+        Path in = dir.resolve("routes.geojson");
+        Files.write(in, input.getBytes(StandardCharsets.UTF_8));
+        Path output = dir.resolve("out.ndjson");
+        Files.write(output, (DONE + INCOMPLETE).getBytes(StandardCharsets.UTF_8));
+
+        try (StubWCS wcs = new StubWCS()) {
+            TerrainProfileService tps = new TerrainProfileService(wcs.getEndPoint(), StubWCS.COVERAGE_ID);
+            TerrainProfileBatch batch = new TerrainProfileBatch(tps, 2, 10, 1, 0, false);
+            TerrainProfileBatch.Result result = batch.run(in, output);
+            assertEquals(1, result.getDone());
+            assertEquals(2, result.getSkipped());
+            assertEquals(0, result.getFailed());
+        }
+
+        List<String> lines = Files.readAllLines(output);
+        assertEquals(2, lines.size());
+        JsonNode b = new ObjectMapper().readTree(lines.get(1));
+        assertEquals("b", b.get("id").asText());
+        JsonNode properties = b.get("properties");
+        assertEquals(101, properties.get("numPoints").asInt());
+        assertEquals(1000.0, properties.get("length").asDouble(), 1e-3);
+        assertTrue(properties.get("minAltitude").asDouble() <= properties.get("maxAltitude").asDouble());
+        assertTrue(properties.get("ascent").asDouble() > 0);
+    }
+
+    private static String lineString(String id, double e0, double n0, double e1, double n1) {
+        return "{\"type\":\"Feature\",\"id\":" + id + ",\"geometry\":{\"type\":\"LineString\",\"coordinates\":"
+                + "[[" + e0 + "," + n0 + "],[" + e1 + "," + n1 + "]]}}";
+    }
+
+}
@@ -1,23 +1,37 @@
 package fi.nls.oskari.terrainprofile;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyDouble;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import fi.nls.oskari.control.ActionCommonException;
 import fi.nls.oskari.control.ActionException;
 import fi.nls.oskari.control.ActionParameters;
 import fi.nls.oskari.control.ActionParamsException;
 import fi.nls.oskari.service.ServiceException;
+import fi.nls.oskari.util.PropertyUtil;
 import fi.nls.test.control.MockServletOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import javax.xml.parsers.ParserConfigurationException;
@@ -69,6 +83,46 @@ public class TerrainProfileHandlerTest {
         }
     }
 
+    @Test
+    public void whenBodyDeclaresTooLargeLengthThrowsActionParamsException() throws IOException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getContentLengthLong()).thenReturn(101L);
+        assertThrows(ActionParamsException.class, () -> TerrainProfileHandler.readBody(request, 100));
+        verify(request, never()).getInputStream();
+    }
+
+    @Test
+    public void whenBodyIsTooLargeThrowsActionParamsException() throws IOException, ActionException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("POST");
+        // chunked, no Content-Length
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        when(request.getInputStream()).thenAnswer(i -> getInputStream(new byte[101]));
+        assertThrows(ActionParamsException.class, () -> TerrainProfileHandler.readBody(request, 100));
+        assertEquals(101, TerrainProfileHandler.readBody(request, 101).length);
+    }
+
+    private static ServletInputStream getInputStream(byte[] body) {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+            @Override
+            public void setReadListener(ReadListener listener) {}
+        };
+    }
+
     @Test
     public void whenRouteParameterIsNotGeoJSONFeatureThrowsActionParamsException() throws JsonProcessingException, ActionException {
         LineString line = new LineString();
@@ -156,6 +210,79 @@ public class TerrainProfileHandlerTest {
         }
     }
 
+    @Test
+    public void whenRefineTokenIsUnknownThrowsActionParamsException() throws ActionException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameter(TerrainProfileHandler.PARAM_REFINE_TOKEN)).thenReturn("0123456789abcdef");
+        ActionParameters params = new ActionParameters();
+        params.setRequest(request);
+
+        try {
+            handler.handleAction(params);
+            fail();
+        } catch (ActionParamsException e) {
+            assertEquals("Unknown or expired refineToken", e.getMessage());
+        }
+    }
+
+    @Test
+    public void whenCoverageIsUnknownThrowsActionParamsException() throws ActionException {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameter(TerrainProfileHandler.PARAM_ROUTE)).thenReturn("{}");
+        when(request.getParameter(TerrainProfileHandler.PARAM_COVERAGES)).thenReturn("dsm");
+        ActionParameters params = new ActionParameters();
+        params.setRequest(request);
+
+        try {
+            handler.handleAction(params);
+            fail();
+        } catch (ActionParamsException e) {
+            assertEquals("Invalid coverages, unknown coverage 'dsm'", e.getMessage());
+        }
+    }
+
+    @Test
+    public void whenChunkedCoarseProfileTimesOutAfterCommitThrows() throws Exception {
+        PropertyUtil.addProperty(TerrainProfileHandler.PROPERTY_CHUNK_SIZE, "2", true);
+        try {
+            TerrainProfileService tps = mock(TerrainProfileService.class);
+            when(tps.getCoarseScaleFactor(any(), anyDouble())).thenReturn(0.25);
+            // The first chunk of the coarse profile is written before it runs out of time
+            doAnswer(invocation -> {
+                ProfileWriter<?> writer = invocation.getArgument(6);
+                DataPoint point = new DataPoint();
+                point.setE(500000);
+                point.setN(6822000);
+                writer.write(Collections.singletonList(point));
+                throw new DeadlineExceededException();
+            }).when(tps).getTerrainProfile(any(), anyInt(), eq(0.25), any(), anyInt(), any(), any());
+            TerrainProfileHandler chunking = new TerrainProfileHandler(om, tps);
+            chunking.init();
+
+            String route = om.writeValueAsString(Map.of(
+                    "type", "Feature",
+                    "properties", Map.of("numPoints", 10),
+                    "geometry", Map.of("type", "LineString", "coordinates",
+                            new double[][] { { 500000, 6822000 }, { 501000, 6823000 } })));
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getParameter(TerrainProfileHandler.PARAM_ROUTE)).thenReturn(route);
+            when(request.getParameter(TerrainProfileHandler.PARAM_LOD)).thenReturn(TerrainProfileHandler.LOD_COARSE);
+            HttpServletResponse response = mock(HttpServletResponse.class);
+            when(response.getOutputStream()).thenReturn(new MockServletOutputStream(new ByteArrayOutputStream()));
+            when(response.isCommitted()).thenReturn(true);
+            ActionParameters params = new ActionParameters();
+            params.setRequest(request);
+            params.setResponse(response);
+
+            // Part of the coarse profile is out already, it can't be replaced with the full one
+            ActionCommonException e = assertThrows(ActionCommonException.class, () -> chunking.handleAction(params));
+            assertEquals("Timeout", e.getMessage());
+            verify(response, never()).resetBuffer();
+        } finally {
+            PropertyUtil.clearProperties();
+        }
+    }
+
     @Test
     @Disabled("Depends on an outside API")
     public void whenInputIsCorrectWePass() throws IOException, ActionException, ServiceException {
@@ -183,6 +310,19 @@ public class TerrainProfileHandlerTest {
         new TerrainProfileHandler(om, tps).handleAction(params);
     }
 
+    @Test
+    public void cacheKeyIgnoresInsignificantWhitespace() {
+        String compact = "{\"type\":\"Feature\",\"properties\":{\"name\":\"a b\"}}";
+        String pretty = "{ \"type\": \"Feature\",\n  \"properties\": { \"name\": \"a b\" } }";
+        String differentString = "{\"type\":\"Feature\",\"properties\":{\"name\":\"ab\"}}";
+        assertEquals(TerrainProfileHandler.getCacheKey(compact, "EPSG:3067"),
+                TerrainProfileHandler.getCacheKey(pretty, "EPSG:3067"));
+        assertNotEquals(TerrainProfileHandler.getCacheKey(compact, "EPSG:3067"),
+                TerrainProfileHandler.getCacheKey(differentString, "EPSG:3067"));
+        assertNotEquals(TerrainProfileHandler.getCacheKey(compact, "EPSG:3067"),
+                TerrainProfileHandler.getCacheKey(compact, "EPSG:4326"));
+    }
+
     @Test
     public void testWriteMultiPointFeature() throws IOException {
         DataPoint p1 = new DataPoint();
@@ -0,0 +1,288 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fi.nls.oskari.control.ActionParameters;
+import fi.nls.oskari.util.PropertyUtil;
+import fi.nls.test.control.MockServletOutputStream;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Replays a mix of routes against TerrainProfileHandler backed by a local
+ * {@link StubWCS}. The smoke test runs with every build, the load test only
+ * when asked for, for example:
+ *
+ * mvn test -Dtest=TerrainProfileLoadTest -Dloadtest=true -Dloadtest.threads=16 -Dloadtest.requests=2000 -Dloadtest.latencyms=40
+ *
+ * Other settings are loadtest.jitterms, loadtest.failureRate, loadtest.gzip and loadtest.seed.
+ */
+public class TerrainProfileLoadTest {
+
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    @Test
+    public void servesProfilesFromStubWCS() throws Exception {
+        try (StubWCS wcs = new StubWCS()) {
+            TerrainProfileService tps = new TerrainProfileService(wcs.getEndPoint(), StubWCS.COVERAGE_ID);
+
+            double e = StubWCS.ORIGIN_E + 1000 * StubWCS.RESOLUTION;
+            double n = StubWCS.ORIGIN_N - 2000 * StubWCS.RESOLUTION;
+            DataPoint point = tps.getTerrainProfile(new double[] { e, n }, 0, -1).get(0);
+            assertEquals(StubWCS.getAltitude(e, n), point.getAltitude(), 1e-3);
+
+            Report report = run(wcs, tps, 4, 20, new Random(1));
+            assertEquals(0, report.errors, report.toString());
+            assertTrue(wcs.getGetCoverageRequests() > 0);
+        }
+    }
+
+    @Test
+    public void asyncProfileMatchesSynchronous() throws Exception {
+        try (StubWCS wcs = new StubWCS()) {
+            TerrainProfileService tps = new TerrainProfileService(wcs.getEndPoint(), StubWCS.COVERAGE_ID);
+            double e = StubWCS.ORIGIN_E + 1000 * StubWCS.RESOLUTION;
+            double n = StubWCS.ORIGIN_N - 2000 * StubWCS.RESOLUTION;
+            // Crosses a few tiles
+            double[] route = { e, n, e + 3000 * StubWCS.RESOLUTION, n - 500 * StubWCS.RESOLUTION };
+
+            List<DataPoint> expected = tps.getTerrainProfile(route, 200, -1);
+            List<DataPoint> actual = tps.getTerrainProfileAsync(route, 200, -1, Deadline.none(),
+                    Collections.emptyList()).get(10, TimeUnit.SECONDS);
+
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getDistFromStart(), actual.get(i).getDistFromStart(), 1e-9);
+                assertEquals(expected.get(i).getAltitude(), actual.get(i).getAltitude(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void completesAsyncRequestWithTheProfile() throws Exception {
+        PropertyUtil.addProperty(TerrainProfileHandler.PROPERTY_ASYNC, "true", true);
+        try (StubWCS wcs = new StubWCS()) {
+            TerrainProfileService tps = new TerrainProfileService(wcs.getEndPoint(), StubWCS.COVERAGE_ID);
+            TerrainProfileHandler handler = new TerrainProfileHandler(OM, tps);
+            handler.init();
+
+            double e = StubWCS.ORIGIN_E + 1000 * StubWCS.RESOLUTION;
+            double n = StubWCS.ORIGIN_N - 2000 * StubWCS.RESOLUTION;
+            String route = OM.writeValueAsString(Map.of(
+                    "type", "Feature",
+                    "properties", Map.of("numPoints", 100),
+                    "geometry", Map.of("type", "LineString", "coordinates", new double[][] {
+                            { e, n }, { e + 2000 * StubWCS.RESOLUTION, n - 500 * StubWCS.RESOLUTION } })));
+            HttpServletRequest httpRequest = mock(HttpServletRequest.class);
+            when(httpRequest.getParameter(TerrainProfileHandler.PARAM_ROUTE)).thenReturn(route);
+            AsyncContext async = mock(AsyncContext.class);
+            when(httpRequest.isAsyncSupported()).thenReturn(true);
+            when(httpRequest.startAsync()).thenReturn(async);
+            HttpServletResponse httpResponse = mock(HttpServletResponse.class);
+            when(httpResponse.getOutputStream()).thenReturn(new MockServletOutputStream(new ByteArrayOutputStream()));
+            ActionParameters params = new ActionParameters();
+            params.setRequest(httpRequest);
+            params.setResponse(httpResponse);
+
+            handler.handleAction(params);
+
+            verify(async, timeout(10000)).complete();
+            verify(httpResponse).setHeader(eq("ETag"), anyString());
+            verify(httpResponse, never()).sendError(anyInt(), anyString());
+        } finally {
+            PropertyUtil.clearProperties();
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "loadtest", matches = "true")
+    public void loadTest() throws Exception {
+        try (StubWCS wcs = new StubWCS(Integer.getInteger("loadtest.wcsThreads", 32))) {
+            wcs.setLatency(Integer.getInteger("loadtest.latencyms", 20), Integer.getInteger("loadtest.jitterms", 30));
+            wcs.setFailureRate(Double.parseDouble(System.getProperty("loadtest.failureRate", "0")));
+            wcs.setGzip(Boolean.parseBoolean(System.getProperty("loadtest.gzip", "true")));
+            TerrainProfileService tps = new TerrainProfileService(wcs.getEndPoint(), StubWCS.COVERAGE_ID);
+            Report report = run(wcs, tps,
+                    Integer.getInteger("loadtest.threads", 8),
+                    Integer.getInteger("loadtest.requests", 500),
+                    new Random(Long.getLong("loadtest.seed", 1L)));
+            System.out.println(report);
+        }
+    }
+
+    private static Report run(StubWCS wcs, TerrainProfileService tps, int threads, int requests, Random random)
+            throws Exception {
+        TerrainProfileHandler handler = new TerrainProfileHandler(OM, tps);
+        handler.init();
+
+        List<String[]> mix = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            mix.add(nextRequest(random));
+        }
+
+        long fetchedBefore = wcs.getBytesSent();
+        long getCoverageBefore = wcs.getGetCoverageRequests();
+        long[] latencies = new long[requests];
+        AtomicLong errors = new AtomicLong();
+        AtomicReference<Exception> firstError = new AtomicReference<>();
+        AtomicLong responseBytes = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    long begin = System.nanoTime();
+                    try {
+                        responseBytes.addAndGet(handle(handler, mix.get(index)));
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        firstError.compareAndSet(null, e);
+                    }
+                    latencies[index] = System.nanoTime() - begin;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Report report = new Report();
+        report.threads = threads;
+        report.requests = requests;
+        report.errors = errors.get();
+        report.firstError = firstError.get();
+        report.elapsedNanos = elapsed;
+        report.latencies = latencies;
+        report.getCoverageRequests = wcs.getGetCoverageRequests() - getCoverageBefore;
+        report.bytesFetched = wcs.getBytesSent() - fetchedBefore;
+        report.responseBytes = responseBytes.get();
+        return report;
+    }
+
+    /**
+     * @return number of bytes in the response
+     */
+    private static int handle(TerrainProfileHandler handler, String[] request) throws Exception {
+        HttpServletRequest httpRequest = mock(HttpServletRequest.class);
+        when(httpRequest.getParameter(TerrainProfileHandler.PARAM_ROUTE)).thenReturn(request[0]);
+        when(httpRequest.getParameter(TerrainProfileHandler.PARAM_LOD)).thenReturn(request[1]);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        HttpServletResponse httpResponse = mock(HttpServletResponse.class);
+        when(httpResponse.getOutputStream()).thenReturn(new MockServletOutputStream(baos));
+        ActionParameters params = new ActionParameters();
+        params.setRequest(httpRequest);
+        params.setResponse(httpResponse);
+        handler.handleAction(params);
+        return baos.size();
+    }
+
+    /**
+     * Mostly short walks, some longer rides and now and then a long route
+     * that's processed in chunks. One in five asks for the coarse profile first.
+     *
+     * @return route as a GeoJSON Feature and the lod parameter
+     */
+    private static String[] nextRequest(Random random) throws IOException {
+        double kind = random.nextDouble();
+        double lengthMetres;
+        int numVertices;
+        if (kind < 0.6) {
+            lengthMetres = 1000 + random.nextDouble() * 4000;
+            numVertices = 5 + random.nextInt(45);
+        } else if (kind < 0.9) {
+            lengthMetres = 5000 + random.nextDouble() * 25000;
+            numVertices = 20 + random.nextInt(180);
+        } else {
+            lengthMetres = 30000 + random.nextDouble() * 70000;
+            numVertices = 100 + random.nextInt(900);
+        }
+        double margin = 100000;
+        double span = StubWCS.GRID_SIZE * StubWCS.RESOLUTION - 2 * margin;
+        double e = StubWCS.ORIGIN_E + margin + random.nextDouble() * span;
+        double n = StubWCS.ORIGIN_N - margin - random.nextDouble() * span;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        double step = lengthMetres / (numVertices - 1);
+
+        double[][] coordinates = new double[numVertices][];
+        for (int i = 0; i < numVertices; i++) {
+            coordinates[i] = new double[] { Math.round(e * 10) / 10.0, Math.round(n * 10) / 10.0 };
+            heading += (random.nextDouble() - 0.5) * 0.8;
+            e += step * Math.cos(heading);
+            n += step * Math.sin(heading);
+        }
+        String route = OM.writeValueAsString(Map.of(
+                "type", "Feature",
+                "properties", Map.of(),
+                "geometry", Map.of("type", "LineString", "coordinates", coordinates)));
+        String lod = random.nextDouble() < 0.2 ? "coarse" : null;
+        return new String[] { route, lod };
+    }
+
+    private static class Report {
+        private int threads;
+        private int requests;
+        private long errors;
+        private Exception firstError;
+        private long elapsedNanos;
+        private long[] latencies;
+        private long getCoverageRequests;
+        private long bytesFetched;
+        private long responseBytes;
+
+        private double percentileMillis(long[] sorted, double p) {
+            int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            double seconds = elapsedNanos / 1e9;
+            return String.format(Locale.ROOT,
+                    "threads=%d requests=%d errors=%d elapsed_s=%.2f throughput_rps=%.1f"
+                    + " p50_ms=%.1f p90_ms=%.1f p99_ms=%.1f max_ms=%.1f"
+                    + " getcoverage_requests=%d bytes_fetched=%d bytes_fetched_per_request=%d response_bytes=%d",
+                    threads, requests, errors, seconds, requests / seconds,
+                    percentileMillis(sorted, 50), percentileMillis(sorted, 90),
+                    percentileMillis(sorted, 99), percentileMillis(sorted, 100),
+                    getCoverageRequests, bytesFetched, bytesFetched / Math.max(1, requests), responseBytes)
+                    + (firstError != null ? " first_error=" + firstError : "");
+        }
+    }
+
+}
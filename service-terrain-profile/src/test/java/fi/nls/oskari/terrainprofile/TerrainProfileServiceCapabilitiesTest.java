@@ -0,0 +1,28 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class TerrainProfileServiceCapabilitiesTest {
+
+    @Test
+    public void readsProfilesFromServiceIdentification() throws IOException {
+        String xml = "<?xml version=\"1.0\"?>"
+                + "<wcs:Capabilities xmlns:wcs=\"http://www.opengis.net/wcs/2.0\" xmlns:ows=\"http://www.opengis.net/ows/2.0\">"
+                + "<ows:ServiceIdentification>"
+                + "<ows:Title>DEM</ows:Title>"
+                + "<ows:Profile>http://www.opengis.net/spec/WCS/2.0/conf/core</ows:Profile>"
+                + "<ows:Profile>\n  " + TerrainProfileService.GEOTIFF_EXTENSION + "\n</ows:Profile>"
+                + "</ows:ServiceIdentification>"
+                + "</wcs:Capabilities>";
+        Set<String> profiles = TerrainProfileService.getProfiles(xml.getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, profiles.size());
+        assertTrue(profiles.contains(TerrainProfileService.GEOTIFF_EXTENSION));
+    }
+
+}
@@ -0,0 +1,75 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fi.nls.oskari.util.PropertyUtil;
+
+public class TileCacheWarmerTest {
+
+    @BeforeEach
+    public void enableTileCache() throws Exception {
+        PropertyUtil.addProperty(TerrainProfileService.PROPERTY_TILE_CACHE_LIMIT, "1000", true);
+    }
+
+    @AfterEach
+    public void clearProperties() {
+        PropertyUtil.clearProperties();
+    }
+
+    @Test
+    public void sheetsAreResolvedToExtents() {
+        List<double[]> extents = TileCacheWarmer.getSheetExtents(new String[] { "l4", " K4 " });
+        assertEquals(2, extents.size());
+        assertArrayEquals(new double[] { 308000, 6666000, 500000, 6762000 }, extents.get(0));
+        assertArrayEquals(new double[] { 308000, 6570000, 500000, 6666000 }, extents.get(1));
+        assertThrows(IllegalArgumentException.class,
+                () -> TileCacheWarmer.getSheetExtents(new String[] { "Q9" }));
+    }
+
+    @Test
+    public void parsesBoundingBoxesAndScaleFactors() {
+        List<double[]> extents = TileCacheWarmer.parseExtents("1,2,3,4; 5,6,7,8");
+        assertEquals(2, extents.size());
+        assertArrayEquals(new double[] { 5, 6, 7, 8 }, extents.get(1));
+        assertThrows(IllegalArgumentException.class, () -> TileCacheWarmer.parseExtents("1,2,3"));
+        assertThrows(IllegalArgumentException.class, () -> TileCacheWarmer.parseExtents("3,2,1,4"));
+
+        assertArrayEquals(new double[] { 1, 0.125 }, TileCacheWarmer.parseScaleFactors("1, 0.125"));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TileCacheWarmer(extents, new double[] { 0.3 }, 1, 1000));
+    }
+
+    @Test
+    public void warmsTilesOnce() throws Exception {
+        double e = StubWCS.ORIGIN_E + 50000;
+        double n = StubWCS.ORIGIN_N - 50000;
+        List<double[]> extents = List.of(new double[] { e, n - 3000, e + 3000, n });
+        try (StubWCS wcs = new StubWCS()) {
+            TerrainProfileService tps = new TerrainProfileService(wcs.getEndPoint(), StubWCS.COVERAGE_ID);
+
+            TileCacheWarmer warmer = new TileCacheWarmer(extents, new double[] { 1, 0.5 }, 100, 10000);
+            warmer.warm(tps);
+            assertTrue(warmer.getTotal() > 0);
+            assertEquals(0, warmer.getFailed());
+            assertEquals(warmer.getTotal(), warmer.getFetched() + warmer.getCached());
+            long requests = wcs.getGetCoverageRequests();
+
+            // profiles inside the extent are served from the cache
+            tps.getTerrainProfile(new double[] { e + 100, n - 100, e + 2900, n - 2900 }, 100, -1);
+            assertEquals(requests, wcs.getGetCoverageRequests());
+
+            TileCacheWarmer again = new TileCacheWarmer(extents, new double[] { 1, 0.5 }, 100, 10000);
+            again.warm(tps);
+            assertEquals(0, again.getFetched());
+            assertEquals(warmer.getTotal(), again.getCached());
+            assertEquals(requests, wcs.getGetCoverageRequests());
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import fi.nls.oskari.control.ActionParamsException;
+
+public class VisibilityHandlerTest {
+
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    @Test
+    public void pairsWithoutHeightsUseTopLevelDefaults() throws Exception {
+        String json = "{\"observerHeight\":30,\"pairs\":["
+                + "{\"observer\":[1,2],\"target\":[3,4]},"
+                + "{\"observer\":[5,6],\"target\":[7,8],\"observerHeight\":10,\"targetHeight\":2}]}";
+        List<SightLine> lines = VisibilityHandler.parseSightLines(OM.readTree(json), 10, null);
+        assertEquals(2, lines.size());
+        SightLine first = lines.get(0);
+        assertEquals(1, first.getObserverE(), 0.0);
+        assertEquals(4, first.getTargetN(), 0.0);
+        assertEquals(30, first.getObserverHeight(), 0.0);
+        assertEquals(0, first.getTargetHeight(), 0.0);
+        assertEquals(10, lines.get(1).getObserverHeight(), 0.0);
+        assertEquals(2, lines.get(1).getTargetHeight(), 0.0);
+    }
+
+    @Test
+    public void tooManyPairsThrowsActionParamsException() throws Exception {
+        String json = "{\"pairs\":[{\"observer\":[1,2],\"target\":[3,4]},{\"observer\":[1,2],\"target\":[3,4]}]}";
+        ActionParamsException e = assertThrows(ActionParamsException.class,
+                () -> VisibilityHandler.parseSightLines(OM.readTree(json), 1, null));
+        assertEquals("Invalid input - too many pairs, maximum is 1", e.getMessage());
+    }
+
+    @Test
+    public void missingTargetThrowsActionParamsException() throws Exception {
+        String json = "{\"pairs\":[{\"observer\":[1,2]}]}";
+        ActionParamsException e = assertThrows(ActionParamsException.class,
+                () -> VisibilityHandler.parseSightLines(OM.readTree(json), 10, null));
+        assertEquals("Invalid input - expected coordinates [x, y] for 'target'", e.getMessage());
+    }
+
+}
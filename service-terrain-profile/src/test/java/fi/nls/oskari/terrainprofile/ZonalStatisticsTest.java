@@ -0,0 +1,62 @@
+package fi.nls.oskari.terrainprofile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class ZonalStatisticsTest {
+
+    @Test
+    public void emptyStatisticsAreNaN() {
+        ZonalStatistics stats = new ZonalStatistics();
+        stats.accept(Double.NaN);
+        assertEquals(0, stats.getCount());
+        assertEquals(1, stats.getNoDataCount());
+        assertTrue(Double.isNaN(stats.getMin()));
+        assertTrue(Double.isNaN(stats.getMean()));
+        assertTrue(Double.isNaN(stats.getPercentile(50)));
+    }
+
+    @Test
+    public void percentilesAreWithinHistogramBinSize() {
+        ZonalStatistics stats = new ZonalStatistics();
+        // Descending and spread wide so that the histogram has to grow both ways
+        for (int i = 1000; i >= 1; i--) {
+            stats.accept(i * 1.5 - 200);
+        }
+        assertEquals(1000, stats.getCount());
+        assertEquals(-198.5, stats.getMin(), 0.0);
+        assertEquals(1300.0, stats.getMax(), 0.0);
+        assertEquals((-198.5 + 1300.0) / 2, stats.getMean(), 1e-9);
+        assertEquals(-198.5, stats.getPercentile(0), ZonalStatistics.HISTOGRAM_BIN_SIZE);
+        assertEquals(500 * 1.5 - 200, stats.getPercentile(50), ZonalStatistics.HISTOGRAM_BIN_SIZE);
+        assertEquals(900 * 1.5 - 200, stats.getPercentile(90), ZonalStatistics.HISTOGRAM_BIN_SIZE);
+        assertEquals(1300.0, stats.getPercentile(100), 0.0);
+    }
+
+    @Test
+    public void implausibleValuesAreNoData() {
+        ZonalStatistics stats = new ZonalStatistics();
+        stats.accept(-3.4e38);
+        stats.accept(Double.POSITIVE_INFINITY);
+        stats.accept(ZonalStatistics.MAX_VALUE + 1);
+        stats.accept(ZonalStatistics.MIN_VALUE);
+        stats.accept(ZonalStatistics.MAX_VALUE);
+        assertEquals(2, stats.getCount());
+        assertEquals(3, stats.getNoDataCount());
+        assertEquals(ZonalStatistics.MIN_VALUE, stats.getMin(), 0.0);
+        assertEquals(ZonalStatistics.MAX_VALUE, stats.getPercentile(100), 0.0);
+    }
+
+    @Test
+    public void crossingsHonourHoles() {
+        double[] exterior = { 0, 0, 10, 0, 10, 10, 0, 10, 0, 0 };
+        double[] hole = { 2, 2, 4, 2, 4, 4, 2, 4, 2, 2 };
+        assertArrayEquals(new double[] { 0, 2, 4, 10 },
+                GeomUtil.getCrossings(new double[][] { exterior, hole }, 3), 0.0);
+        assertArrayEquals(new double[] { 0, 10 },
+                GeomUtil.getCrossings(new double[][] { exterior, hole }, 5), 0.0);
+        assertEquals(0, GeomUtil.getCrossings(new double[][] { exterior }, 11).length);
+    }
+
+}
@@ -3,6 +3,9 @@ package fi.nls.oskari.terrainprofile.dem;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import org.junit.jupiter.api.Test;
@@ -40,4 +43,24 @@ public class FloatAsIsValueExtractorTest {
         assertTrue(Double.isNaN(e.getTileValue(tiffReader, ifd, 0, 0, 2)));
     }
 
+    @Test
+    public void decodedTileIsReadOnlyOnce() {
+        FloatAsIsValueExtractor e = new FloatAsIsValueExtractor(Float.NaN);
+        float[] tile = new float[16];
+        tile[5] = 42.5f;
+        TIFFReader tiffReader = mock(TIFFReader.class);
+        when(tiffReader.readTile(anyInt(), anyInt(), any(float[].class))).thenReturn(tile);
+        IFD ifd = mock(IFD.class);
+        when(ifd.getTileWidth()).thenReturn(4);
+        when(ifd.getTileHeight()).thenReturn(4);
+
+        e.decodeTile(tiffReader, ifd, 0, 3);
+        e.decodeTile(tiffReader, ifd, 0, 3);
+        // Reader of the request thread is not needed for a decoded tile
+        TIFFReader other = mock(TIFFReader.class);
+        assertEquals(42.5, e.getTileValue(other, ifd, 0, 3, 5), 0);
+        verify(tiffReader, times(1)).readTile(anyInt(), anyInt(), any(float[].class));
+        verifyNoInteractions(other);
+    }
+
 }
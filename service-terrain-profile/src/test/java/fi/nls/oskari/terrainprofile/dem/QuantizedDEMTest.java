@@ -0,0 +1,98 @@
+package fi.nls.oskari.terrainprofile.dem;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class QuantizedDEMTest {
+
+    private static class ArrayDEM implements DEM {
+        private final float[] values;
+        private final int width;
+
+        private ArrayDEM(float[] values, int width) {
+            this.values = values;
+            this.width = width;
+        }
+
+        @Override
+        public double getValue(int x, int y) {
+            return values[y * width + x];
+        }
+
+        @Override
+        public int getTileIndex(int x, int y) {
+            return 0;
+        }
+
+        @Override
+        public BitSet getTileIndices(int minX, int minY, int maxX, int maxY) {
+            return new BitSet();
+        }
+    }
+
+    @Test
+    public void altitudesAreWithinMaxError() {
+        int width = 64;
+        int height = 32;
+        float[] values = new float[width * height];
+        Random r = new Random(1);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 80 + r.nextFloat() * 600;
+        }
+        values[5] = Float.NaN;
+
+        byte[] data = QuantizedDEM.encode(new ArrayDEM(values, width), width, height, 0.01);
+        assertNotNull(data);
+        assertEquals(28 + 2 * width * height, data.length);
+        assertTrue(QuantizedDEM.isQuantized(data));
+
+        QuantizedDEM dem = new QuantizedDEM(data);
+        assertEquals(width, dem.getWidth());
+        assertEquals(height, dem.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double expected = values[y * width + x];
+                if (Float.isNaN(values[y * width + x])) {
+                    assertTrue(Double.isNaN(dem.getValue(x, y)));
+                } else {
+                    assertEquals(expected, dem.getValue(x, y), 0.01);
+                }
+            }
+        }
+        assertTrue(Double.isNaN(dem.getValue(width, 0)));
+        assertTrue(Double.isNaN(dem.getValue(0, -1)));
+    }
+
+    @Test
+    public void flatAndEmptyDEMs() {
+        float[] flat = { 12.5f, 12.5f, 12.5f, 12.5f };
+        QuantizedDEM dem = new QuantizedDEM(QuantizedDEM.encode(new ArrayDEM(flat, 2), 2, 2, 0.01));
+        assertEquals(12.5, dem.getValue(1, 1), 0.0);
+
+        float[] empty = { Float.NaN, Float.NaN };
+        dem = new QuantizedDEM(QuantizedDEM.encode(new ArrayDEM(empty, 2), 2, 1, 0.01));
+        assertTrue(Double.isNaN(dem.getValue(0, 0)));
+    }
+
+    @Test
+    public void rangeTooLargeForMaxError() {
+        float[] values = { 0f, 1000f };
+        assertNull(QuantizedDEM.encode(new ArrayDEM(values, 2), 2, 1, 0.001));
+        assertNotNull(QuantizedDEM.encode(new ArrayDEM(values, 2), 2, 1, 0.01));
+    }
+
+    @Test
+    public void tiffIsNotQuantized() {
+        byte[] tiff = new byte[64];
+        tiff[0] = 'I';
+        tiff[1] = 'I';
+        tiff[2] = 42;
+        assertFalse(QuantizedDEM.isQuantized(tiff));
+        assertThrows(IllegalArgumentException.class, () -> new QuantizedDEM(tiff));
+    }
+
+}